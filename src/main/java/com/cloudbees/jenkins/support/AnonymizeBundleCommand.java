@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * Anonymizes a stored support bundle with {@link BundleAnonymizer}, for bundles generated while anonymization was
+ * disabled.
+ */
+@Extension
+public class AnonymizeBundleCommand extends CLICommand {
+
+    @Argument(metaVar = "BUNDLE", required = true)
+    public String bundle;
+
+    @Override
+    public String getShortDescription() {
+        return Messages.AnonymizeBundleCommand_anonymizes_a_stored_support_bundle_();
+    }
+
+    @Override
+    protected void printUsageSummary(PrintStream stderr) {
+        stderr.println(Messages.AnonymizeBundleCommand_stores_an_anonymized_copy_of_the_bundle());
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(SupportPlugin.CREATE_BUNDLE);
+        // anonymized by the same jobs as the REST API, possibly shared with other requests
+        BundleJob job = BundleJob.anonymize(bundle);
+        BundleJob.State state = job.await();
+        if (state != BundleJob.State.COMPLETED) {
+            throw new IOException("Support bundle " + job.getFile().getName() + " was " + state, job.getFailure());
+        }
+        stderr.println("Created: " + job.getFile().getName());
+        Files.copy(job.getFile().toPath(), stdout);
+        stdout.flush();
+        return 0;
+    }
+}
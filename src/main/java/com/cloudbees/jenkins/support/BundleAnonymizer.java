@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Content;
+import com.cloudbees.jenkins.support.filter.ContentFilter;
+import com.cloudbees.jenkins.support.filter.ContentMappings;
+import hudson.BulkChange;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Anonymizes a bundle stored in {@link SupportPlugin#getRootDirectory()} after the fact, such as one generated without
+ * anonymization while speed mattered most, into a copy stored next to it. The copy is written by a {@link BundleJob},
+ * shared by concurrent requests for the same bundle.
+ * <p>
+ * Each entry of the stored archive is read back as a {@link Content} and goes through a {@link ContentRenderer}, so
+ * that entries are filtered and deflated concurrently and copied into the new archive in their original order. As when
+ * generating a bundle, entries are probed to tell textual ones, which are filtered with {@link ContentFilter#ALL},
+ * from binary ones, which are copied as is. Entry names are filtered too.
+ */
+final class BundleAnonymizer {
+    static final String SUFFIX = "_anonymized.zip";
+
+    private BundleAnonymizer() {
+    }
+
+    /**
+     * Looks up a stored bundle to anonymize.
+     *
+     * @param name the name of a bundle known to {@link BundleIndex}
+     * @throws FileNotFoundException if there is no such bundle
+     * @throws IllegalArgumentException if the bundle is itself an anonymized copy
+     */
+    @Nonnull
+    static BundleIndex.Bundle sourceOf(@Nonnull String name) throws FileNotFoundException {
+        if (name.endsWith(SUFFIX)) {
+            throw new IllegalArgumentException("Support bundle " + name + " is already anonymized");
+        }
+        BundleIndex.Bundle source = BundleIndex.get().getBundle(name);
+        if (source == null) {
+            throw new FileNotFoundException("No such support bundle: " + name);
+        }
+        return source;
+    }
+
+    /**
+     * Where the anonymized copy of a stored bundle goes, replacing any previous one.
+     */
+    @Nonnull
+    static File copyOf(@Nonnull String name) {
+        return new File(SupportPlugin.getRootDirectory(),
+                (name.endsWith(".zip") ? name.substring(0, name.length() - 4) : name) + SUFFIX);
+    }
+
+    /**
+     * Writes an anonymized copy of a bundle archive.
+     *
+     * @throws IOException if an entry could not be read, in which case the copy is incomplete
+     */
+    static void anonymize(@Nonnull File source, @Nonnull OutputStream out) throws IOException {
+        ContentFilter filter = SupportPlugin.reloadContentFilter();
+        int threads = SupportPlugin.ANONYMIZE_BUNDLE_THREADS;
+        try (ZipFile zip = new ZipFile(source);
+             BulkChange change = new BulkChange(ContentMappings.get());
+             ZipArchiveOutputStream archive = new ZipArchiveOutputStream(new BufferedOutputStream(out, 16384))) {
+            List<Content> contents = new ArrayList<>();
+            for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+                if (!entry.isDirectory()) {
+                    contents.add(new EntryContent(zip, entry));
+                }
+            }
+            try (ContentRenderer renderer = new ContentRenderer(contents, Optional.of(filter), new BundleBudget(0, 0),
+                    threads, threads, SupportPlugin.BUNDLE_RENDER_BUFFER_BYTES)) {
+                while (renderer.hasNext()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Interrupted while anonymizing support bundle");
+                    }
+                    try (ContentRenderer.Rendered rendered = renderer.next()) {
+                        Content content = rendered.getContent();
+                        Throwable error = rendered.getError();
+                        if (error != null) {
+                            throw new IOException("Could not anonymize " + content.getName(), error);
+                        }
+                        ZipArchiveEntry entry = new ZipArchiveEntry(filter.filter(content.getName()));
+                        entry.setTime(content.getTime());
+                        rendered.writeTo(archive, entry);
+                    }
+                }
+            }
+            archive.finish();
+            change.commit();
+        }
+    }
+
+    /**
+     * An entry of a stored bundle, read back as it was written.
+     */
+    private static final class EntryContent extends Content {
+        private final ZipFile zip;
+        private final ZipArchiveEntry entry;
+
+        EntryContent(ZipFile zip, ZipArchiveEntry entry) {
+            super(entry.getName());
+            this.zip = zip;
+            this.entry = entry;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            try (InputStream in = zip.getInputStream(entry)) {
+                IOUtils.copy(in, os);
+            }
+        }
+
+        @Override
+        public long getTime() {
+            return entry.getTime();
+        }
+
+        @Override
+        public int getCompressionLevel() {
+            // entries were only stored when they were already compressed
+            return entry.getMethod() == ZipEntry.STORED ? Deflater.NO_COMPRESSION : super.getCompressionLevel();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Content;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time a support bundle may take to be generated.
+ * <p>
+ * The bundle as a whole has a deadline, and each component has a budget covering both the collection of its contents
+ * and their rendering. Work that runs out of time is cut short so that a bundle can still be produced in bounded time
+ * when, for example, agents are unresponsive.
+ */
+final class BundleBudget {
+    private final boolean hasDeadline;
+    private final long deadline;
+    private final long componentNanos;
+    private final ComponentBudget unassigned;
+    @GuardedBy("this")
+    private final Map<Content, ComponentBudget> contents = new IdentityHashMap<>();
+    @GuardedBy("this")
+    private final Set<String> exceeded = new LinkedHashSet<>();
+
+    /**
+     * @param timeoutSeconds          how long the whole bundle may take, {@code 0} for no limit
+     * @param componentTimeoutSeconds how long each component may take, {@code 0} for no limit
+     */
+    BundleBudget(long timeoutSeconds, long componentTimeoutSeconds) {
+        this.hasDeadline = timeoutSeconds > 0;
+        this.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        this.componentNanos = componentTimeoutSeconds > 0 ? TimeUnit.SECONDS.toNanos(componentTimeoutSeconds) : Long.MAX_VALUE;
+        this.unassigned = new ComponentBudget(null, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return {@code true} if either the bundle or its components have a limit
+     */
+    boolean isLimited() {
+        return hasDeadline || componentNanos != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return how many nanoseconds are left before the bundle deadline, {@link Long#MAX_VALUE} if there is none
+     */
+    long remainingNanos() {
+        return hasDeadline ? deadline - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Starts the budget of a component.
+     *
+     * @param displayName the name of the component, as recorded in the manifest if it runs out of time
+     */
+    @Nonnull
+    ComponentBudget forComponent(@Nonnull String displayName) {
+        return new ComponentBudget(displayName, componentNanos);
+    }
+
+    /**
+     * @return the budget of the component which added the content, or one bound only by the bundle deadline
+     */
+    @Nonnull
+    synchronized ComponentBudget of(@Nonnull Content content) {
+        ComponentBudget budget = contents.get(content);
+        return budget == null ? unassigned : budget;
+    }
+
+    /**
+     * @return the display names of the components which ran out of time, in the order they did
+     */
+    @Nonnull
+    synchronized List<String> getExceeded() {
+        return new ArrayList<>(exceeded);
+    }
+
+    /**
+     * The time left to a component.
+     */
+    final class ComponentBudget {
+        private final String displayName;
+        private final AtomicLong remaining;
+
+        private ComponentBudget(String displayName, long nanos) {
+            this.displayName = displayName;
+            this.remaining = new AtomicLong(nanos);
+        }
+
+        /**
+         * @return the display name of the component, {@code null} for contents not added by a component
+         */
+        @CheckForNull
+        String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * Attributes a content to this component, so that rendering it draws on the same budget.
+         */
+        void assign(@Nonnull Content content) {
+            synchronized (BundleBudget.this) {
+                contents.put(content, this);
+            }
+        }
+
+        /**
+         * @return how many nanoseconds work starting now may take, {@link Long#MAX_VALUE} if there is no limit
+         */
+        long remainingNanos() {
+            return Math.min(remaining.get(), BundleBudget.this.remainingNanos());
+        }
+
+        /**
+         * Records time spent working for this component.
+         */
+        void spent(long nanos) {
+            if (remaining.get() != Long.MAX_VALUE) {
+                remaining.addAndGet(-nanos);
+            }
+        }
+
+        /**
+         * Records that work for this component was cut short.
+         */
+        void exceeded() {
+            if (displayName != null) {
+                synchronized (BundleBudget.this) {
+                    exceeded.add(displayName);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Component;
+import hudson.XmlFile;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the bundles stored in {@link SupportPlugin#getRootDirectory()} in a small index next to them, and
+ * deletes the bundles that fall out of the retention policy whenever one is added.
+ * <p>
+ * The index is checked against the directory once when it is loaded, picking up bundles it does not know about
+ * and forgetting those deleted behind its back. From then on it is the only thing consulted, so that listing bundles
+ * or enforcing the retention policy does not need to go through the directory.
+ * <p>
+ * Bundles are kept newest first, up to {@link SupportPlugin#RETAINED_BUNDLES} in all and
+ * {@link SupportPlugin#RETAINED_BUNDLES_BYTES} in total, although the newest bundle is always kept. Of the bundles
+ * generated periodically, the newest one of each age bucket is kept, the buckets doubling in length with age, so that
+ * history goes back further the older it gets. Up to {@link SupportPlugin#RETAINED_BUNDLES_PER_TRIGGER} of the other
+ * bundles of each {@link Trigger} are kept.
+ * <p>
+ * Bundles stored before the index existed are found as {@link Trigger#UNKNOWN} when it is first loaded. As they were
+ * kept by age bucket, they are retained along with the periodic bundles, so that upgrading does not lose their
+ * history.
+ * <p>
+ * Other files of the directory are left alone, except {@code .log} files, which are listed and deleted like bundles.
+ */
+final class BundleIndex {
+    private static final Logger LOGGER = Logger.getLogger(BundleIndex.class.getName());
+
+    static final String FILE_NAME = "bundles.xml";
+
+    private static final String LOG_SUFFIX = ".log";
+
+    private static BundleIndex instance;
+
+    /**
+     * What caused a bundle to be generated.
+     */
+    enum Trigger {
+        /** Generated by {@link SupportPlugin.PeriodicWorkImpl}. */
+        PERIODIC,
+        /** Requested by a user, from the web interface or the REST API. */
+        MANUAL,
+        /** Anonymized from a stored bundle by {@link BundleAnonymizer}. */
+        ANONYMIZED,
+        /** Found in the directory without being in the index. */
+        UNKNOWN;
+
+        /**
+         * @return whether bundles of this trigger are retained by age bucket rather than by count
+         */
+        boolean isRetainedByAge() {
+            return this == PERIODIC || this == UNKNOWN;
+        }
+    }
+
+    static final class Bundle {
+        private final String name;
+        private final long size;
+        private final long time;
+        private final Trigger trigger;
+        private final List<String> components;
+
+        Bundle(@Nonnull String name, long size, long time, @Nonnull Trigger trigger, @Nonnull List<String> components) {
+            this.name = name;
+            this.size = size;
+            this.time = time;
+            this.trigger = trigger;
+            this.components = new ArrayList<>(components);
+        }
+
+        @Nonnull
+        String getName() {
+            return name;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        @Nonnull
+        Trigger getTrigger() {
+            return trigger == null ? Trigger.UNKNOWN : trigger;
+        }
+
+        @Nonnull
+        List<String> getComponents() {
+            return components == null ? Collections.emptyList() : Collections.unmodifiableList(components);
+        }
+    }
+
+    private static final Comparator<Bundle> NEWEST_FIRST =
+            Comparator.comparingLong(Bundle::getTime).reversed().thenComparing(Bundle::getName);
+
+    private transient File dir;
+    /** Newest first. */
+    private final List<Bundle> bundles = new ArrayList<>();
+
+    private BundleIndex(@Nonnull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the index of the current support directory, loading it if needed
+     */
+    @Nonnull
+    static synchronized BundleIndex get() {
+        File dir = SupportPlugin.getRootDirectory();
+        if (instance == null || !instance.dir.equals(dir)) {
+            instance = load(dir);
+        }
+        return instance;
+    }
+
+    private static BundleIndex load(@Nonnull File dir) {
+        BundleIndex index = null;
+        XmlFile file = new XmlFile(new File(dir, FILE_NAME));
+        if (file.exists()) {
+            try {
+                index = (BundleIndex) file.read();
+                index.dir = dir;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not read the index of support bundles, rebuilding it", e);
+                index = null;
+            }
+        }
+        if (index == null) {
+            index = new BundleIndex(dir);
+        }
+        synchronized (index) {
+            index.reconcile();
+        }
+        return index;
+    }
+
+    /**
+     * Brings the index in line with the bundles actually in the directory.
+     */
+    private void reconcile() {
+        boolean changed = bundles.removeIf(bundle -> bundle == null || !new File(dir, bundle.getName()).isFile());
+        Set<String> known = new HashSet<>();
+        bundles.forEach(bundle -> known.add(bundle.getName()));
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".zip") && !known.contains(name));
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile()) {
+                    bundles.add(new Bundle(f.getName(), f.length(), f.lastModified(), Trigger.UNKNOWN,
+                            Collections.emptyList()));
+                    changed = true;
+                }
+            }
+        }
+        bundles.sort(NEWEST_FIRST);
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * @return the bundles currently stored, newest first
+     */
+    @Nonnull
+    synchronized List<Bundle> getBundles() {
+        return new ArrayList<>(bundles);
+    }
+
+    /**
+     * @return the names of the {@code .log} files in the directory, which are not indexed
+     */
+    @Nonnull
+    List<String> getLogs() {
+        List<String> logs = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(LOG_SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile()) {
+                    logs.add(f.getName());
+                }
+            }
+        }
+        Collections.sort(logs);
+        return logs;
+    }
+
+    @CheckForNull
+    synchronized Bundle getBundle(@Nonnull String name) {
+        for (Bundle bundle : bundles) {
+            if (bundle.getName().equals(name)) {
+                return bundle;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a bundle which has just been written to the directory, then applies the retention policy.
+     *
+     * @return the names of the bundles deleted by the retention policy
+     */
+    @Nonnull
+    synchronized List<String> add(@Nonnull File file, @Nonnull Trigger trigger, @Nonnull List<Component> components) {
+        List<String> ids = new ArrayList<>();
+        components.forEach(component -> ids.add(component.getId()));
+        return record(file, trigger, ids);
+    }
+
+    /**
+     * Records the anonymized copy of a stored bundle which has just been written to the directory, then applies the
+     * retention policy. Copies are retained apart from the bundles they come from.
+     *
+     * @return the names of the bundles deleted by the retention policy
+     */
+    @Nonnull
+    synchronized List<String> add(@Nonnull File file, @Nonnull Bundle source) {
+        return record(file, Trigger.ANONYMIZED, source.getComponents());
+    }
+
+    private List<String> record(File file, Trigger trigger, List<String> ids) {
+        bundles.removeIf(bundle -> bundle.getName().equals(file.getName()));
+        bundles.add(new Bundle(file.getName(), file.length(), file.lastModified(), trigger, ids));
+        bundles.sort(NEWEST_FIRST);
+        List<String> deleted = retain(SupportPlugin.RETAINED_BUNDLES_PER_TRIGGER, SupportPlugin.RETAINED_BUNDLES,
+                SupportPlugin.RETAINED_BUNDLES_BYTES);
+        save();
+        return deleted;
+    }
+
+    /**
+     * Deletes a stored bundle, or a {@code .log} file of the directory.
+     *
+     * @return {@code false} if there is no such bundle in the index or it could not be deleted
+     */
+    synchronized boolean delete(@Nonnull String name) {
+        Bundle bundle = getBundle(name);
+        if (bundle == null) {
+            if (!getLogs().contains(name)) {
+                return false;
+            }
+            File file = new File(dir, name);
+            return !file.exists() || file.delete();
+        }
+        File file = new File(dir, name);
+        if (file.exists() && !file.delete()) {
+            return false;
+        }
+        bundles.remove(bundle);
+        save();
+        return true;
+    }
+
+    /**
+     * Deletes the bundles beyond the given limits, {@code 0} standing for no limit.
+     */
+    private List<String> retain(int perTrigger, int count, long bytes) {
+        List<String> deleted = new ArrayList<>();
+        Map<Trigger, Integer> kept = new EnumMap<>(Trigger.class);
+        Set<Integer> keptAges = new HashSet<>();
+        long now = System.currentTimeMillis();
+        int keptCount = 0;
+        long keptBytes = 0;
+        for (Iterator<Bundle> it = bundles.iterator(); it.hasNext(); ) {
+            Bundle bundle = it.next();
+            int keptOfTrigger = kept.getOrDefault(bundle.getTrigger(), 0);
+            int age = ageBucket(now - bundle.getTime());
+            boolean retainedByAge = bundle.getTrigger().isRetainedByAge();
+            boolean newest = keptCount == 0;
+            if (newest || (retainedByAge ? !keptAges.contains(age) : perTrigger == 0 || keptOfTrigger < perTrigger)
+                    && (count == 0 || keptCount < count)
+                    && (bytes == 0 || keptBytes + bundle.getSize() <= bytes)) {
+                kept.put(bundle.getTrigger(), keptOfTrigger + 1);
+                if (retainedByAge) {
+                    keptAges.add(age);
+                }
+                keptCount++;
+                keptBytes += bundle.getSize();
+                continue;
+            }
+            File file = new File(dir, bundle.getName());
+            if (file.exists() && !file.delete()) {
+                LOGGER.log(Level.WARNING, "Could not delete old support bundle {0}", file);
+                continue;
+            }
+            LOGGER.log(Level.FINE, "Deleted old support bundle {0}", file);
+            deleted.add(bundle.getName());
+            it.remove();
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the age bucket of a bundle of the given age in milliseconds, each bucket being twice as long as the
+     * previous one, as {@code cleanupOldBundles} kept them before the index
+     */
+    private static int ageBucket(long ageMillis) {
+        return ageMillis < 1 ? -1 : 63 - Long.numberOfLeadingZeros(ageMillis);
+    }
+
+    private void save() {
+        try {
+            if (dir.isDirectory() || dir.mkdirs()) {
+                new XmlFile(new File(dir, FILE_NAME)).write(this);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the index of support bundles", e);
+        }
+    }
+}
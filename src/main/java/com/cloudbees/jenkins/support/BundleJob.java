@@ -0,0 +1,631 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Component;
+import com.cloudbees.jenkins.support.filter.ContentFilters;
+import com.cloudbees.jenkins.support.impl.AboutUser;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A support bundle generated in the background into {@link SupportPlugin#getRootDirectory()}, rather than streamed
+ * from the thread which asked for it.
+ * <p>
+ * Jobs run on an executor bounded by {@link SupportPlugin#BUNDLE_JOB_THREADS}, can be followed and cancelled while
+ * they run, and their archive downloaded once they completed. The bundle is written to a temporary file which is only
+ * renamed once complete, so that a cancelled or failed job never leaves a truncated archive behind. Jobs also write the
+ * anonymized copies of stored bundles made by {@link BundleAnonymizer}.
+ * <p>
+ * Bound to {@code support/job/<id>/}: the index reports the progress as JSON, {@code cancel} stops the job and
+ * {@code download} serves the archive. Only the users who requested the job and administrators may use them. A job
+ * shared by several requests is only stopped once each of them cancelled it, unless cancelled by an administrator.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class BundleJob {
+    private static final Logger LOGGER = Logger.getLogger(BundleJob.class.getName());
+
+    /**
+     * How many jobs may wait for a thread before new jobs are turned down.
+     */
+    private static final int MAX_QUEUED = 16;
+
+    /**
+     * How many finished jobs are remembered, their archives being kept until deleted from {@link SupportAction}.
+     */
+    private static final int MAX_RETAINED = 50;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        EXECUTOR = new ThreadPoolExecutor(SupportPlugin.BUNDLE_JOB_THREADS, SupportPlugin.BUNDLE_JOB_THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED), new ExceptionCatchingThreadFactory(
+                new NamingThreadFactory(new DaemonThreadFactory(), BundleJob.class.getSimpleName())));
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    @GuardedBy("JOBS")
+    private static final Map<String, BundleJob> JOBS = new LinkedHashMap<>();
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final List<Component> components;
+    private final String key;
+    private final Authentication requesterAuthentication;
+    private final File file;
+    /**
+     * The stored bundle anonymized by the job, or {@code null} if it generates a new bundle.
+     */
+    @CheckForNull
+    private final BundleIndex.Bundle source;
+    private final FutureTask<Void> task = new FutureTask<>(this::run, null);
+    private final CountDownLatch done = new CountDownLatch(1);
+    // only changed while holding the lock, but read without it to report progress
+    private volatile State state = State.QUEUED;
+    @GuardedBy("this")
+    private boolean cancelled;
+    @GuardedBy("this")
+    private Throwable failure;
+    private volatile long finishedMillis;
+    private volatile BundleProfile profile;
+    private volatile CountingOutputStream out;
+    /**
+     * How many requests of each user are still waiting for the job, by user name.
+     */
+    @GuardedBy("joiners")
+    private final Map<String, Integer> joiners = new HashMap<>();
+
+    private BundleJob(@Nonnull List<Component> components, @Nonnull String key, Authentication requesterAuthentication,
+                      @Nonnull File file, @CheckForNull BundleIndex.Bundle source) {
+        this.components = new ArrayList<>(components);
+        this.key = key;
+        this.requesterAuthentication = requesterAuthentication;
+        this.file = file;
+        this.source = source;
+    }
+
+    /**
+     * Starts generating a bundle on behalf of the current user.
+     *
+     * @param components the components to include in the bundle
+     * @return the job, which may still be waiting for a thread
+     * @throws RejectedExecutionException if too many jobs are already waiting
+     */
+    @Nonnull
+    public static BundleJob start(@Nonnull List<Component> components) {
+        return start(components, false);
+    }
+
+    /**
+     * Joins a job generating the same bundle for the current user, or one which completed less than
+     * {@link SupportPlugin#BUNDLE_FRESHNESS_SECONDS} ago, so that concurrent requests do not each collect every
+     * component again. Starts a new job if there is none.
+     *
+     * @param components the components to include in the bundle
+     * @return the job, which may be shared with other requests
+     * @throws RejectedExecutionException if too many jobs are already waiting
+     */
+    @Nonnull
+    public static BundleJob join(@Nonnull List<Component> components) {
+        return start(components, true);
+    }
+
+    /**
+     * Joins a job generating the same bundle for the current user, or one which completed less than
+     * {@link SupportPlugin#BUNDLE_FRESHNESS_SECONDS} ago, without starting a new job if there is none.
+     *
+     * @param components the components to include in the bundle
+     * @return the shared job, or {@code null} if there is none
+     */
+    @CheckForNull
+    public static BundleJob joinShared(@Nonnull List<Component> components) {
+        Jenkins.get().checkPermission(SupportPlugin.CREATE_BUNDLE);
+        Authentication authentication = Jenkins.getAuthentication();
+        synchronized (JOBS) {
+            BundleJob shared = findShared(keyOf(components, authentication));
+            if (shared != null) {
+                shared.addJoiner(authentication);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Joins a job anonymizing a stored bundle with {@link BundleAnonymizer}, or one which did less than
+     * {@link SupportPlugin#BUNDLE_FRESHNESS_SECONDS} ago. Starts a new job if there is none.
+     *
+     * @param name the name of a stored bundle
+     * @return the job, which may be shared with other requests
+     * @throws FileNotFoundException if there is no such bundle
+     * @throws IllegalArgumentException if the bundle is itself an anonymized copy
+     * @throws RejectedExecutionException if too many jobs are already waiting
+     */
+    @Nonnull
+    public static BundleJob anonymize(@Nonnull String name) throws FileNotFoundException {
+        Jenkins.get().checkPermission(SupportPlugin.CREATE_BUNDLE);
+        BundleIndex.Bundle source = BundleAnonymizer.sourceOf(name);
+        File file = BundleAnonymizer.copyOf(name);
+        return start("anonymize|" + name, true, (key, authentication) ->
+                new BundleJob(Collections.emptyList(), key, authentication, file, source));
+    }
+
+    private static BundleJob start(@Nonnull List<Component> components, boolean join) {
+        Jenkins.get().checkPermission(SupportPlugin.CREATE_BUNDLE);
+        return start(keyOf(components, Jenkins.getAuthentication()), join, (key, authentication) ->
+                new BundleJob(components, key, authentication, newBundleFile(), null));
+    }
+
+    /**
+     * @param factory creates the job while holding the lock on {@link #JOBS}, if there is none to join
+     */
+    private static BundleJob start(@Nonnull String key, boolean join,
+                                   @Nonnull BiFunction<String, Authentication, BundleJob> factory) {
+        Authentication authentication = Jenkins.getAuthentication();
+        BundleJob job;
+        synchronized (JOBS) {
+            if (join) {
+                BundleJob shared = findShared(key);
+                if (shared != null) {
+                    shared.addJoiner(authentication);
+                    return shared;
+                }
+            }
+            job = factory.apply(key, authentication);
+            job.addJoiner(authentication);
+            JOBS.put(job.id, job);
+        }
+        try {
+            EXECUTOR.execute(job.task);
+        } catch (RejectedExecutionException e) {
+            // requests which joined the job in the meantime must not wait for it forever
+            synchronized (job) {
+                job.finish(State.FAILED, e);
+            }
+            synchronized (JOBS) {
+                JOBS.remove(job.id);
+            }
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Bundles are equivalent if they select the same components and are filtered the same way. Only the
+     * {@link AboutUser} component depends on who asked for the bundle.
+     */
+    private static String keyOf(@Nonnull List<Component> components, Authentication authentication) {
+        Set<String> ids = new TreeSet<>();
+        boolean aboutUser = false;
+        for (Component component : components) {
+            ids.add(component.getId());
+            aboutUser |= component instanceof AboutUser;
+        }
+        StringBuilder key = new StringBuilder(String.join(",", ids));
+        key.append(ContentFilters.get().isEnabled() ? "|anonymized" : "|plain");
+        if (aboutUser) {
+            key.append('|').append(authentication == null ? "" : authentication.getName());
+        }
+        return key.toString();
+    }
+
+    @GuardedBy("JOBS")
+    @CheckForNull
+    private static BundleJob findShared(@Nonnull String key) {
+        long freshSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(SupportPlugin.BUNDLE_FRESHNESS_SECONDS);
+        BundleJob shared = null;
+        for (BundleJob job : JOBS.values()) {
+            if (!job.key.equals(key)) {
+                continue;
+            }
+            State state = job.state;
+            if (!state.isFinished()
+                    || state == State.COMPLETED && job.finishedMillis >= freshSince && job.file.isFile()) {
+                // the most recent one wins
+                shared = job;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Looks up a job which is still running or was one of the last to finish.
+     */
+    @CheckForNull
+    public static BundleJob get(@Nonnull String id) {
+        synchronized (JOBS) {
+            return JOBS.get(id);
+        }
+    }
+
+    private void addJoiner(Authentication authentication) {
+        synchronized (joiners) {
+            joiners.merge(nameOf(authentication), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Withdraws one request of a user from the job.
+     *
+     * @return how many requests are still waiting for the job, or {@code -1} if the user did not request it
+     */
+    private int removeJoiner(Authentication authentication) {
+        synchronized (joiners) {
+            String name = nameOf(authentication);
+            Integer count = joiners.get(name);
+            if (count == null) {
+                return -1;
+            }
+            if (count == 1) {
+                joiners.remove(name);
+            } else {
+                joiners.put(name, count - 1);
+            }
+            int left = 0;
+            for (int c : joiners.values()) {
+                left += c;
+            }
+            return left;
+        }
+    }
+
+    private static String nameOf(Authentication authentication) {
+        return authentication == null ? "" : authentication.getName();
+    }
+
+    /**
+     * Bundle names only go down to the second, so jobs started together get told apart by their id.
+     */
+    @GuardedBy("JOBS")
+    private static File newBundleFile() {
+        File dir = SupportPlugin.getRootDirectory();
+        String name = SupportPlugin.getBundleFileName();
+        File file = new File(dir, name);
+        boolean taken = file.exists();
+        for (BundleJob job : JOBS.values()) {
+            taken |= job.file.equals(file);
+        }
+        if (taken) {
+            file = new File(dir, name.replaceFirst("\\.zip$", "_" + UUID.randomUUID().toString().substring(0, 8) + ".zip"));
+        }
+        return file;
+    }
+
+    @Nonnull
+    public String getId() {
+        return id;
+    }
+
+    @Nonnull
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * The archive, which only exists once the job {@linkplain State#COMPLETED completed}.
+     */
+    @Nonnull
+    public File getFile() {
+        return file;
+    }
+
+    @CheckForNull
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    public int getComponentsTotal() {
+        return components.size();
+    }
+
+    public int getComponentsDone() {
+        BundleProfile profile = this.profile;
+        return profile == null ? 0 : profile.getComponentsCollected();
+    }
+
+    public int getEntriesWritten() {
+        BundleProfile profile = this.profile;
+        return profile == null ? 0 : profile.getEntriesWritten();
+    }
+
+    public long getBytesWritten() {
+        CountingOutputStream out = this.out;
+        return out == null ? 0 : out.getByteCount();
+    }
+
+    /**
+     * Stops the job, whether it is still waiting for a thread or already running, even if other requests still wait
+     * for it.
+     *
+     * @return {@code false} if the job had already finished
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (state.isFinished()) {
+                return false;
+            }
+            cancelled = true;
+        }
+        if (task.cancel(true)) {
+            // a job cancelled before it started never runs, so it has to be finished here
+            synchronized (this) {
+                if (state == State.QUEUED) {
+                    finish(State.CANCELLED, null);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Withdraws the request of a user from the job, which is only stopped once no other request waits for it.
+     * Administrators stop the job regardless.
+     *
+     * @return how many requests still wait for the job, or {@code -1} if the user did not request it
+     */
+    int cancel(Authentication authentication) {
+        int left = removeJoiner(authentication);
+        if (Jenkins.get().getACL().hasPermission(authentication, Jenkins.ADMINISTER)) {
+            left = 0;
+        }
+        // other requests sharing the job still want the bundle, so it keeps running for them
+        if (left == 0) {
+            cancel();
+        }
+        return left;
+    }
+
+    /**
+     * Whether a user may follow the job and download its archive, which may hold content about the users who
+     * requested it: only they and administrators may.
+     */
+    boolean mayAccess(Authentication authentication) {
+        synchronized (joiners) {
+            if (joiners.containsKey(nameOf(authentication))) {
+                return true;
+            }
+        }
+        return Jenkins.get().getACL().hasPermission(authentication, Jenkins.ADMINISTER);
+    }
+
+    /**
+     * Waits for the job to finish.
+     *
+     * @return the state the job finished in
+     */
+    @Nonnull
+    public State await() throws InterruptedException {
+        done.await();
+        return getState();
+    }
+
+    private void run() {
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            state = State.RUNNING;
+        }
+        File part = new File(file.getParentFile(), file.getName() + ".part");
+        SupportPlugin.setRequesterAuthentication(requesterAuthentication);
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            profile = new BundleProfile();
+            try (CountingOutputStream out = new CountingOutputStream(new FileOutputStream(part))) {
+                this.out = out;
+                if (source == null) {
+                    SupportPlugin.writeBundle(out, components, profile);
+                } else {
+                    BundleAnonymizer.anonymize(new File(dir, source.getName()), out);
+                }
+            }
+            synchronized (this) {
+                // content which ignores interruptions may let a cancelled bundle run to the end
+                if (cancelled) {
+                    throw new InterruptedIOException("Support bundle cancelled");
+                }
+            }
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (source == null) {
+                BundleIndex.get().add(file, BundleIndex.Trigger.MANUAL, components);
+            } else {
+                BundleIndex.get().add(file, source);
+            }
+            synchronized (this) {
+                finish(State.COMPLETED, null);
+            }
+        } catch (Throwable t) {
+            if (part.exists() && !part.delete()) {
+                LOGGER.log(Level.WARNING, "Could not delete {0}", part);
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    finish(State.CANCELLED, null);
+                } else {
+                    LOGGER.log(Level.WARNING, "Could not generate support bundle " + file.getName(), t);
+                    finish(State.FAILED, t);
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(old);
+            SupportPlugin.clearRequesterAuthentication();
+        }
+    }
+
+    @GuardedBy("this")
+    private void finish(@Nonnull State state, @CheckForNull Throwable failure) {
+        this.state = state;
+        this.failure = failure;
+        this.finishedMillis = System.currentTimeMillis();
+        done.countDown();
+        synchronized (JOBS) {
+            int finished = 0;
+            for (BundleJob job : JOBS.values()) {
+                finished += job.state.isFinished() ? 1 : 0;
+            }
+            for (Iterator<BundleJob> it = JOBS.values().iterator(); finished > MAX_RETAINED && it.hasNext(); ) {
+                if (it.next().state.isFinished()) {
+                    it.remove();
+                    finished--;
+                }
+            }
+        }
+    }
+
+    /**
+     * The progress of the job, as reported by the REST API.
+     */
+    @Nonnull
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("state", state.name());
+        json.put("componentsTotal", getComponentsTotal());
+        json.put("componentsDone", getComponentsDone());
+        json.put("entriesWritten", getEntriesWritten());
+        json.put("bytesWritten", getBytesWritten());
+        json.put("file", file.getName());
+        if (source != null) {
+            json.put("source", source.getName());
+        }
+        Throwable failure = getFailure();
+        if (failure != null) {
+            json.put("error", String.valueOf(failure.getMessage()));
+        }
+        return json;
+    }
+
+    @SuppressWarnings("unused") // used by Stapler
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(SupportPlugin.CREATE_BUNDLE);
+        if (!mayAccess(Jenkins.getAuthentication())) {
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "Only the users who requested this support bundle may follow it");
+            return;
+        }
+        writeJSON(rsp, toJSON());
+    }
+
+    @RequirePOST
+    @SuppressWarnings("unused") // used by Stapler
+    public void doCancel(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(SupportPlugin.CREATE_BUNDLE);
+        if (getState().isFinished()) {
+            rsp.sendError(HttpServletResponse.SC_CONFLICT, "Support bundle job already finished");
+            return;
+        }
+        int left = cancel(Jenkins.getAuthentication());
+        if (left < 0) {
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "Only the users who requested this support bundle may cancel it");
+            return;
+        }
+        JSONObject json = toJSON();
+        json.put("waiting", left);
+        writeJSON(rsp, json);
+    }
+
+    @SuppressWarnings("unused") // used by Stapler
+    public void doDownload(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(SupportPlugin.CREATE_BUNDLE);
+        if (!mayAccess(Jenkins.getAuthentication())) {
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "Only the users who requested this support bundle may download it");
+            return;
+        }
+        if (getState() != State.COMPLETED) {
+            rsp.sendError(HttpServletResponse.SC_CONFLICT, "Support bundle job is " + getState());
+            return;
+        }
+        if (!file.isFile()) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "Support bundle was deleted");
+            return;
+        }
+        rsp.setContentType("application/zip");
+        rsp.addHeader("Content-Disposition", "inline; filename=" + file.getName() + ";");
+        Files.copy(file.toPath(), rsp.getOutputStream());
+    }
+
+    static void writeJSON(StaplerResponse rsp, JSONObject json) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.print(json.toString());
+        writer.flush();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.filter.ContentFilter;
+import com.cloudbees.jenkins.support.filter.LineMemo;
+import com.cloudbees.jenkins.support.filter.StreamingContentFilter;
+import jenkins.metrics.api.Metrics;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Where the time and space of a support bundle went: how long each component took to collect its contents, and how
+ * long each entry took to render and filter along with its size in the archive, and how often filtered lines were found
+ * in the {@link LineMemo}.
+ * <p>
+ * The profile is written to the bundle itself and each measure is also published as a histogram in the
+ * {@linkplain Metrics#metricRegistry() metrics registry} so that the cost of bundles can be tracked over time.
+ */
+final class BundleProfile {
+    private static final Logger LOGGER = Logger.getLogger(BundleProfile.class.getName());
+
+    /**
+     * How many of the slowest entries are listed in the manifest, all of them being in {@code manifest/timings.json}.
+     */
+    private static final int SLOWEST_ENTRIES = 10;
+
+    private final long start = System.nanoTime();
+    @GuardedBy("this")
+    private final Map<String, Long> components = new LinkedHashMap<>();
+    @GuardedBy("this")
+    private final List<Entry> entries = new ArrayList<>();
+    private final AtomicInteger componentsCollected = new AtomicInteger();
+    private final AtomicInteger entriesWritten = new AtomicInteger();
+    /**
+     * The memo counts when the bundle was started, as the memo outlives bundles.
+     */
+    private final LineMemo.Stats memoStart = LineMemo.get().getStats();
+
+    /**
+     * Records the time taken by a component to add its contents.
+     */
+    void collected(@Nonnull String component, long nanos) {
+        synchronized (this) {
+            components.merge(component, nanos, Long::sum);
+        }
+        componentsCollected.incrementAndGet();
+        update("component.collect.time", TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Records an entry once it has been written to the archive.
+     *
+     * @param component   the display name of the component which added the content, if known
+     * @param renderNanos the time taken by {@link com.cloudbees.jenkins.support.api.Content#writeTo}
+     * @param filterNanos the part of the render time spent in the content filter
+     * @param entry       the archive entry, once closed so that its sizes are known
+     */
+    void written(@CheckForNull String component, long renderNanos, long filterNanos, @Nonnull ZipArchiveEntry entry,
+                 boolean truncated) {
+        Entry e = new Entry(entry.getName(), component, renderNanos, filterNanos, entry.getSize(), entry.getCompressedSize(),
+                truncated);
+        synchronized (this) {
+            entries.add(e);
+        }
+        entriesWritten.incrementAndGet();
+        update("entry.render.time", TimeUnit.NANOSECONDS.toMillis(renderNanos));
+        update("entry.filter.time", TimeUnit.NANOSECONDS.toMillis(filterNanos));
+        if (e.size >= 0) {
+            update("entry.size", e.size);
+        }
+        if (e.compressedSize >= 0) {
+            update("entry.compressed.size", e.compressedSize);
+        }
+    }
+
+    /**
+     * Records the time taken to generate the whole bundle.
+     */
+    void finished() {
+        update("time", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LineMemo.Stats memo = getMemoStats();
+        if (memo.getHits() + memo.getMisses() > 0) {
+            update("filter.memo.hit.rate", Math.round(memo.getHitRate() * 100));
+            update("filter.memo.evictions", memo.getEvictions());
+        }
+    }
+
+    /**
+     * @return how the filter memo did since the bundle was started, which includes other bundles written meanwhile
+     */
+    @Nonnull
+    LineMemo.Stats getMemoStats() {
+        return LineMemo.get().getStats().since(memoStart);
+    }
+
+    /**
+     * How many components have added their contents so far, for reporting progress while the bundle is generated.
+     */
+    int getComponentsCollected() {
+        return componentsCollected.get();
+    }
+
+    /**
+     * How many entries have been written to the archive so far, for reporting progress while the bundle is generated.
+     */
+    int getEntriesWritten() {
+        return entriesWritten.get();
+    }
+
+    private static void update(String name, long value) {
+        try {
+            Metrics.metricRegistry().histogram("support.bundle." + name).update(value);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not publish support bundle metric " + name, e);
+        }
+    }
+
+    /**
+     * @return the profile in the format of {@code manifest/timings.json}
+     */
+    @Nonnull
+    synchronized String toJSON() {
+        JSONArray componentsJson = new JSONArray();
+        for (Map.Entry<String, Long> component : components.entrySet()) {
+            componentsJson.add(new JSONObject()
+                    .element("name", component.getKey())
+                    .element("collectMillis", millis(component.getValue())));
+        }
+        JSONArray entriesJson = new JSONArray();
+        for (Entry entry : entries) {
+            JSONObject json = new JSONObject().element("name", entry.name);
+            if (entry.component != null) {
+                json.element("component", entry.component);
+            }
+            if (entry.truncated) {
+                json.element("truncated", true);
+            }
+            entriesJson.add(json
+                    .element("renderMillis", millis(entry.renderNanos))
+                    .element("filterMillis", millis(entry.filterNanos))
+                    .element("size", entry.size)
+                    .element("compressedSize", entry.compressedSize));
+        }
+        LineMemo.Stats memo = getMemoStats();
+        return new JSONObject()
+                .element("totalMillis", millis(System.nanoTime() - start))
+                .element("components", componentsJson)
+                .element("entries", entriesJson)
+                .element("filterMemo", new JSONObject()
+                        .element("hits", memo.getHits())
+                        .element("misses", memo.getMisses())
+                        .element("hitRate", memo.getHitRate())
+                        .element("evictions", memo.getEvictions())
+                        .element("invalidations", memo.getInvalidations())
+                        .element("size", memo.getSize()))
+                .toString(2);
+    }
+
+    /**
+     * Appends the profile per component, and the slowest entries, as markdown tables.
+     */
+    synchronized void appendTo(@Nonnull StringBuilder manifest) {
+        manifest.append("Generation profile:\n\n");
+        manifest.append("| Component | Collect (ms) | Render (ms) | Filter (ms) | Entries | Size (bytes) | Compressed (bytes) |\n");
+        manifest.append("|-----------|-------------:|------------:|------------:|--------:|-------------:|-------------------:|\n");
+        Map<String, Totals> totals = new LinkedHashMap<>();
+        components.forEach((name, nanos) -> totals.computeIfAbsent(name, k -> new Totals()).collectNanos += nanos);
+        for (Entry entry : entries) {
+            if (entry.component != null) {
+                totals.computeIfAbsent(entry.component, k -> new Totals()).add(entry);
+            }
+        }
+        totals.forEach((name, total) -> manifest.append("| ").append(escape(name))
+                .append(" | ").append(format(total.collectNanos))
+                .append(" | ").append(format(total.renderNanos))
+                .append(" | ").append(format(total.filterNanos))
+                .append(" | ").append(total.entries)
+                .append(" | ").append(total.size)
+                .append(" | ").append(total.compressedSize)
+                .append(" |\n"));
+        manifest.append('\n');
+
+        manifest.append("Slowest entries:\n\n");
+        manifest.append("| Entry | Render (ms) | Filter (ms) | Size (bytes) | Compressed (bytes) |\n");
+        manifest.append("|-------|------------:|------------:|-------------:|-------------------:|\n");
+        entries.stream()
+                .sorted(Comparator.comparingLong((Entry entry) -> entry.renderNanos).reversed())
+                .limit(SLOWEST_ENTRIES)
+                .forEach(entry -> manifest.append("| `").append(escape(entry.name))
+                        .append("` | ").append(format(entry.renderNanos))
+                        .append(" | ").append(format(entry.filterNanos))
+                        .append(" | ").append(entry.size)
+                        .append(" | ").append(entry.compressedSize)
+                        .append(" |\n"));
+        manifest.append('\n');
+        if (entries.stream().anyMatch(entry -> entry.truncated)) {
+            manifest.append("Entries cut short as they exceeded the time allowed:\n\n");
+            entries.stream().filter(entry -> entry.truncated)
+                    .forEach(entry -> manifest.append("  * `").append(entry.name).append("`\n\n"));
+        }
+        LineMemo.Stats memo = getMemoStats();
+        if (memo.getHits() + memo.getMisses() > 0) {
+            manifest.append(String.format(Locale.ENGLISH,
+                    "Filtered lines found in memo: %d of %d (%.1f%%), %d evicted, emptied %d times, %d memoized\n\n",
+                    memo.getHits(), memo.getHits() + memo.getMisses(), memo.getHitRate() * 100,
+                    memo.getEvictions(), memo.getInvalidations(), memo.getSize()));
+        }
+        manifest.append("Generated in ").append(format(System.nanoTime() - start)).append(" ms\n\n");
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+
+    private static String format(long nanos) {
+        return String.format(Locale.ENGLISH, "%.1f", millis(nanos));
+    }
+
+    private static String escape(String text) {
+        return text.replace("|", "\\|");
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final String component;
+        private final long renderNanos;
+        private final long filterNanos;
+        private final long size;
+        private final long compressedSize;
+        private final boolean truncated;
+
+        private Entry(String name, String component, long renderNanos, long filterNanos, long size, long compressedSize,
+                      boolean truncated) {
+            this.name = name;
+            this.component = component;
+            this.renderNanos = renderNanos;
+            this.filterNanos = filterNanos;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.truncated = truncated;
+        }
+    }
+
+    private static final class Totals {
+        private long collectNanos;
+        private long renderNanos;
+        private long filterNanos;
+        private int entries;
+        private long size;
+        private long compressedSize;
+
+        private void add(Entry entry) {
+            renderNanos += entry.renderNanos;
+            filterNanos += entry.filterNanos;
+            entries++;
+            size += Math.max(0, entry.size);
+            compressedSize += Math.max(0, entry.compressedSize);
+        }
+    }
+
+    /**
+     * Measures the time spent filtering the lines of a content.
+     */
+    static final class FilterTimer implements StreamingContentFilter {
+        private final ContentFilter filter;
+        private final AtomicLong nanos = new AtomicLong();
+
+        FilterTimer(@Nonnull ContentFilter filter) {
+            this.filter = filter;
+        }
+
+        @Nonnull
+        @Override
+        public String filter(@Nonnull String input) {
+            long start = System.nanoTime();
+            try {
+                return filter.filter(input);
+            } finally {
+                nanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public boolean filter(@Nonnull CharSequence input, int start, int end, @Nonnull Appendable out)
+                throws IOException {
+            long started = System.nanoTime();
+            try {
+                return StreamingContentFilter.filter(filter, input, start, end, out);
+            } finally {
+                nanos.addAndGet(System.nanoTime() - started);
+            }
+        }
+
+        @Override
+        public int getMaxMatchLength() {
+            return filter instanceof StreamingContentFilter ? ((StreamingContentFilter) filter).getMaxMatchLength() : 0;
+        }
+
+        @Override
+        public int getCutBefore(@Nonnull CharSequence input, int start, int end, int cut) {
+            return StreamingContentFilter.getCutBefore(filter, input, start, end, cut);
+        }
+
+        @Override
+        public void reload() {
+            filter.reload();
+        }
+
+        /**
+         * @return the time spent filtering so far
+         */
+        long getNanos() {
+            return nanos.get();
+        }
+    }
+}
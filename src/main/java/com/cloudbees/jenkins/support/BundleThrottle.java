@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.slowrequest.SlowRequestFilter;
+import hudson.ExtensionList;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Slows down the generation of a bundle so that it does not compete with the rest of Jenkins, as done for the
+ * bundles generated periodically.
+ * <p>
+ * The throttle applies to the streams wrapped by {@link #throttle(InputStream)} and {@link #throttle(OutputStream)}
+ * on threads working for a throttled bundle, which include the output of every content rendered for the bundle:
+ * <ul>
+ *     <li>the bytes read and written are limited to a rate shared by all the threads of the bundle,</li>
+ *     <li>each thread sleeps in proportion of the CPU time it used, so that it works at most a share of the time,</li>
+ *     <li>and every thread waits while Jenkins is busy, that is while a request other than a download or a stream
+ *     has been running for too long or too many items are waiting in the build queue, up to a limit after which the
+ *     bundle goes on regardless.</li>
+ * </ul>
+ * Time spent waiting still counts against the {@link BundleBudget} of the bundle, so the bundle only waits while
+ * Jenkins is busy for a quarter of the time it is allowed, leaving the rest to generate it.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class BundleThrottle {
+    private static final Logger LOGGER = Logger.getLogger(BundleThrottle.class.getName());
+
+    /**
+     * The throttle of the bundle the current thread works for, handed over to the workers of the bundle.
+     */
+    private static final ThreadLocal<BundleThrottle> CURRENT = new InheritableThreadLocal<>();
+
+    /**
+     * How much CPU time a thread may use before resting.
+     */
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * How long to wait before checking again whether Jenkins is still busy.
+     */
+    private static final long BUSY_CHECK_MILLIS = 1000;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final long bytesPerSecond;
+    private final int cpuPercent;
+    private final long maxRequestMillis;
+    private final int maxQueueLength;
+    private final long busyDeadlineNanos;
+    private final ThreadLocal<long[]> slice = ThreadLocal.withInitial(() -> new long[] {cpuNanos()});
+    @GuardedBy("this")
+    private long nextFreeNanos = System.nanoTime();
+    private volatile long busyCheckedMillis;
+    private volatile boolean busy;
+    private volatile boolean busyIgnored;
+
+    /**
+     * @param bytesPerSecond   how many bytes may be read and written per second, {@code 0} for no limit
+     * @param cpuPercent       which percentage of the time each thread may work, {@code 100} for no limit
+     * @param maxRequestMillis how long a request may run before the bundle waits, {@code 0} not to wait for requests
+     * @param maxQueueLength   how many queue items there may be before the bundle waits, {@code 0} not to wait for the
+     *                         queue
+     * @param maxBusyMillis    how long from now the bundle may wait while Jenkins is busy, after which it goes on
+     *                         regardless
+     */
+    BundleThrottle(long bytesPerSecond, int cpuPercent, long maxRequestMillis, int maxQueueLength, long maxBusyMillis) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.cpuPercent = Math.max(1, Math.min(100, cpuPercent));
+        this.maxRequestMillis = Math.max(0, maxRequestMillis);
+        this.maxQueueLength = Math.max(0, maxQueueLength);
+        this.busyDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxBusyMillis));
+    }
+
+    /**
+     * The throttle for the bundles generated periodically, as configured through {@link SupportPlugin}. The bundle
+     * waits while Jenkins is busy for no longer than a quarter of the time allowed to generate it or any of its
+     * components, or else than its period.
+     */
+    static BundleThrottle forPeriodicBundles() {
+        long maxBusyMillis = TimeUnit.HOURS.toMillis(SupportPlugin.AUTO_BUNDLE_PERIOD_HOURS);
+        for (int timeoutSeconds : new int[] {SupportPlugin.BUNDLE_TIMEOUT_SECONDS, SupportPlugin.COMPONENT_TIMEOUT_SECONDS}) {
+            if (timeoutSeconds > 0) {
+                maxBusyMillis = Math.min(maxBusyMillis, TimeUnit.SECONDS.toMillis(timeoutSeconds) / 4);
+            }
+        }
+        return new BundleThrottle(SupportPlugin.AUTO_BUNDLE_BYTES_PER_SECOND, SupportPlugin.AUTO_BUNDLE_CPU_PERCENT,
+                SupportPlugin.AUTO_BUNDLE_PAUSE_REQUEST_MILLIS, SupportPlugin.AUTO_BUNDLE_PAUSE_QUEUE_LENGTH,
+                maxBusyMillis);
+    }
+
+    @CheckForNull
+    static BundleThrottle current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(@CheckForNull BundleThrottle throttle) {
+        if (throttle == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(throttle);
+        }
+    }
+
+    /**
+     * Throttles reading from a stream if the current thread works for a throttled bundle.
+     */
+    @Nonnull
+    public static InputStream throttle(@Nonnull InputStream in) {
+        BundleThrottle throttle = current();
+        return throttle == null || !throttle.isLimited() ? in : new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                throttle.acquire(b < 0 ? 0 : 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                throttle.acquire(Math.max(0, n));
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Throttles writing to a stream if the current thread works for a throttled bundle.
+     */
+    @Nonnull
+    public static OutputStream throttle(@Nonnull OutputStream out) {
+        BundleThrottle throttle = current();
+        return throttle == null || !throttle.isLimited() ? out : new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                throttle.acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throttle.acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    boolean isLimited() {
+        return bytesPerSecond > 0 || cpuPercent < 100 || maxRequestMillis > 0 || maxQueueLength > 0;
+    }
+
+    /**
+     * Waits until the current thread may go on with reading or writing some bytes.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        try {
+            while (isBusy()) {
+                long left = busyDeadlineNanos - System.nanoTime();
+                if (left <= 0) {
+                    if (!busyIgnored) {
+                        busyIgnored = true;
+                        LOGGER.log(Level.WARNING, "Going on with the support bundle although Jenkins is still busy, "
+                                + "as it waited for as long as it may");
+                    }
+                    break;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(left, TimeUnit.MILLISECONDS.toNanos(BUSY_CHECK_MILLIS)));
+            }
+            if (cpuPercent < 100) {
+                long[] start = slice.get();
+                long used = cpuNanos() - start[0];
+                if (used >= SLICE_NANOS) {
+                    TimeUnit.NANOSECONDS.sleep(used * (100 - cpuPercent) / cpuPercent);
+                    start[0] = cpuNanos();
+                }
+            }
+            if (bytesPerSecond > 0 && bytes > 0) {
+                long wait;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    nextFreeNanos = Math.max(nextFreeNanos, now);
+                    wait = nextFreeNanos - now;
+                    nextFreeNanos += TimeUnit.SECONDS.toNanos(1) * bytes / bytesPerSecond;
+                }
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted while throttling support bundle")
+                    .initCause(e);
+        }
+    }
+
+    private boolean isBusy() {
+        if (maxRequestMillis == 0 && maxQueueLength == 0 || busyIgnored) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - busyCheckedMillis >= BUSY_CHECK_MILLIS) {
+            boolean busy = false;
+            try {
+                if (maxRequestMillis > 0) {
+                    for (SlowRequestFilter filter : ExtensionList.lookup(SlowRequestFilter.class)) {
+                        busy |= filter.getSlowInflightCount(maxRequestMillis) > 0;
+                    }
+                }
+                if (maxQueueLength > 0) {
+                    busy |= Jenkins.get().getQueue().getItems().length > maxQueueLength;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Could not tell whether Jenkins is busy", e);
+            }
+            if (busy != this.busy) {
+                LOGGER.log(Level.FINE, busy ? "Pausing support bundle while Jenkins is busy" : "Resuming support bundle");
+            }
+            this.busy = busy;
+            busyCheckedMillis = now;
+        }
+        return busy;
+    }
+
+    /**
+     * The CPU time of the current thread, or the elapsed time if it cannot be measured.
+     */
+    private static long cpuNanos() {
+        if (THREADS.isCurrentThreadCpuTimeSupported()) {
+            long nanos = THREADS.getCurrentThreadCpuTime();
+            if (nanos >= 0) {
+                return nanos;
+            }
+        }
+        return System.nanoTime();
+    }
+}
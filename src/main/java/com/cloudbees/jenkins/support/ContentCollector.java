@@ -0,0 +1,372 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Component;
+import com.cloudbees.jenkins.support.api.Container;
+import com.cloudbees.jenkins.support.api.Content;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the {@link Content} of the components of a support bundle.
+ * <p>
+ * Each {@link Component#addContents(Container)} runs on a worker thread, up to a number of components at a time, and
+ * adds to a container of its own. Collected components are handed back in the order they were requested, so that the
+ * manifest does not depend on which component finished first.
+ * <p>
+ * Collection draws on the {@link BundleBudget} of the component. A component which runs out of time keeps what it
+ * added so far, its worker is interrupted and it no longer counts towards the number of components collected at a time.
+ */
+final class ContentCollector implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(ContentCollector.class.getName());
+
+    private final List<Collected> all = new ArrayList<>();
+    private final Deque<Collected> collected = new ArrayDeque<>();
+    @GuardedBy("this")
+    private final Deque<Collected> queued = new ArrayDeque<>();
+    @GuardedBy("this")
+    private int running;
+    private final int threads;
+    @CheckForNull
+    private final ExecutorService executor;
+    private final Authentication authentication;
+    private final Authentication requesterAuthentication;
+    @CheckForNull
+    private final BundleThrottle throttle;
+    @CheckForNull
+    private final ScheduledFuture<?> expiry;
+
+    /**
+     * @param components the components to collect, in the order they should be returned
+     * @param budget     the time allowed to collect the components
+     * @param threads    how many components may be collected concurrently, {@code 0} to collect them one after the
+     *                   other from the calling thread if there is no time limit
+     */
+    ContentCollector(@Nonnull List<Component> components, @Nonnull BundleBudget budget, int threads) {
+        for (Component component : components) {
+            all.add(new Collected(component, budget));
+        }
+        collected.addAll(all);
+        // components can only be cut short from another thread
+        this.threads = threads > 0 ? threads : budget.isLimited() ? 1 : 0;
+        // a component which ran out of time may still hold on to its thread, so threads are not reused for others
+        this.executor = this.threads == 0 ? null : Executors.newCachedThreadPool(new ExceptionCatchingThreadFactory(
+                new NamingThreadFactory(new DaemonThreadFactory(), ContentCollector.class.getSimpleName())));
+        this.authentication = Jenkins.getAuthentication();
+        this.requesterAuthentication = SupportPlugin.getRequesterAuthentication();
+        this.throttle = BundleThrottle.current();
+        long timeout = budget.remainingNanos();
+        // components still waiting for a worker when the bundle runs out of time are not waited for
+        this.expiry = executor == null || timeout == Long.MAX_VALUE ? null
+                : Timer.get().schedule(this::expire, timeout, TimeUnit.NANOSECONDS);
+        if (executor != null) {
+            synchronized (this) {
+                queued.addAll(all);
+            }
+            startQueued();
+        }
+    }
+
+    private void startQueued() {
+        List<Collected> starting = new ArrayList<>();
+        synchronized (this) {
+            while (running < threads && !queued.isEmpty()) {
+                starting.add(queued.remove());
+                running++;
+            }
+        }
+        for (Collected c : starting) {
+            c.done.whenComplete((result, failure) -> {
+                synchronized (this) {
+                    running--;
+                }
+                startQueued();
+            });
+            executor.execute(() -> collect(c));
+        }
+    }
+
+    /**
+     * @return {@code true} if there are more collected components to retrieve
+     */
+    boolean hasNext() {
+        return !collected.isEmpty();
+    }
+
+    /**
+     * Waits for the next component in the requested order to be collected.
+     *
+     * @return the next collected component
+     * @throws IOException if interrupted while waiting for the component to be collected
+     */
+    @Nonnull
+    Collected next() throws IOException {
+        Collected c = collected.remove();
+        if (executor == null) {
+            collect(c);
+        }
+        try {
+            return c.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("Interrupted while collecting support bundle").initCause(e);
+        } catch (ExecutionException e) {
+            // collect() handles its own failures, so this is unexpected
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void collect(Collected c) {
+        long allowed = c.budget.remainingNanos();
+        if (allowed <= 0) {
+            c.expire();
+            return;
+        }
+        if (!c.start()) {
+            return;
+        }
+        ScheduledFuture<?> watchdog = executor == null || allowed == Long.MAX_VALUE ? null
+                : Timer.get().schedule(c::expire, allowed, TimeUnit.NANOSECONDS);
+        // collecting inline must leave the calling thread as it found it
+        Authentication oldRequester = SupportPlugin.getRequesterAuthentication();
+        BundleThrottle oldThrottle = BundleThrottle.current();
+        SupportPlugin.setRequesterAuthentication(requesterAuthentication);
+        BundleThrottle.setCurrent(throttle);
+        SecurityContext old = ACL.impersonate(authentication);
+        // an interruption pending on the calling thread, such as a cancelled bundle job, must survive collecting inline
+        boolean interrupted = executor == null && Thread.currentThread().isInterrupted();
+        try {
+            c.component.addContents(c);
+        } catch (Throwable e) {
+            c.fail(e);
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+            SecurityContextHolder.setContext(old);
+            if (oldRequester == null) {
+                SupportPlugin.clearRequesterAuthentication();
+            } else {
+                SupportPlugin.setRequesterAuthentication(oldRequester);
+            }
+            BundleThrottle.setCurrent(oldThrottle);
+            c.finish();
+            if (executor != null) {
+                // an interruption meant to cut this component short must not affect the next task of the worker
+                Thread.interrupted();
+            } else if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void expire() {
+        all.forEach(Collected::expire);
+    }
+
+    /**
+     * Stops collecting. Components still running are interrupted.
+     */
+    @Override
+    public void close() {
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The contents added by a {@link Component}. Contents added once it has been sealed, by a component which ran out
+     * of time but is still running, are ignored.
+     */
+    static final class Collected extends Container {
+        private final Component component;
+        private final String displayName;
+        private final BundleBudget.ComponentBudget budget;
+        /**
+         * Completed once collection finished or was cut short.
+         */
+        private final CompletableFuture<Collected> done = new CompletableFuture<>();
+        @GuardedBy("this")
+        private final List<Content> contents = new ArrayList<>();
+        @GuardedBy("this")
+        private boolean sealed;
+        @GuardedBy("this")
+        private boolean started;
+        @GuardedBy("this")
+        private long startNanos;
+        @GuardedBy("this")
+        private long nanos;
+        @GuardedBy("this")
+        private Thread worker;
+        @GuardedBy("this")
+        private Throwable failure;
+
+        private Collected(Component component, BundleBudget budget) {
+            this.component = component;
+            String displayName;
+            try {
+                displayName = component.getDisplayName();
+            } catch (Throwable ignored) {
+                // be very defensive
+                displayName = component.getClass().getName();
+            }
+            this.displayName = displayName;
+            this.budget = budget.forComponent(displayName);
+        }
+
+        @Override
+        public synchronized void add(Content content) {
+            if (content != null && !sealed) {
+                contents.add(content);
+                budget.assign(content);
+            }
+        }
+
+        /**
+         * @return the display name of the component
+         */
+        @Nonnull
+        String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * @return the failure raised by the component, if any
+         */
+        @CheckForNull
+        synchronized Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return how long collection took, up to when it was cut short if it ran out of time
+         */
+        synchronized long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Moves the contents added by the component to the provided list.
+         *
+         * @return the names of those contents
+         */
+        synchronized Set<String> drainTo(@Nonnull List<Content> into) {
+            sealed = true;
+            into.addAll(contents);
+            Set<String> names = new TreeSet<>();
+            for (Content content : contents) {
+                names.add(content.getName());
+            }
+            contents.clear();
+            return names;
+        }
+
+        private synchronized boolean start() {
+            if (sealed) {
+                return false;
+            }
+            started = true;
+            startNanos = System.nanoTime();
+            worker = Thread.currentThread();
+            return true;
+        }
+
+        private synchronized void fail(Throwable e) {
+            // a component cut short may fail on being interrupted, which is not worth reporting
+            if (!done.isDone()) {
+                failure = e;
+            }
+        }
+
+        private void finish() {
+            synchronized (this) {
+                worker = null;
+                complete();
+            }
+        }
+
+        /**
+         * Cuts collection short, keeping what was added so far.
+         */
+        private void expire() {
+            synchronized (this) {
+                if (done.isDone()) {
+                    return;
+                }
+                budget.exceeded();
+                complete();
+                if (worker != null) {
+                    worker.interrupt();
+                }
+            }
+            LOGGER.log(Level.WARNING, "{0} exceeded the time allowed to generate the support bundle", displayName);
+        }
+
+        @GuardedBy("this")
+        private void complete() {
+            if (done.isDone()) {
+                return;
+            }
+            sealed = true;
+            if (started) {
+                nanos = System.nanoTime() - startNanos;
+                budget.spent(nanos);
+            }
+            done.complete(this);
+        }
+    }
+}
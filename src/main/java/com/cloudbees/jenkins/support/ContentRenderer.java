@@ -0,0 +1,683 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Content;
+import com.cloudbees.jenkins.support.filter.ContentFilter;
+import com.cloudbees.jenkins.support.filter.ContentMappings;
+import com.cloudbees.jenkins.support.util.IgnoreCloseOutputStream;
+import com.cloudbees.jenkins.support.util.OutputStreamSelector;
+import hudson.BulkChange;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.compress.archivers.zip.StreamCompressor;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Renders the {@link Content} of a support bundle ahead of the archive writer.
+ * <p>
+ * Each {@link Content#writeTo(OutputStream)} runs on a bounded pool of worker threads and its output is captured in a
+ * buffer which is kept in memory up to a threshold and spilled to a temporary file past it. Rendered contents are
+ * handed back in submission order, so a slow content only delays the entries queued behind it in the archive rather
+ * than the rendering of those entries.
+ * <p>
+ * Optionally, rendered contents are also deflated on a second pool of worker threads, in the same way as
+ * {@code ParallelScatterZipCreator} does, and then copied as raw entries into the archive. The archive writer is then
+ * left with little more than copying bytes, so compression scales with the number of cores instead of being bound to
+ * the thread writing the archive. {@code ParallelScatterZipCreator} itself only writes the archive once every entry was
+ * compressed, whereas entries are written here as soon as they and those before them are ready.
+ * <p>
+ * Contents which {@linkplain Content#getCompressionLevel() ask not to be compressed}, or whose output starts with the
+ * signature of a compressed format, are stored in the archive as is.
+ * <p>
+ * Rendering draws on the {@link BundleBudget} of the component which added the content. A content which runs out of
+ * time is handed back with what it rendered so far followed by a warning, and its worker is interrupted.
+ */
+final class ContentRenderer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ContentRenderer.class.getName());
+
+    /**
+     * Leading bytes of gzip, zip, bzip2, xz, PNG, JPEG and GIF data.
+     */
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+            {0x1f, (byte) 0x8b},
+            {'P', 'K', 0x03, 0x04},
+            {'B', 'Z', 'h'},
+            {(byte) 0xfd, '7', 'z', 'X', 'Z', 0x00},
+            {(byte) 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a},
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+            {'G', 'I', 'F', '8'},
+    };
+    private static final int SIGNATURE_LENGTH = 8;
+    private static final byte[] TRUNCATED_MARKER =
+            "\n--- WARNING: Truncated as it exceeded the time allowed to generate the support bundle ---\n"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    private final Iterator<Content> remaining;
+    private final Optional<ContentFilter> filter;
+    private final BundleBudget budget;
+    private final int bufferSize;
+    private final int window;
+    private final ExecutorService executor;
+    @CheckForNull
+    private final ExecutorService compressor;
+    private final Deque<CompletableFuture<Rendered>> pending = new ArrayDeque<>();
+    @GuardedBy("unclaimed")
+    private final Set<Rendered> unclaimed = new HashSet<>();
+    @GuardedBy("unclaimed")
+    private boolean closed;
+    private final Authentication authentication;
+    private final Authentication requesterAuthentication;
+    @CheckForNull
+    private final BundleThrottle throttle;
+    @CheckForNull
+    private final ScheduledFuture<?> expiry;
+
+    /**
+     * @param contents   the contents to render, in the order they should be returned
+     * @param filter     the filter to apply to contents that {@linkplain Content#shouldBeFiltered() should be filtered}
+     * @param budget     the time allowed to render the contents
+     * @param threads           how many contents may be rendered concurrently
+     * @param compressionThreads how many rendered contents may be deflated concurrently, {@code 0} leaves compression
+     *                           to the archive writer
+     * @param bufferSize        how many bytes of a rendered content are kept in memory before spilling to disk
+     */
+    ContentRenderer(@Nonnull List<Content> contents, @Nonnull Optional<ContentFilter> filter,
+                    @Nonnull BundleBudget budget, int threads, int compressionThreads, int bufferSize) {
+        this.remaining = contents.iterator();
+        this.filter = filter;
+        this.budget = budget;
+        this.bufferSize = bufferSize;
+        // keep the workers busy while the writer drains an entry without buffering the whole bundle
+        this.window = Math.max(threads, compressionThreads) * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new ExceptionCatchingThreadFactory(
+                new NamingThreadFactory(new DaemonThreadFactory(), ContentRenderer.class.getSimpleName())));
+        this.compressor = compressionThreads <= 0 ? null : Executors.newFixedThreadPool(compressionThreads,
+                new ExceptionCatchingThreadFactory(new NamingThreadFactory(new DaemonThreadFactory(),
+                        ContentRenderer.class.getSimpleName() + ".compressor")));
+        this.authentication = Jenkins.getAuthentication();
+        this.requesterAuthentication = SupportPlugin.getRequesterAuthentication();
+        this.throttle = BundleThrottle.current();
+        long timeout = budget.remainingNanos();
+        // contents still waiting for a worker when the bundle runs out of time are not waited for
+        this.expiry = timeout == Long.MAX_VALUE ? null : Timer.get().schedule(this::expire, timeout, TimeUnit.NANOSECONDS);
+        submitPending();
+    }
+
+    /**
+     * @return the compression level requested by the content, if it is a valid {@link Deflater} level
+     */
+    static int compressionLevelOf(@Nonnull Content content) {
+        int level = content.getCompressionLevel();
+        return level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION
+                ? Deflater.DEFAULT_COMPRESSION : level;
+    }
+
+    private void submitPending() {
+        while (pending.size() < window && remaining.hasNext()) {
+            Content content = remaining.next();
+            if (content != null) {
+                Rendered rendered = new Rendered(content, budget.of(content), bufferSize);
+                synchronized (unclaimed) {
+                    unclaimed.add(rendered);
+                }
+                if (budget.remainingNanos() > 0) {
+                    executor.execute(() -> render(rendered));
+                } else {
+                    rendered.truncate();
+                }
+                CompletableFuture<Rendered> future = rendered.done;
+                if (compressor != null) {
+                    future = future.thenApplyAsync(Rendered::deflate, compressor);
+                }
+                pending.add(future);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if there are more rendered contents to retrieve
+     */
+    boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Waits for the next content in submission order to be rendered. The caller is responsible for closing it.
+     *
+     * @return the next rendered content
+     * @throws IOException if interrupted while waiting for the content to be rendered
+     */
+    @Nonnull
+    Rendered next() throws IOException {
+        CompletableFuture<Rendered> future = pending.remove();
+        try {
+            Rendered rendered = future.get();
+            synchronized (unclaimed) {
+                unclaimed.remove(rendered);
+            }
+            return rendered;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("Interrupted while rendering support bundle").initCause(e);
+        } catch (ExecutionException e) {
+            // render() and deflate() handle their own failures, so this is unexpected
+            throw new IOException(e.getCause());
+        } finally {
+            submitPending();
+        }
+    }
+
+    private void render(Rendered rendered) {
+        long allowed = rendered.budget.remainingNanos();
+        if (allowed <= 0) {
+            rendered.truncate();
+            return;
+        }
+        if (!rendered.start()) {
+            return;
+        }
+        long start = System.nanoTime();
+        ScheduledFuture<?> watchdog = allowed == Long.MAX_VALUE ? null
+                : Timer.get().schedule(rendered::truncate, allowed, TimeUnit.NANOSECONDS);
+        Content content = rendered.getContent();
+        SupportPlugin.setRequesterAuthentication(requesterAuthentication);
+        BundleThrottle.setCurrent(throttle);
+        SecurityContext old = ACL.impersonate(authentication);
+        // ContentMappings are saved once by the archive writer rather than by every worker that creates a mapping
+        try (BulkChange ignored = new BulkChange(ContentMappings.get())) {
+            OutputStream buffer = rendered.getOutputStream();
+            OutputStream out;
+            if (content.shouldBeFiltered()) {
+                rendered.filterTimer = filter.map(BundleProfile.FilterTimer::new).orElse(null);
+                OutputStream textOut = rendered.filterTimer == null ? buffer
+                        : SupportPlugin.newFilteredOutputStream(buffer, rendered.filterTimer);
+                out = new IgnoreCloseOutputStream(new OutputStreamSelector(() -> buffer, () -> textOut));
+            } else {
+                out = new IgnoreCloseOutputStream(buffer);
+            }
+            // contents of a throttled bundle are held back as they are written rather than each throttling its reads
+            content.writeTo(BundleThrottle.throttle(out));
+            out.flush();
+        } catch (Throwable e) {
+            rendered.fail(e);
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+            rendered.budget.spent(System.nanoTime() - start);
+            SecurityContextHolder.setContext(old);
+            SupportPlugin.clearRequesterAuthentication();
+            BundleThrottle.setCurrent(null);
+            rendered.finish();
+        }
+    }
+
+    private void expire() {
+        List<Rendered> expired;
+        synchronized (unclaimed) {
+            expired = new ArrayList<>(unclaimed);
+        }
+        expired.forEach(Rendered::truncate);
+    }
+
+    /**
+     * Stops rendering and discards any rendered content that has not been retrieved yet.
+     */
+    @Override
+    public void close() {
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        executor.shutdownNow();
+        if (compressor != null) {
+            compressor.shutdownNow();
+        }
+        synchronized (unclaimed) {
+            closed = true;
+            // workers still writing into a closed content fail fast instead of spilling to disk
+            unclaimed.forEach(Rendered::close);
+            unclaimed.clear();
+        }
+        pending.forEach(future -> future.cancel(true));
+        pending.clear();
+    }
+
+    /**
+     * The rendered output of a {@link Content}.
+     */
+    static final class Rendered implements Closeable {
+        private final Content content;
+        private final BundleBudget.ComponentBudget budget;
+        private final int bufferSize;
+        /**
+         * Completed once rendering finished or was cut short.
+         */
+        private final CompletableFuture<Rendered> done = new CompletableFuture<>();
+        @GuardedBy("this")
+        private DeferredFileOutputStream buffer;
+        @GuardedBy("this")
+        private boolean closed;
+        @GuardedBy("this")
+        private boolean finished;
+        @GuardedBy("this")
+        private boolean truncated;
+        @GuardedBy("this")
+        private Thread worker;
+        @GuardedBy("this")
+        private boolean started;
+        @GuardedBy("this")
+        private long startNanos;
+        @GuardedBy("this")
+        private long renderNanos;
+        private volatile BundleProfile.FilterTimer filterTimer;
+        @GuardedBy("this")
+        private Throwable error;
+        @GuardedBy("this")
+        private final CRC32 crc = new CRC32();
+        @GuardedBy("this")
+        private final byte[] head = new byte[SIGNATURE_LENGTH];
+        @GuardedBy("this")
+        private int headLength;
+        @GuardedBy("this")
+        private long size;
+        @GuardedBy("this")
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        /**
+         * Set once {@link #buffer} holds the deflated output rather than the rendered output.
+         */
+        @GuardedBy("this")
+        private boolean deflated;
+
+        private Rendered(Content content, BundleBudget.ComponentBudget budget, int bufferSize) {
+            this.content = content;
+            this.budget = budget;
+            this.bufferSize = bufferSize;
+            this.buffer = new DeferredFileOutputStream(bufferSize, "support-bundle-", ".tmp", null);
+        }
+
+        /**
+         * @return the content that was rendered
+         */
+        @Nonnull
+        Content getContent() {
+            return content;
+        }
+
+        /**
+         * @return the failure raised while rendering, in which case only the output written before it is available
+         */
+        @CheckForNull
+        synchronized Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return {@code true} if rendering was cut short as it ran out of time
+         */
+        synchronized boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * @return how long rendering took, up to when it was cut short if it ran out of time
+         */
+        synchronized long getRenderNanos() {
+            return renderNanos;
+        }
+
+        /**
+         * @return how much of the rendering time was spent filtering the content
+         */
+        long getFilterNanos() {
+            BundleProfile.FilterTimer timer = filterTimer;
+            return timer == null ? 0 : timer.getNanos();
+        }
+
+        /**
+         * Provides a view of the buffer that stops accepting writes once this is closed, so that a worker which is
+         * still running cannot spill a discarded content to disk.
+         */
+        private OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                    synchronized (Rendered.this) {
+                        ensureOpen();
+                        if (finished) {
+                            throw new IOException("Rendering of " + content.getName() + " has been cut short");
+                        }
+                        append(b, off, len);
+                    }
+                }
+            };
+        }
+
+        @GuardedBy("this")
+        private void append(byte[] b, int off, int len) throws IOException {
+            buffer.write(b, off, len);
+            crc.update(b, off, len);
+            int n = Math.min(len, head.length - headLength);
+            System.arraycopy(b, off, head, headLength, n);
+            headLength += n;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Rendered content of " + content.getName() + " has been discarded");
+            }
+        }
+
+        /**
+         * Registers the current thread as the one rendering this content.
+         *
+         * @return {@code false} if this content should not be rendered anymore
+         */
+        private synchronized boolean start() {
+            if (closed || finished) {
+                return false;
+            }
+            worker = Thread.currentThread();
+            started = true;
+            startNanos = System.nanoTime();
+            return true;
+        }
+
+        private synchronized void fail(Throwable e) {
+            // a worker cut short fails on its next write, which is not worth reporting
+            if (!truncated && error == null) {
+                error = e;
+            }
+        }
+
+        /**
+         * Called by the worker once rendering is over.
+         */
+        private void finish() {
+            synchronized (this) {
+                worker = null;
+                complete();
+            }
+            // an interruption meant to cut this content short must not affect the next content rendered by the worker
+            Thread.interrupted();
+        }
+
+        /**
+         * Cuts rendering short, keeping what was rendered so far followed by a warning.
+         */
+        private void truncate() {
+            synchronized (this) {
+                if (closed || finished) {
+                    return;
+                }
+                truncated = true;
+                // recorded before the content is handed over, so that the manifest written afterwards lists it
+                budget.exceeded();
+                // binary output would be corrupted by the marker, so its truncation is only recorded in the profile
+                if (isText()) {
+                    try {
+                        append(TRUNCATED_MARKER, 0, TRUNCATED_MARKER.length);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Could not mark " + content.getName() + " as truncated", e);
+                    }
+                }
+                complete();
+                if (worker != null) {
+                    worker.interrupt();
+                }
+            }
+            LOGGER.log(Level.WARNING, "Rendering of {0} exceeded the time allowed to generate the support bundle",
+                    content.getName());
+        }
+
+        @GuardedBy("this")
+        private void complete() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (started) {
+                renderNanos = System.nanoTime() - startNanos;
+            }
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            size = buffer.getByteCount();
+            level = isCompressed(head, headLength) ? Deflater.NO_COMPRESSION : compressionLevelOf(content);
+            done.complete(this);
+        }
+
+        /**
+         * Replaces the rendered output with its deflated form. The rendered output is kept if compression fails, in
+         * which case the archive writer deflates it instead.
+         */
+        private Rendered deflate() {
+            DeferredFileOutputStream source;
+            int level;
+            synchronized (this) {
+                if (closed || this.level == Deflater.NO_COMPRESSION) {
+                    return this;
+                }
+                source = buffer;
+                level = this.level;
+            }
+            // compress outside of the lock so that discarding this content does not wait for the compression
+            DeferredFileOutputStream target = new DeferredFileOutputStream(bufferSize, "support-bundle-", ".deflated", null);
+            try (InputStream in = openInputStream(source);
+                 StreamCompressor compressor = StreamCompressor.create(level, new BackingStore(target))) {
+                compressor.deflate(in, ZipEntry.DEFLATED);
+                target.close();
+                synchronized (this) {
+                    if (!closed) {
+                        buffer = target;
+                        deflated = true;
+                        target = source;
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not deflate rendered content of " + content.getName(), e);
+            } finally {
+                discard(target);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the rendered output to the archive as the provided entry, copying it as is if it is stored or was
+         * already deflated.
+         */
+        synchronized void writeTo(@Nonnull ZipArchiveOutputStream out, @Nonnull ZipArchiveEntry entry) throws IOException {
+            ensureOpen();
+            if (level == Deflater.NO_COMPRESSION || deflated) {
+                entry.setMethod(deflated ? ZipEntry.DEFLATED : ZipEntry.STORED);
+                entry.setCrc(crc.getValue());
+                entry.setSize(size);
+                entry.setCompressedSize(buffer.getByteCount());
+                try (InputStream in = openInputStream(buffer)) {
+                    out.addRawArchiveEntry(entry, in);
+                }
+            } else {
+                out.setLevel(level);
+                try {
+                    out.putArchiveEntry(entry);
+                } finally {
+                    out.setLevel(Deflater.DEFAULT_COMPRESSION);
+                }
+                try {
+                    buffer.writeTo(out);
+                } finally {
+                    out.closeArchiveEntry();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            discard(buffer);
+        }
+
+        private void discard(DeferredFileOutputStream buffer) {
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not close rendered content of " + content.getName(), e);
+            }
+            File file = buffer.getFile();
+            if (!buffer.isInMemory() && file != null && file.exists() && !file.delete()) {
+                LOGGER.log(Level.WARNING, "Could not delete temporary file {0}", file);
+            }
+        }
+
+        /**
+         * Checks whether the output rendered so far looks textual, probing it as {@link OutputStreamSelector} does.
+         */
+        @GuardedBy("this")
+        private boolean isText() {
+            if (compressionLevelOf(content) == Deflater.NO_COMPRESSION || isCompressed(head, headLength)) {
+                return false;
+            }
+            for (int i = 0; i < headLength; i++) {
+                char c = (char) (head[i] & 0xff);
+                if (Character.isISOControl(c) && c != '\t' && c != '\n' && c != '\r') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Checks whether the output starts with the signature of a format that would not benefit from deflating.
+         */
+        private static boolean isCompressed(byte[] head, int length) {
+            for (byte[] signature : COMPRESSED_SIGNATURES) {
+                if (length >= signature.length && startsWith(head, signature)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean startsWith(byte[] head, byte[] signature) {
+            for (int i = 0; i < signature.length; i++) {
+                if (head[i] != signature[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static InputStream openInputStream(DeferredFileOutputStream buffer) throws IOException {
+            return buffer.isInMemory() ? new ByteArrayInputStream(buffer.getData()) : new FileInputStream(buffer.getFile());
+        }
+    }
+
+    /**
+     * Collects the output of a {@link StreamCompressor} in a buffer owned by a {@link Rendered}.
+     */
+    private static final class BackingStore implements ScatterGatherBackingStore {
+        private final DeferredFileOutputStream buffer;
+
+        private BackingStore(DeferredFileOutputStream buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Rendered.openInputStream(buffer);
+        }
+
+        @Override
+        public void writeOut(byte[] data, int offset, int length) throws IOException {
+            buffer.write(data, offset, length);
+        }
+
+        @Override
+        public void closeForWriting() throws IOException {
+            buffer.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the buffer outlives the compressor and is discarded by its owner
+        }
+    }
+}
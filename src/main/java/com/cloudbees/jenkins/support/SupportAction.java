@@ -44,12 +44,16 @@ import org.kohsuke.stapler.interceptor.RequirePOST;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -110,14 +114,11 @@ public class SupportAction implements RootAction {
 
     public List<String> getBundles() {
         List<String> res = new ArrayList<>();
-        File rootDirectory = SupportPlugin.getRootDirectory();
-        File[] bundlesFiles = rootDirectory.listFiles((dir, name) -> name.endsWith(".zip") || name.endsWith(".log"));
-        if (bundlesFiles != null) {
-            for (File bundleFile : bundlesFiles) {
-                res.add(bundleFile.getName());
-            }
+        BundleIndex index = BundleIndex.get();
+        for (BundleIndex.Bundle bundle : index.getBundles()) {
+            res.add(bundle.getName());
         }
-
+        res.addAll(index.getLogs());
         return res;
     }
 
@@ -138,18 +139,14 @@ public class SupportAction implements RootAction {
                 bundlesToDelete.add(s.getName());
             }
         }
-        File rootDirectory = SupportPlugin.getRootDirectory();
-        for(String bundleToDelete : bundlesToDelete) {
-            File fileToDelete = new File(rootDirectory, bundleToDelete);
-            logger.fine("Trying to delete bundle file "+ fileToDelete.getAbsolutePath());
-            try {
-                if (fileToDelete.delete()) {
-                    logger.info("Bundle " + fileToDelete.getAbsolutePath() + " successfully delete.");
-                } else {
-                    logger.log(Level.SEVERE, "Unable to delete file " + fileToDelete.getAbsolutePath());
-                }
-            } catch (RuntimeException e) {
-                    logger.log(Level.SEVERE, "Unable to delete file " + fileToDelete.getAbsolutePath(), e);
+        BundleIndex index = BundleIndex.get();
+        for (String bundleToDelete : bundlesToDelete) {
+            logger.fine("Trying to delete bundle " + bundleToDelete);
+            // only bundles known to the index can be deleted, whatever name was submitted
+            if (index.delete(bundleToDelete)) {
+                logger.info("Bundle " + bundleToDelete + " successfully deleted.");
+            } else {
+                logger.log(Level.SEVERE, "Unable to delete bundle " + bundleToDelete);
             }
         }
         rsp.sendRedirect("");
@@ -167,6 +164,14 @@ public class SupportAction implements RootAction {
         doGenerateAllBundles(req, rsp);
     }
 
+    /**
+     * Generates a bundle of the selected components and streams it back, without storing it.
+     * <p>
+     * If a {@link BundleJob} is already generating the same bundle, or has just done so, the request waits for it and
+     * downloads its stored archive instead, so that concurrent requests do not each collect every component again.
+     * Clients which should not hold a request open while the components are collected use
+     * {@link #doStartBundle} instead.
+     */
     @RequirePOST
     public void doGenerateAllBundles(StaplerRequest req, StaplerResponse rsp) throws ServletException, IOException {
         final Jenkins instance = Jenkins.get();
@@ -192,6 +197,11 @@ public class SupportAction implements RootAction {
         if (supportPlugin != null) {
             supportPlugin.setExcludedComponents(remove);
         }
+        BundleJob job = BundleJob.joinShared(components);
+        if (job != null) {
+            downloadShared(rsp, job);
+            return;
+        }
         logger.fine("Preparing response...");
         rsp.setContentType("application/zip");
 
@@ -216,6 +226,123 @@ public class SupportAction implements RootAction {
         }
     }
 
+    /**
+     * Waits for a job generating the requested bundle and sends back its archive once complete.
+     */
+    private void downloadShared(StaplerResponse rsp, BundleJob job) throws IOException {
+        logger.log(Level.FINE, "Waiting for support bundle job {0}", job.getId());
+        try {
+            if (job.await() != BundleJob.State.COMPLETED) {
+                logger.log(Level.FINE, "Support bundle job " + job.getId() + " was " + job.getState(), job.getFailure());
+                rsp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Support bundle was " + job.getState());
+                return;
+            }
+        } catch (InterruptedException e) {
+            job.cancel(Jenkins.getAuthentication());
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("Interrupted while waiting for support bundle").initCause(e);
+        }
+        logger.fine("Preparing response...");
+        rsp.setContentType("application/zip");
+
+        rsp.addHeader("Content-Disposition", "inline; filename=" + job.getFile().getName() + ";");
+        try {
+            Files.copy(job.getFile().toPath(), rsp.getOutputStream());
+        } catch (IOException e) {
+            logger.log(Level.FINE, e.getMessage(), e);
+        } finally {
+            logger.fine("Response completed");
+        }
+    }
+
+    /**
+     * Starts generating a bundle in the background, rather than within the request.
+     * <p>
+     * The bundle includes the components named by the {@code component} parameters, or those selected by default if
+     * there are none. Responds with the progress of the job, as served by {@link BundleJob}, and its location.
+     */
+    @RequirePOST
+    public void doStartBundle(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final Jenkins instance = Jenkins.get();
+        instance.getAuthorizationStrategy().getACL(instance).checkPermission(CREATE_BUNDLE);
+
+        String[] ids = req.getParameterValues("component");
+        final List<Component> components = new ArrayList<>();
+        if (ids == null) {
+            for (Component c : getComponents()) {
+                if (c.isEnabled() && selectedByDefault(c)) {
+                    components.add(c);
+                }
+            }
+        } else {
+            Set<String> requested = new HashSet<>(Arrays.asList(ids));
+            for (Component c : getComponents()) {
+                if (requested.remove(c.getId()) && c.isEnabled()) {
+                    components.add(c);
+                }
+            }
+            if (!requested.isEmpty()) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown components: " + requested);
+                return;
+            }
+        }
+        BundleJob job;
+        try {
+            job = BundleJob.join(components);
+        } catch (RejectedExecutionException e) {
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many support bundles are being generated");
+            return;
+        }
+        logger.log(Level.FINE, "Started support bundle job {0}", job.getId());
+        writeAccepted(req, rsp, job);
+    }
+
+    private void writeAccepted(StaplerRequest req, StaplerResponse rsp, BundleJob job) throws IOException {
+        rsp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        rsp.setHeader("Location", req.getContextPath() + "/" + getUrlName() + "/job/" + job.getId() + "/");
+        BundleJob.writeJSON(rsp, job.toJSON());
+    }
+
+    /**
+     * Starts anonymizing the stored bundle named by the {@code bundle} parameter, such as one generated while
+     * anonymization was disabled, in the background. The anonymized copy is stored next to it. Responds with the
+     * progress of the job, as served by {@link BundleJob}, and its location.
+     */
+    @RequirePOST
+    public void doAnonymizeBundle(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final Jenkins instance = Jenkins.get();
+        instance.getAuthorizationStrategy().getACL(instance).checkPermission(CREATE_BUNDLE);
+
+        String name = req.getParameter("bundle");
+        if (name == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No bundle given");
+            return;
+        }
+        BundleJob job;
+        try {
+            job = BundleJob.anonymize(name);
+        } catch (FileNotFoundException e) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (RejectedExecutionException e) {
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many support bundles are being generated");
+            return;
+        }
+        logger.log(Level.FINE, "Started support bundle job {0} anonymizing {1}", new Object[] {job.getId(), name});
+        writeAccepted(req, rsp, job);
+    }
+
+    /**
+     * Binds {@code job/<id>/} to a bundle job started by {@link #doStartBundle}.
+     */
+    @SuppressWarnings("unused") // used by Stapler
+    public BundleJob getJob(String id) {
+        return BundleJob.get(id);
+    }
+
     public boolean selectedByDefault(Component c) {
         SupportPlugin supportPlugin = SupportPlugin.getInstance();
         return c.isSelectedByDefault() && (supportPlugin == null || !supportPlugin.getExcludedComponents().contains(c.getId()));
@@ -38,6 +38,7 @@ import org.kohsuke.args4j.Argument;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
@@ -78,17 +79,16 @@ public class SupportCommand extends CLICommand {
                 selected.add(c);
             }
         }
+        BundleJob job = BundleJob.joinShared(selected);
+        if (job != null) {
+            downloadShared(job);
+            return 0;
+        }
         SupportPlugin.setRequesterAuthentication(Jenkins.getAuthentication());
         try {
             SecurityContext old = ACL.impersonate(ACL.SYSTEM);
             try {
-                OutputStream os;
-                if (channel != null) { // Remoting mode
-                    os = channel.call(new SaveBundle(SupportPlugin.getBundleFileName()));
-                } else { // redirect output to a ZIP file yourself
-                    os = new CloseProofOutputStream(stdout);
-                }
-                SupportPlugin.writeBundle(os, selected);
+                SupportPlugin.writeBundle(open(SupportPlugin.getBundleFileName()), selected);
             } finally {
                 SecurityContextHolder.setContext(old);
             }
@@ -98,6 +98,34 @@ public class SupportCommand extends CLICommand {
         return 0;
     }
 
+    /**
+     * Waits for a job already generating the requested bundle, or which has just done so, and sends back its archive
+     * rather than collecting every component again.
+     */
+    private void downloadShared(BundleJob job) throws IOException, InterruptedException {
+        try {
+            BundleJob.State state = job.await();
+            if (state != BundleJob.State.COMPLETED) {
+                throw new IOException("Support bundle " + job.getFile().getName() + " was " + state, job.getFailure());
+            }
+        } catch (InterruptedException e) {
+            job.cancel(Jenkins.getAuthentication());
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("Interrupted while waiting for support bundle").initCause(e);
+        }
+        try (OutputStream os = open(job.getFile().getName())) {
+            Files.copy(job.getFile().toPath(), os);
+        }
+    }
+
+    private OutputStream open(String filename) throws IOException, InterruptedException {
+        if (channel != null) { // Remoting mode
+            return channel.call(new SaveBundle(filename));
+        } else { // redirect output to a ZIP file yourself
+            return new CloseProofOutputStream(stdout);
+        }
+    }
+
     private static class SaveBundle extends MasterToSlaveCallable<OutputStream, IOException> {
         private final String filename;
 
@@ -24,7 +24,10 @@
 
 package com.cloudbees.jenkins.support;
 
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
 import hudson.util.IOUtils;
+import hudson.util.NamingThreadFactory;
 import net.jcip.annotations.GuardedBy;
 
 import java.io.BufferedOutputStream;
@@ -42,25 +45,111 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.ErrorManager;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 
 /**
  * A log handler that rotates files.
+ * <p>
+ * Records are kept in memory as they are published, but writing them to the file is left to a dedicated thread so
+ * that logging threads never wait on the disk. Formatted records are handed over through a bounded queue, and written
+ * in batches flushed every {@link #FLUSH_MILLIS} or once {@link #BATCH_CHARS} characters are waiting. When the queue
+ * is full, records are either dropped and counted or the logging thread waits for room, as {@link #OVERFLOW} says.
  *
  * @author Stephen Connolly
  */
 public class SupportLogHandler extends Handler {
 
+    /**
+     * How many formatted records may wait to be written to the file.
+     */
+    static final int QUEUE_CAPACITY = Math.max(1,
+            Integer.getInteger(SupportLogHandler.class.getName() + ".QUEUE_CAPACITY", 8192));
+
+    /**
+     * How long, in milliseconds, formatted records may wait before being written to the file.
+     */
+    static final int FLUSH_MILLIS = Math.max(1,
+            Integer.getInteger(SupportLogHandler.class.getName() + ".FLUSH_MILLIS", 1000));
+
+    /**
+     * How many characters of formatted records may wait before they are written to the file without waiting for
+     * {@link #FLUSH_MILLIS}.
+     */
+    static final int BATCH_CHARS = Math.max(1,
+            Integer.getInteger(SupportLogHandler.class.getName() + ".BATCH_CHARS", 64 * 1024));
+
+    /**
+     * What to do with records published while {@link #QUEUE_CAPACITY} records are already waiting to be written,
+     * either {@code drop} or {@code block}.
+     */
+    static final Overflow OVERFLOW = Overflow.parse(
+            System.getProperty(SupportLogHandler.class.getName() + ".OVERFLOW"), Overflow.DROP);
+
+    /**
+     * What to do with records published when the queue of records waiting to be written is full.
+     */
+    enum Overflow {
+        /** Leaves the record out of the file, counting it in {@link #getDroppedCount()}. */
+        DROP,
+        /** Waits for the writer thread to make room. */
+        BLOCK;
+
+        static Overflow parse(String value, Overflow defaultValue) {
+            if (value != null) {
+                for (Overflow overflow : values()) {
+                    if (overflow.name().equals(value.toUpperCase(Locale.ENGLISH))) {
+                        return overflow;
+                    }
+                }
+            }
+            return defaultValue;
+        }
+    }
+
+    private static final ThreadFactory WRITER_THREADS = new ExceptionCatchingThreadFactory(
+            new NamingThreadFactory(new DaemonThreadFactory(), SupportLogHandler.class.getSimpleName() + ".writer"));
+
+    private final Lock recordsLock = new ReentrantLock();
     private final Lock outputLock = new ReentrantLock();
     private final int fileSize;
-    @GuardedBy("outputLock")
+    @GuardedBy("recordsLock")
     private final LogRecord[] records;
+    @GuardedBy("recordsLock")
+    private int position, count;
     @GuardedBy("outputLock")
-    private int position, count, fileCount;
+    private int fileCount;
+    private final Overflow overflow;
+    private final long flushNanos;
+    private final int batchChars;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * Room left in {@link #queue}, taken before adding records so that it stays bounded, and given back by the writer
+     * thread as it writes them.
+     */
+    private final Semaphore room;
+    /**
+     * How many logging threads wait for {@link #room}, which the writer thread is woken up for.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong queuedChars = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    @GuardedBy("outputLock")
+    private long reportedDropped;
+    private volatile Thread writerThread;
     @GuardedBy("outputLock")
     private Writer writer;
     @GuardedBy("outputLock")
@@ -70,6 +159,15 @@ public class SupportLogHandler extends Handler {
     private final int maxFiles;
 
     public SupportLogHandler(int size, int fileSize, int maxFiles) {
+        this(size, fileSize, maxFiles, QUEUE_CAPACITY, OVERFLOW, FLUSH_MILLIS, BATCH_CHARS);
+    }
+
+    SupportLogHandler(int size, int fileSize, int maxFiles, int queueCapacity, Overflow overflow, int flushMillis,
+                      int batchChars) {
+        this.room = new Semaphore(queueCapacity);
+        this.overflow = overflow;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.batchChars = batchChars;
         this.maxFiles = maxFiles;
         records = new LogRecord[size];
         position = 0;
@@ -87,6 +185,11 @@ public class SupportLogHandler extends Handler {
             logDirectry = directory;
             logFilePrefix = namePrefix;
             rollOver();
+            if (writerThread == null) {
+                Thread thread = WRITER_THREADS.newThread(this::writeLoop);
+                writerThread = thread;
+                thread.start();
+            }
         } finally {
             outputLock.unlock();
         }
@@ -100,7 +203,7 @@ public class SupportLogHandler extends Handler {
         } catch (Exception e) {
             formatted = null;
         }
-        outputLock.lock();
+        recordsLock.lock();
         try {
             int maxCount = records.length;
             records[(position + count) % maxCount] = record;
@@ -109,24 +212,121 @@ public class SupportLogHandler extends Handler {
             } else {
                 count++;
             }
-            if (formatted != null) {
-                if (writer != null) {
-                    if (fileCount > fileSize) {
-                        rollOver();
-                    }
-                    if (writer != null) {
-                        try {
-                            fileCount++;
-                            writer.write(formatted);
-                            flush();
-                        } catch (IOException e) {
-                            // ignore
-                        }
-                    }
+        } finally {
+            recordsLock.unlock();
+        }
+        Thread thread = writerThread;
+        if (formatted != null && thread != null) {
+            enqueue(formatted, thread);
+        }
+    }
+
+    private void enqueue(String formatted, Thread thread) {
+        if (!room.tryAcquire() && (overflow == Overflow.DROP || thread == Thread.currentThread() || !awaitRoom(thread))) {
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(formatted);
+        long chars = queuedChars.addAndGet(formatted.length());
+        // a thread waiting for room may have woken up the writer thread before this record was added
+        if (chars >= batchChars && chars - formatted.length() < batchChars || waiting.get() > 0) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Waits for the writer thread to make room in the queue.
+     *
+     * @return {@code false} if the handler was closed or the logging thread interrupted in the meantime
+     */
+    private boolean awaitRoom(Thread thread) {
+        waiting.incrementAndGet();
+        try {
+            if (room.tryAcquire()) {
+                return true;
+            }
+            LockSupport.unpark(thread);
+            // checking now and then whether the handler was closed, as nothing is written any more once it is
+            while (!room.tryAcquire(flushNanos, TimeUnit.NANOSECONDS)) {
+                if (writerThread == null) {
+                    return false;
                 }
             }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } finally {
-            outputLock.unlock();
+            waiting.decrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (writerThread == Thread.currentThread()) {
+                LockSupport.parkNanos(this, flushNanos);
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    // the records being written are lost, but the next ones are still written
+                    reportError("Could not write log records", e, ErrorManager.WRITE_FAILURE);
+                }
+            }
+        } finally {
+            // once nothing writes records any more, logging threads must neither queue them nor wait for room
+            if (writerThread == Thread.currentThread()) {
+                writerThread = null;
+            }
+        }
+    }
+
+    /**
+     * @return how many records were left out of the file as the queue of records waiting to be written was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the records waiting in the queue.
+     */
+    @GuardedBy("outputLock")
+    private void drain() {
+        long lost = dropped.get();
+        if (lost > reportedDropped && writer != null) {
+            write(String.format("%d log records were dropped as they were published faster than they could be written%n",
+                    lost - reportedDropped));
+            reportedDropped = lost;
+        }
+        long chars = 0;
+        int written = 0;
+        try {
+            String formatted;
+            while ((formatted = queue.poll()) != null) {
+                written++;
+                chars += formatted.length();
+                write(formatted);
+            }
+        } finally {
+            queuedChars.addAndGet(-chars);
+            room.release(written);
+        }
+    }
+
+    @GuardedBy("outputLock")
+    private void write(String formatted) {
+        if (writer != null) {
+            if (fileCount > fileSize) {
+                rollOver();
+            }
+            if (writer != null) {
+                try {
+                    fileCount++;
+                    writer.write(formatted);
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
         }
     }
 
@@ -165,10 +365,14 @@ public class SupportLogHandler extends Handler {
         }
     }
 
+    /**
+     * Writes the records waiting to be written and flushes the file.
+     */
     @Override
     public void flush() {
         outputLock.lock();
         try {
+            drain();
             if (writer != null) {
                 try {
                     writer.flush();
@@ -183,8 +387,14 @@ public class SupportLogHandler extends Handler {
 
     @Override
     public void close() throws SecurityException {
+        Thread thread = writerThread;
+        writerThread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
         outputLock.lock();
         try {
+            drain();
             if (writer != null) {
                 IOUtils.closeQuietly(writer);
                 writer = null;
@@ -195,7 +405,7 @@ public class SupportLogHandler extends Handler {
     }
 
     public List<LogRecord> getRecent() {
-        outputLock.lock();
+        recordsLock.lock();
         try {
             List<LogRecord> result = new ArrayList<LogRecord>(count);
             for (int i = 0; i < count; i++) {
@@ -203,7 +413,7 @@ public class SupportLogHandler extends Handler {
             }
             return result;
         } finally {
-            outputLock.unlock();
+            recordsLock.unlock();
         }
     }
 
@@ -25,7 +25,6 @@
 package com.cloudbees.jenkins.support;
 
 import com.cloudbees.jenkins.support.api.Component;
-import com.cloudbees.jenkins.support.api.Container;
 import com.cloudbees.jenkins.support.api.Content;
 import com.cloudbees.jenkins.support.api.StringContent;
 import com.cloudbees.jenkins.support.api.SupportProvider;
@@ -79,6 +78,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
@@ -87,15 +87,17 @@ import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 import java.util.WeakHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
@@ -103,6 +105,7 @@ import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 /**
  * Main entry point for the support plugin.
@@ -130,6 +133,143 @@ public class SupportPlugin extends Plugin {
     public static final int AUTO_BUNDLE_PERIOD_HOURS =
             Math.max(Math.min(24, Integer.getInteger(SupportPlugin.class.getName() + ".AUTO_BUNDLE_PERIOD_HOURS", 1)), 0);
 
+    /**
+     * How many of the newest bundles requested by users, and of the anonymized copies of stored bundles, are kept in
+     * {@link #getRootDirectory()}. {@code 0} for no limit. Bundles generated periodically are kept by age instead.
+     */
+    public static final int RETAINED_BUNDLES_PER_TRIGGER = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".RETAINED_BUNDLES_PER_TRIGGER", 32));
+
+    /**
+     * How many bundles are kept in {@link #getRootDirectory()} in all. {@code 0} for no limit.
+     */
+    public static final int RETAINED_BUNDLES = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".RETAINED_BUNDLES", 0));
+
+    /**
+     * How many bytes of bundles are kept in {@link #getRootDirectory()} in all, the newest bundle being kept whatever
+     * its size. {@code 0} for no limit.
+     */
+    public static final long RETAINED_BUNDLES_BYTES = Math.max(0,
+            Long.getLong(SupportPlugin.class.getName() + ".RETAINED_BUNDLES_BYTES", 0));
+
+    /**
+     * How many bytes per second the periodic bundle generation may read and write. {@code 0} for no limit.
+     */
+    public static final long AUTO_BUNDLE_BYTES_PER_SECOND = Math.max(0,
+            Long.getLong(SupportPlugin.class.getName() + ".AUTO_BUNDLE_BYTES_PER_SECOND", 0));
+
+    /**
+     * Which percentage of the time each thread of the periodic bundle generation may keep a CPU busy.
+     */
+    public static final int AUTO_BUNDLE_CPU_PERCENT = Math.max(1, Math.min(100,
+            Integer.getInteger(SupportPlugin.class.getName() + ".AUTO_BUNDLE_CPU_PERCENT", 100)));
+
+    /**
+     * How long, in milliseconds, a request may have been running before the periodic bundle generation pauses until
+     * it is over. Downloads and streams, such as the CLI or build logs, are not counted. {@code 0} not to pause for
+     * slow requests.
+     *
+     * @see BundleThrottle
+     */
+    public static final long AUTO_BUNDLE_PAUSE_REQUEST_MILLIS = Math.max(0,
+            Long.getLong(SupportPlugin.class.getName() + ".AUTO_BUNDLE_PAUSE_REQUEST_MILLIS", 0));
+
+    /**
+     * How many items may be waiting in the build queue before the periodic bundle generation pauses until there are
+     * fewer. {@code 0} not to pause for the queue.
+     *
+     * @see BundleThrottle
+     */
+    public static final int AUTO_BUNDLE_PAUSE_QUEUE_LENGTH = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".AUTO_BUNDLE_PAUSE_QUEUE_LENGTH", 0));
+
+    /**
+     * How many bundle contents can be rendered concurrently ahead of the archive writer. {@code 0} writes each
+     * content straight into the archive from the thread generating the bundle, and is the default.
+     * <p>
+     * Otherwise {@link Content#writeTo} is called from worker threads, concurrently for several contents, so this
+     * should only be set where the contents of every installed {@link Component} are safe to write that way, for
+     * instance because they do not share state with one another.
+     */
+    public static final int BUNDLE_RENDER_THREADS = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".BUNDLE_RENDER_THREADS", 0));
+
+    /**
+     * How many rendered bundle contents can be deflated concurrently before being copied into the archive. {@code 0}
+     * leaves compression to the thread writing the archive.
+     */
+    public static final int BUNDLE_COMPRESSION_THREADS = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".BUNDLE_COMPRESSION_THREADS", 0));
+
+    /**
+     * How many components can collect their contents concurrently. {@code 0} collects each component in turn from the
+     * thread generating the bundle, unless there is a time limit to enforce, and is the default.
+     * <p>
+     * Otherwise {@link Component#addContents} is called concurrently for several components, so this should only be
+     * set where every installed {@link Component} is safe to collect that way, for instance because it does not share
+     * state with other components.
+     */
+    public static final int BUNDLE_COLLECTION_THREADS = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".BUNDLE_COLLECTION_THREADS", 0));
+
+    /**
+     * How many bundle jobs started through {@link SupportAction} or {@link AnonymizeBundleCommand} can run at a time,
+     * further jobs waiting for their turn.
+     */
+    public static final int BUNDLE_JOB_THREADS = Math.max(1,
+            Integer.getInteger(SupportPlugin.class.getName() + ".BUNDLE_JOB_THREADS", 2));
+
+    /**
+     * How long, in seconds, a bundle which just completed is handed out again to requests for the same components
+     * rather than generating another one. {@code 0} only shares bundles which are still being generated.
+     */
+    public static final int BUNDLE_FRESHNESS_SECONDS = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".BUNDLE_FRESHNESS_SECONDS", 30));
+
+    /**
+     * How long, in seconds, generating a support bundle may take before whatever is still being collected or rendered
+     * is cut short. {@code 0}, the default, for no limit.
+     */
+    public static final int BUNDLE_TIMEOUT_SECONDS = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".BUNDLE_TIMEOUT_SECONDS", 0));
+
+    /**
+     * How long, in seconds, each component may spend collecting and rendering its contents before it is cut short.
+     * {@code 0}, the default, for no limit. Rendering is only cut short when {@link #BUNDLE_RENDER_THREADS} is not
+     * {@code 0}.
+     */
+    public static final int COMPONENT_TIMEOUT_SECONDS = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".COMPONENT_TIMEOUT_SECONDS", 0));
+
+    /**
+     * How many threads may filter the lines of large bundle contents, in chunks of {@link #FILTER_CHUNK_CHARS}
+     * characters, while they are written. {@code 0} filters each line on the thread writing it. Throttled bundles
+     * are always filtered on the writing thread.
+     */
+    public static final int FILTER_CHUNK_THREADS = Math.max(0,
+            Integer.getInteger(SupportPlugin.class.getName() + ".FILTER_CHUNK_THREADS", 0));
+
+    /**
+     * How many characters of lines are filtered together when {@link #FILTER_CHUNK_THREADS} is not {@code 0}.
+     */
+    public static final int FILTER_CHUNK_CHARS = Math.max(1,
+            Integer.getInteger(SupportPlugin.class.getName() + ".FILTER_CHUNK_CHARS", 256 * 1024));
+
+    /**
+     * How many entries of a stored bundle can be filtered, and then deflated, concurrently when it is anonymized
+     * after the fact by {@link AnonymizeBundleCommand} or {@link SupportAction#doAnonymizeBundle}.
+     */
+    public static final int ANONYMIZE_BUNDLE_THREADS = Math.max(1, Integer.getInteger(
+            SupportPlugin.class.getName() + ".ANONYMIZE_BUNDLE_THREADS",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    /**
+     * How many bytes of a rendered bundle content are kept in memory before it is spilled to a temporary file.
+     */
+    public static final int BUNDLE_RENDER_BUFFER_BYTES =
+            Integer.getInteger(SupportPlugin.class.getName() + ".BUNDLE_RENDER_BUFFER_BYTES", 1024 * 1024);
+
     public static final PermissionGroup SUPPORT_PERMISSIONS =
             new PermissionGroup(SupportPlugin.class, Messages._SupportPlugin_PermissionGroup());
 
@@ -276,53 +416,45 @@ public class SupportPlugin extends Plugin {
     }
 
     public static void writeBundle(OutputStream outputStream, final List<Component> components) throws IOException {
+        writeBundle(outputStream, components, new BundleProfile());
+    }
+
+    /**
+     * Writes a bundle, recording how far it got in the given profile so that its progress can be followed.
+     *
+     * @throws java.io.InterruptedIOException if the thread is interrupted before the bundle is complete
+     */
+    static void writeBundle(OutputStream outputStream, final List<Component> components,
+                            BundleProfile profile) throws IOException {
         StringBuilder manifest = new StringBuilder();
         StringWriter errors = new StringWriter();
         PrintWriter errorWriter = new PrintWriter(errors);
+        BundleBudget budget = new BundleBudget(BUNDLE_TIMEOUT_SECONDS, COMPONENT_TIMEOUT_SECONDS);
         appendManifestHeader(manifest);
-        List<Content> contents = appendManifestContents(manifest, errorWriter, components);
-        contents.add(new StringContent("manifest.md", manifest.toString()));
+        List<Content> contents = appendManifestContents(manifest, errorWriter, components, budget, profile);
         try {
             try (BulkChange change = new BulkChange(ContentMappings.get());
                  ZipArchiveOutputStream binaryOut = new ZipArchiveOutputStream(new BufferedOutputStream(outputStream, 16384))) {
                 Optional<ContentFilter> maybeFilter = getContentFilter();
-                Optional<FilteredOutputStream> maybeFilteredOut = maybeFilter.map(filter -> new FilteredOutputStream(binaryOut, filter));
-                OutputStream textOut = maybeFilteredOut.map(OutputStream.class::cast).orElse(binaryOut);
-                OutputStreamSelector selector = new OutputStreamSelector(() -> binaryOut, () -> textOut);
-                IgnoreCloseOutputStream unfilteredOut = new IgnoreCloseOutputStream(binaryOut);
-                IgnoreCloseOutputStream filteredOut = new IgnoreCloseOutputStream(selector);
-                for (Content content : contents) {
-                    if (content == null) {
-                        continue;
-                    }
-                    final String name = maybeFilter.map(filter -> filter.filter(content.getName())).orElseGet(content::getName);
-                    final ZipArchiveEntry entry = new ZipArchiveEntry(name);
-                    entry.setTime(content.getTime());
-                    try {
-                        binaryOut.putArchiveEntry(entry);
-                        binaryOut.flush();
-                        OutputStream out = content.shouldBeFiltered() ? filteredOut : unfilteredOut;
-                        content.writeTo(out);
-                        out.flush();
-                    } catch (Throwable e) {
-                        String msg = "Could not attach ''" + name + "'' to support bundle";
-                        logger.log(Level.WARNING, msg, e);
-                        errorWriter.println(msg);
-                        errorWriter.println("-----------------------------------------------------------------------");
-                        errorWriter.println();
-                        SupportLogFormatter.printStackTrace(e, errorWriter);
-                        errorWriter.println();
-                    } finally {
-                        maybeFilteredOut.ifPresent(FilteredOutputStream::reset);
-                        selector.reset();
-                        binaryOut.closeArchiveEntry();
-                    }
+                if (BUNDLE_RENDER_THREADS > 0 || BUNDLE_COMPRESSION_THREADS > 0) {
+                    writeRenderedContents(binaryOut, contents, maybeFilter, errorWriter, budget, profile);
+                } else {
+                    writeContents(binaryOut, contents, maybeFilter, errorWriter, budget, profile);
                 }
+                // written last so that they can tell which components ran out of time and how long each took
+                appendManifestBudget(manifest, budget);
+                profile.appendTo(manifest);
+                writeContents(binaryOut, Arrays.asList(
+                        new StringContent("manifest/timings.json", profile.toJSON()),
+                        new StringContent("manifest.md", manifest.toString())),
+                        maybeFilter, errorWriter, budget, profile);
                 errorWriter.close();
                 String errorContent = errors.toString();
                 if (StringUtils.isNotBlank(errorContent)) {
                     try {
                         binaryOut.putArchiveEntry(new ZipArchiveEntry("manifest/errors.txt"));
+                        OutputStream textOut = maybeFilter.map(filter -> new FilteredOutputStream(binaryOut, filter))
+                                .map(OutputStream.class::cast).orElse(binaryOut);
                         textOut.write(errorContent.getBytes(StandardCharsets.UTF_8));
                         textOut.flush();
                         binaryOut.closeArchiveEntry();
@@ -334,25 +466,139 @@ public class SupportPlugin extends Plugin {
                 change.commit();
             }
         } finally {
+            profile.finished();
             outputStream.flush();
         }
     }
 
+    private static void writeContents(ZipArchiveOutputStream binaryOut, List<Content> contents,
+                                      Optional<ContentFilter> maybeFilter, PrintWriter errorWriter,
+                                      BundleBudget budget, BundleProfile profile) throws IOException {
+        Optional<BundleProfile.FilterTimer> maybeTimer = maybeFilter.map(BundleProfile.FilterTimer::new);
+        Optional<FilteredOutputStream> maybeFilteredOut = maybeTimer.map(timer -> newFilteredOutputStream(binaryOut, timer));
+        OutputStream textOut = maybeFilteredOut.map(OutputStream.class::cast).orElse(binaryOut);
+        OutputStreamSelector selector = new OutputStreamSelector(() -> binaryOut, () -> textOut);
+        IgnoreCloseOutputStream unfilteredOut = new IgnoreCloseOutputStream(binaryOut);
+        IgnoreCloseOutputStream filteredOut = new IgnoreCloseOutputStream(selector);
+        for (Content content : contents) {
+            if (content == null) {
+                continue;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while writing support bundle");
+            }
+            final String name = maybeFilter.map(filter -> filter.filter(content.getName())).orElseGet(content::getName);
+            final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(content.getTime());
+            // stored entries need their size and CRC upfront, so content that is already compressed is deflated
+            // without compression instead
+            binaryOut.setLevel(ContentRenderer.compressionLevelOf(content));
+            long start = System.nanoTime();
+            long filterStart = maybeTimer.map(BundleProfile.FilterTimer::getNanos).orElse(0L);
+            try {
+                binaryOut.putArchiveEntry(entry);
+                binaryOut.setLevel(Deflater.DEFAULT_COMPRESSION);
+                binaryOut.flush();
+                OutputStream out = content.shouldBeFiltered() ? filteredOut : unfilteredOut;
+                content.writeTo(BundleThrottle.throttle(out));
+                out.flush();
+            } catch (Throwable e) {
+                reportContentError(errorWriter, name, e);
+            } finally {
+                maybeFilteredOut.ifPresent(FilteredOutputStream::reset);
+                selector.reset();
+                binaryOut.closeArchiveEntry();
+            }
+            profile.written(budget.of(content).getDisplayName(), System.nanoTime() - start,
+                    maybeTimer.map(BundleProfile.FilterTimer::getNanos).orElse(0L) - filterStart, entry, false);
+        }
+    }
+
+    private static void writeRenderedContents(ZipArchiveOutputStream binaryOut, List<Content> contents,
+                                              Optional<ContentFilter> maybeFilter, PrintWriter errorWriter,
+                                              BundleBudget budget, BundleProfile profile) throws IOException {
+        try (ContentRenderer renderer = new ContentRenderer(contents, maybeFilter, budget,
+                Math.max(1, BUNDLE_RENDER_THREADS), BUNDLE_COMPRESSION_THREADS, BUNDLE_RENDER_BUFFER_BYTES)) {
+            while (renderer.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while writing support bundle");
+                }
+                try (ContentRenderer.Rendered rendered = renderer.next()) {
+                    Content content = rendered.getContent();
+                    final String name = maybeFilter.map(filter -> filter.filter(content.getName())).orElseGet(content::getName);
+                    final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+                    entry.setTime(content.getTime());
+                    try {
+                        rendered.writeTo(binaryOut, entry);
+                        profile.written(budget.of(content).getDisplayName(), rendered.getRenderNanos(),
+                                rendered.getFilterNanos(), entry, rendered.isTruncated());
+                        Throwable error = rendered.getError();
+                        if (error != null) {
+                            reportContentError(errorWriter, name, error);
+                        }
+                    } catch (Throwable e) {
+                        reportContentError(errorWriter, name, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps a stream to filter the lines written to it, in chunks on {@link FilterPool} when
+     * {@link #FILTER_CHUNK_THREADS} allows it and the bundle is not throttled.
+     */
+    static FilteredOutputStream newFilteredOutputStream(OutputStream out, ContentFilter filter) {
+        BundleThrottle throttle = BundleThrottle.current();
+        if (FILTER_CHUNK_THREADS == 0 || throttle != null && throttle.isLimited()) {
+            return new FilteredOutputStream(out, filter);
+        }
+        return new FilteredOutputStream(out, StandardCharsets.UTF_8, filter, FilterPool.POOL, FILTER_CHUNK_CHARS);
+    }
+
+    /**
+     * Holds the pool filtering chunks of lines, only created when first needed.
+     */
+    private static final class FilterPool {
+        static final ForkJoinPool POOL = new ForkJoinPool(FILTER_CHUNK_THREADS, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("SupportPlugin filter " + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    private static void reportContentError(PrintWriter errorWriter, String name, Throwable e) {
+        String msg = "Could not attach ''" + name + "'' to support bundle";
+        logger.log(Level.WARNING, msg, e);
+        errorWriter.println(msg);
+        errorWriter.println("-----------------------------------------------------------------------");
+        errorWriter.println();
+        SupportLogFormatter.printStackTrace(e, errorWriter);
+        errorWriter.println();
+    }
+
     private static Optional<ContentFilter> getContentFilter() throws IOException {
         ContentFilters filters = ContentFilters.get();
         if (filters.isEnabled()) {
-            ContentFilter filter = ContentFilter.ALL;
-            ContentMappings mappings = ContentMappings.get();
-            try (BulkChange change = new BulkChange(mappings)) {
-                mappings.reload();
-                filter.reload();
-                change.commit();
-            }
-            return Optional.of(filter);
+            return Optional.of(reloadContentFilter());
         }
         return Optional.empty();
     }
 
+    /**
+     * @return {@link ContentFilter#ALL}, once it and the content mappings have been brought up to date
+     */
+    static ContentFilter reloadContentFilter() throws IOException {
+        ContentFilter filter = ContentFilter.ALL;
+        ContentMappings mappings = ContentMappings.get();
+        try (BulkChange change = new BulkChange(mappings)) {
+            mappings.reload();
+            filter.reload();
+            change.commit();
+        }
+        return filter;
+    }
+
     private static void appendManifestHeader(StringBuilder manifest) {
         SupportPlugin plugin = SupportPlugin.getInstance();
         SupportProvider supportProvider = plugin == null ? null : plugin.getSupportProvider();
@@ -369,58 +615,44 @@ public class SupportPlugin extends Plugin {
                 .append("\n\n");
     }
 
-    private static List<Content> appendManifestContents(StringBuilder manifest, PrintWriter errors, List<Component> components) {
+    private static List<Content> appendManifestContents(StringBuilder manifest, PrintWriter errors,
+                                                        List<Component> components, BundleBudget budget,
+                                                        BundleProfile profile) throws IOException {
         manifest.append("Requested components:\n\n");
-        ContentContainer contents = new ContentContainer();
-        for (Component component : components) {
-            try {
-                manifest.append("  * ").append(component.getDisplayName()).append("\n\n");
-                component.addContents(contents);
-                Set<String> names = contents.getLatestNames();
-                for (String name : names) {
-                    manifest.append("      - `").append(name).append("`\n\n");
+        List<Content> contents = new ArrayList<>();
+        try (ContentCollector collector = new ContentCollector(components, budget, BUNDLE_COLLECTION_THREADS)) {
+            while (collector.hasNext()) {
+                ContentCollector.Collected collected = collector.next();
+                String displayName = collected.getDisplayName();
+                manifest.append("  * ").append(displayName).append("\n\n");
+                Throwable e = collected.getFailure();
+                if (e != null) {
+                    String msg = "Could not get content from " + displayName + " for support bundle";
+                    logger.log(Level.WARNING, msg, e);
+                    errors.println(msg);
+                    errors.println("-----------------------------------------------------------------------");
+                    errors.println();
+                    SupportLogFormatter.printStackTrace(e, errors);
+                    errors.println();
                 }
-            } catch (Throwable e) {
-                String displayName;
-                try {
-                    displayName = component.getDisplayName();
-                } catch (Throwable ignored) {
-                    // be very defensive
-                    displayName = component.getClass().getName();
+                profile.collected(displayName, collected.getNanos());
+                // a component which failed or ran out of time keeps what it added so far
+                for (String name : collected.drainTo(contents)) {
+                    manifest.append("      - `").append(name).append("`\n\n");
                 }
-                String msg = "Could not get content from " + displayName + " for support bundle";
-                logger.log(Level.WARNING, msg, e);
-                errors.println(msg);
-                errors.println("-----------------------------------------------------------------------");
-                errors.println();
-                SupportLogFormatter.printStackTrace(e, errors);
-                errors.println();
             }
         }
-        return contents.contents;
+        return contents;
     }
 
-    private static class ContentContainer extends Container {
-        private final List<Content> contents = new ArrayList<>();
-        private final Set<String> names = new TreeSet<>();
-
-        @Override
-        public void add(Content content) {
-            if (content != null) {
-                contents.add(content);
-                names.add(content.getName());
+    private static void appendManifestBudget(StringBuilder manifest, BundleBudget budget) {
+        List<String> exceeded = budget.getExceeded();
+        if (!exceeded.isEmpty()) {
+            manifest.append("Components which exceeded their time budget, and whose contents may be incomplete:\n\n");
+            for (String displayName : exceeded) {
+                manifest.append("  * ").append(displayName).append("\n\n");
             }
         }
-
-        private Set<String> getLatestNames() {
-            Set<String> copy = new TreeSet<>(names);
-            names.clear();
-            return copy;
-        }
-    }
-
-    public List<LogRecord> getAllLogRecords() {
-        return handler.getRecent();
     }
 
     @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED, before = InitMilestone.JOB_LOADED)
@@ -522,6 +754,10 @@ public class SupportPlugin extends Plugin {
         super.stop();
     }
 
+    public List<LogRecord> getAllLogRecords() {
+        return handler.getRecent();
+    }
+
     public List<LogRecord> getAllLogRecords(final Node node) throws IOException, InterruptedException {
         if (node != null) {
             VirtualChannel channel = node.getChannel();
@@ -743,6 +979,9 @@ public class SupportPlugin extends Plugin {
                         thread.setName(String.format("%s periodic bundle generator: since %s",
                                 SupportPlugin.class.getSimpleName(), new Date()));
                         clearRequesterAuthentication();
+                        // the threads working for the bundle inherit the priority of this thread, which created them
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        BundleThrottle.setCurrent(BundleThrottle.forPeriodicBundles());
                         SecurityContext old = ACL.impersonate(ACL.SYSTEM);
                         try {
                             File bundleDir = getRootDirectory();
@@ -755,14 +994,19 @@ public class SupportPlugin extends Plugin {
                             File file = new File(bundleDir, SupportPlugin.getBundleFileName());
                             thread.setName(String.format("%s periodic bundle generator: writing %s since %s",
                                     SupportPlugin.class.getSimpleName(), file.getName(), new Date()));
-                            try (FileOutputStream fos = new FileOutputStream(file)) {
-                                writeBundle(fos);
+                            List<Component> components = getComponents();
+                            // the archive is not throttled, so that its writer is only held back by the contents
+                            try (OutputStream os = new FileOutputStream(file)) {
+                                writeBundle(os, components);
                             }
-                            cleanupOldBundles(bundleDir, file);
+                            thread.setName(String.format("%s periodic bundle generator: tidying old bundles since %s",
+                                    SupportPlugin.class.getSimpleName(), new Date()));
+                            BundleIndex.get().add(file, BundleIndex.Trigger.PERIODIC, components);
                         } catch (Throwable t) {
                             logger.log(Level.WARNING, "Could not save support bundle", t);
                         } finally {
                             SecurityContextHolder.setContext(old);
+                            BundleThrottle.setCurrent(null);
                         }
                     }, SupportPlugin.class.getSimpleName() + " periodic bundle generator");
                     thread.start();
@@ -772,39 +1016,6 @@ public class SupportPlugin extends Plugin {
             }
         }
 
-        @edu.umd.cs.findbugs.annotations.SuppressWarnings(
-                value = {"RV_RETURN_VALUE_IGNORED_BAD_PRACTICE", "IS2_INCONSISTENT_SYNC"},
-                justification = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE=Best effort, " +
-                        "IS2_INCONSISTENT_SYNC=only called from an already synchronized method"
-        )
-        private void cleanupOldBundles(File bundleDir, File justGenerated) {
-            thread.setName(String.format("%s periodic bundle generator: tidying old bundles since %s",
-                    SupportPlugin.class.getSimpleName(), new Date()));
-            File[] files = bundleDir.listFiles((dir, name) -> name.endsWith(".zip"));
-            if (files == null) {
-                logger.log(Level.WARNING, "Something is wrong: {0} does not exist or there was an IO issue.",
-                        bundleDir.getAbsolutePath());
-                return;
-            }
-            long pivot = System.currentTimeMillis();
-            for (long l = 1; l * 2 > 0; l *= 2) {
-                boolean seen = false;
-                for (File f : files) {
-                    if (!f.isFile() || f == justGenerated) {
-                        continue;
-                    }
-                    long age = pivot - f.lastModified();
-                    if (l <= age && age < l * 2) {
-                        if (seen) {
-                            f.delete();
-                        } else {
-                            seen = true;
-                        }
-                    }
-                }
-            }
-        }
-
     }
 
     @Extension
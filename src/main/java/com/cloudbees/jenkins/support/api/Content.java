@@ -26,6 +26,7 @@ package com.cloudbees.jenkins.support.api;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 
 /**
  * Represents some content in a support bundle.
@@ -58,4 +59,15 @@ public abstract class Content {
     public boolean shouldBeFiltered() {
         return true;
     }
+
+    /**
+     * Indicates the {@link Deflater} level to compress this Content with in the support bundle. Content which is
+     * already compressed, such as images or archives, should return {@link Deflater#NO_COMPRESSION} so that it is
+     * stored as is rather than deflated again for no benefit.
+     *
+     * @since TODO
+     */
+    public int getCompressionLevel() {
+        return Deflater.DEFAULT_COMPRESSION;
+    }
 }
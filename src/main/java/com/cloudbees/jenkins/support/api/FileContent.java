@@ -36,6 +36,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * Content that is stored as a file on disk.
@@ -44,6 +47,12 @@ import java.io.PrintWriter;
  */
 public class FileContent extends Content {
 
+    /**
+     * Extensions of files which are already compressed.
+     */
+    private static final Pattern COMPRESSED_FILE = Pattern.compile(
+            ".*\\.(gz|tgz|zip|jar|war|hpi|jpi|bz2|xz|7z|png|jpe?g|gif)");
+
     protected final File file;
     private final long maxSize;
 
@@ -101,6 +110,12 @@ public class FileContent extends Content {
         return file.lastModified();
     }
 
+    @Override
+    public int getCompressionLevel() {
+        return COMPRESSED_FILE.matcher(file.getName().toLowerCase(Locale.ENGLISH)).matches()
+                ? Deflater.NO_COMPRESSION : super.getCompressionLevel();
+    }
+
     /**
      * {@link InputStream} decorator that chops off the underlying stream at the
      * specified length
@@ -27,26 +27,117 @@ package com.cloudbees.jenkins.support.filter;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * Composite ContentFilter of all registered ContentFilter extensions.
+ * <p>
+ * Each filter is applied in turn to the output of the previous one.
+ * <p>
+ * Filtering a region builds no string at all unless some filter replaces something in it, or some filter is not a
+ * {@link StreamingContentFilter}. Repeated lines are looked up in a {@link LineMemo} rather than filtered again.
  *
  * @since TODO
  */
 @Restricted(NoExternalUse.class)
-class AllContentFilters implements ContentFilter {
+class AllContentFilters implements StreamingContentFilter {
+
+    private final LineMemo memo = new LineMemo(LineMemo.SIZE);
+
     @Override
     public @Nonnull String filter(@Nonnull String input) {
-        String filtered = input;
+        try {
+            String filtered = apply(input, 0, input.length());
+            return filtered == null ? input : filtered;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean filter(@Nonnull CharSequence input, int start, int end, @Nonnull Appendable out) throws IOException {
+        String filtered = apply(input, start, end);
+        if (filtered == null) {
+            return false;
+        }
+        out.append(filtered);
+        return true;
+    }
+
+    /**
+     * @return the filtered region, or {@code null} if no filter replaced anything in it
+     */
+    @CheckForNull
+    private String apply(CharSequence input, int start, int end) throws IOException {
+        if (!memo.accepts(start, end)) {
+            return applyAll(input, start, end);
+        }
+        long hash = LineMemo.hash(input, start, end);
+        long generation = ContentMappings.getGeneration();
+        LineMemo.Entry entry = memo.get(hash, input, start, end, generation);
+        if (entry != null) {
+            return entry.getFiltered();
+        }
+        String filtered = applyAll(input, start, end);
+        memo.put(hash, input, start, end, generation, filtered);
+        return filtered;
+    }
+
+    @CheckForNull
+    private static String applyAll(CharSequence input, int start, int end) throws IOException {
+        String filtered = null;
         for (ContentFilter filter : ContentFilter.all()) {
-            filtered = filter.filter(filtered);
+            if (filter instanceof MatchingContentFilter) {
+                ContentMatches matches = filtered == null
+                        ? new ContentMatches(input, start, end)
+                        : new ContentMatches(filtered);
+                ((MatchingContentFilter) filter).match(matches);
+                if (!matches.isEmpty()) {
+                    filtered = matches.replace();
+                }
+            } else {
+                StringBuilder out = new StringBuilder();
+                boolean replaced = filtered == null
+                        ? StreamingContentFilter.filter(filter, input, start, end, out)
+                        : StreamingContentFilter.filter(filter, filtered, 0, filtered.length(), out);
+                if (replaced) {
+                    filtered = out.toString();
+                }
+            }
         }
         return filtered;
     }
 
+    @Override
+    public int getMaxMatchLength() {
+        return ContentFilter.all().stream().mapToInt(LineSegments::getOverlap).max().orElse(0);
+    }
+
+    /**
+     * Cuts before any text some filter would replace, as long as moving the cut makes it fall within another.
+     */
+    @Override
+    public int getCutBefore(@Nonnull CharSequence input, int start, int end, int cut) {
+        int previous;
+        do {
+            previous = cut;
+            for (ContentFilter filter : ContentFilter.all()) {
+                cut = StreamingContentFilter.getCutBefore(filter, input, start, end, cut);
+            }
+        } while (cut != previous);
+        return cut;
+    }
+
     @Override
     public void reload() {
         ContentFilter.all().forEach(ContentFilter::reload);
+        memo.clear();
+    }
+
+    @Nonnull LineMemo getMemo() {
+        return memo;
     }
 }
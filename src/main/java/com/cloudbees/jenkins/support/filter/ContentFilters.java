@@ -48,6 +48,8 @@ public class ContentFilters extends GlobalConfiguration {
     }
 
     private boolean enabled;
+    private boolean deterministic;
+    private boolean onAgents;
 
     public ContentFilters() {
         super();
@@ -64,6 +66,36 @@ public class ContentFilters extends GlobalConfiguration {
         save();
     }
 
+    /**
+     * @return whether replacements are derived from the originals with a secret key rather than drawn at random, so
+     * that they do not need to be stored to stay the same
+     * @see DataFaker
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    @DataBoundSetter
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+        save();
+    }
+
+    /**
+     * @return whether contents produced on agents are anonymized there, which gives the agents the names being
+     * anonymized
+     * @see ContentMappingsSnapshot
+     */
+    public boolean isOnAgents() {
+        return onAgents;
+    }
+
+    @DataBoundSetter
+    public void setOnAgents(boolean onAgents) {
+        this.onAgents = onAgents;
+        save();
+    }
+
     @Override
     public @Nonnull String getDisplayName() {
         return Messages.ContentFilters_DisplayName();
@@ -69,14 +69,30 @@ public class ContentMapping implements ContentFilter {
 
 
     private static Pattern generatePattern(String original) {
-        String alternative = original.replace("/", ALT_SEPARATOR);
-        String regex = Stream.of(original, Functions.escape(original), alternative, Functions.escape(alternative))
-                .distinct()
+        String regex = variantsOf(original)
                 .map(Pattern::quote)
                 .collect(joining("|", "\\b(", ")\\b"));
         return Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
     }
 
+    /**
+     * The forms in which the original may appear in contents: as is, HTML escaped, and with its path separators
+     * replaced as in full display names.
+     */
+    private static Stream<String> variantsOf(String original) {
+        String alternative = original.replace("/", ALT_SEPARATOR);
+        return Stream.of(original, Functions.escape(original), alternative, Functions.escape(alternative))
+                .distinct();
+    }
+
+    /**
+     * @return the distinct forms of the original which this mapping replaces
+     * @see MappingAutomaton
+     */
+    @Nonnull Stream<String> getVariants() {
+        return variantsOf(original);
+    }
+
     /**
      * @return the original string to replace
      */
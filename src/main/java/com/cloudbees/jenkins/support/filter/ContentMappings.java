@@ -25,33 +25,47 @@
 package com.cloudbees.jenkins.support.filter;
 
 import com.cloudbees.jenkins.support.util.Persistence;
+import com.google.common.collect.Maps;
+import hudson.BulkChange;
 import hudson.Extension;
 import hudson.model.AbstractItem;
+import hudson.model.Item;
 import hudson.model.ManagementLink;
 import hudson.model.Saveable;
 import jenkins.model.Jenkins;
+import net.sf.json.util.JSONUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.stream.Collectors.toConcurrentMap;
-import static java.util.stream.Collectors.toMap;
 
 /**
  * Holds all anonymized content mappings and provides a management view to see those mappings.
@@ -76,6 +90,7 @@ public class ContentMappings extends ManagementLink implements Saveable, Iterabl
         if (mappings == null) {
             mappings = (ContentMappings) new XmlProxy().readResolve();
         }
+        mappings.replayJournal();
         return mappings;
     }
 
@@ -84,8 +99,62 @@ public class ContentMappings extends ManagementLink implements Saveable, Iterabl
     private static final Comparator<String> COMPARATOR = BY_LENGTH.reversed().thenComparing(BY_NAME);
     private static final Logger LOGGER = Logger.getLogger(ContentMappings.class.getName());
 
+    /**
+     * How many mappings may be added to those matched by the automaton of {@link #matcher} before it is rebuilt, in
+     * addition to an eighth of them.
+     */
+    private static final int MIN_ADDED_BEFORE_REBUILD = 64;
+    /**
+     * How many added mappings may be matched by looking for each of them in turn before an automaton of all the added
+     * mappings is built.
+     */
+    private static final int MAX_SCANNED = 64;
+    /**
+     * How many mappings may be appended to the {@link #journal} before they are all saved, in addition to a quarter
+     * of them.
+     */
+    private static final int MIN_JOURNALED_BEFORE_SAVE = 1024;
+    /**
+     * Changes whenever mappings or stop words are added, as lines filtered before may then be filtered differently.
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
     private final Set<String> stopWords;
     private final Map<String, ContentMapping> mappings;
+    /**
+     * Matches all the mappings, published as a whole so that filtering takes no lock. {@code null} until first
+     * needed, and only replaced while holding the lock on this.
+     */
+    private volatile Matcher matcher;
+    /**
+     * The mappings added since the automaton of {@link #matcher} was built, so that adding a mapping does not
+     * require rebuilding an automaton for all of them.
+     */
+    @GuardedBy("this")
+    private final List<ContentMapping> added = new ArrayList<>();
+    /**
+     * How many mappings are in {@link #added}, read without the lock to tell whether {@link #matcher} is up to date.
+     */
+    private volatile int addedCount;
+    /**
+     * Changes whenever a mapping is added, unlike {@link #GENERATION}, which is left as is for addresses.
+     */
+    private final AtomicLong modifications = new AtomicLong();
+    /**
+     * The mappings created since they were last saved. Saving them is done while holding its lock.
+     */
+    private final ContentMappingsJournal journal = new ContentMappingsJournal(getJournalFile());
+    /**
+     * The items created or changed since the stop words were last reloaded, {@code null} when all items are to be
+     * looked at.
+     */
+    @GuardedBy("this")
+    private Set<AbstractItem> changedItems;
+    /**
+     * The mappings sorted for the management view, built again when they have changed since.
+     */
+    @GuardedBy("this")
+    private ContentMappingsIndex index;
 
     private ContentMappings(@Nonnull XmlProxy proxy) {
         if (proxy.stopWords == null) {
@@ -100,6 +169,7 @@ public class ContentMappings extends ManagementLink implements Saveable, Iterabl
                 : proxy.mappings.stream()
                     .filter(mapping -> !stopWords.contains(mapping.getOriginal()))
                     .collect(toConcurrentMap(ContentMapping::getOriginal, Function.identity(), (a, b) -> {throw new IllegalArgumentException();}, () -> new ConcurrentSkipListMap<>(COMPARATOR)));
+        GENERATION.incrementAndGet();
     }
 
     private static Set<String> getDefaultStopWords() {
@@ -120,35 +190,312 @@ public class ContentMappings extends ManagementLink implements Saveable, Iterabl
     }
 
     /**
-     * @return the map of original to replacement values known to this instance
+     * @return a read-only view of the map of original to replacement values known to this instance
      */
     public @Nonnull Map<String, String> getMappings() {
-        return mappings.values().stream().collect(toMap(ContentMapping::getOriginal, ContentMapping::getReplacement));
+        return Collections.unmodifiableMap(Maps.transformValues(mappings, ContentMapping::getReplacement));
     }
 
     /**
-     * Looks up or creates a new ContentMapping for the given original string and a ContentMapping generator.
+     * @return the page of mappings asked for by the request, see {@link ContentMappingsPage}
+     */
+    public @Nonnull ContentMappingsPage getPage(@Nonnull StaplerRequest request) {
+        return new ContentMappingsPage(getIndex(), request.getParameter("sort"), request.getParameter("order"),
+                request.getParameter("q"), NumberUtils.toInt(request.getParameter("page"), 1),
+                NumberUtils.toInt(request.getParameter("size"), ContentMappingsPage.DEFAULT_SIZE));
+    }
+
+    private synchronized ContentMappingsIndex getIndex() {
+        long generation = modifications.get();
+        if (index == null || index.getGeneration() != generation) {
+            index = new ContentMappingsIndex(mappings.values(), generation);
+        }
+        return index;
+    }
+
+    /**
+     * Exports all the mappings as CSV, or as JSON given {@code format=json}, writing them as they are read rather
+     * than copying them first.
+     */
+    @SuppressWarnings("unused") // used by Stapler
+    public void doExport(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        boolean json = "json".equals(req.getParameter("format"));
+        rsp.setContentType(json ? "application/json;charset=UTF-8" : "text/csv;charset=UTF-8");
+        rsp.addHeader("Content-Disposition", "attachment; filename=content-mappings." + (json ? "json" : "csv"));
+        PrintWriter writer = rsp.getWriter();
+        if (json) {
+            writeJSON(writer);
+        } else {
+            writeCSV(writer);
+        }
+        writer.flush();
+    }
+
+    void writeCSV(@Nonnull Writer out) throws IOException {
+        out.write("original,replacement\r\n");
+        for (ContentMapping mapping : mappings.values()) {
+            out.write(csv(mapping.getOriginal()));
+            out.write(',');
+            out.write(csv(mapping.getReplacement()));
+            out.write("\r\n");
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\r') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    void writeJSON(@Nonnull Writer out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (ContentMapping mapping : mappings.values()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write("{\"original\":");
+            out.write(JSONUtils.quote(mapping.getOriginal()));
+            out.write(",\"replacement\":");
+            out.write(JSONUtils.quote(mapping.getReplacement()));
+            out.write('}');
+        }
+        out.write(']');
+    }
+
+    /**
+     * Looks up or creates a new ContentMapping for the given original string and a ContentMapping generator. A
+     * created mapping is appended to a journal rather than saving all the mappings, unless replacements are
+     * {@linkplain ContentFilters#isDeterministic() deterministic}.
      */
     public @Nonnull ContentMapping getMappingOrCreate(@Nonnull String original, @Nonnull Function<String, ContentMapping> generator) {
-        ContentMapping mapping = mappings.computeIfAbsent(original, generator);
+        return getMappingOrCreate(original, generator, true);
+    }
+
+    /**
+     * Looks up or creates the mapping of an address found while filtering, as {@link InetAddressContentFilter} does.
+     * Unlike other mappings, creating one leaves the {@linkplain #getGeneration() generation} as is: the lines
+     * filtered before with this address in them had it replaced the same way already, by that filter, so they need
+     * not be filtered again.
+     */
+    @Nonnull ContentMapping getAddressMappingOrCreate(@Nonnull String address) {
+        return getMappingOrCreate(address, InetAddressContentFilter::newMapping, false);
+    }
+
+    private @Nonnull ContentMapping getMappingOrCreate(@Nonnull String original,
+                                                       @Nonnull Function<String, ContentMapping> generator,
+                                                       boolean changesFiltering) {
+        ContentMapping mapping = mappings.get(original);
+        if (mapping == null) {
+            ContentMapping created = generator.apply(original);
+            mapping = mappings.putIfAbsent(original, created);
+            if (mapping == null) {
+                mapping = created;
+                added(created, changesFiltering);
+                journal(created);
+            }
+        }
+        return mapping;
+    }
+
+    private void journal(@Nonnull ContentMapping mapping) {
+        if (BulkChange.contains(this)) {
+            // saved along with the others once the change is committed
+            return;
+        }
+        if (ContentFilters.get().isDeterministic()) {
+            // derived again as is if lost, so only saved along with the others for looking them up
+            return;
+        }
         try {
-            save();
+            if (journal.append(mapping) > Math.max(MIN_JOURNALED_BEFORE_SAVE, mappings.size() / 4)) {
+                save();
+            }
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Could not save mappings file", e);
         }
-        return mapping;
     }
 
+    /**
+     * Adds the mappings left in the journal by the last run, and saves them all with the others.
+     */
+    private void replayJournal() throws IOException {
+        if (!journal.exists()) {
+            return;
+        }
+        for (ContentMapping mapping : journal.replay()) {
+            if (!stopWords.contains(mapping.getOriginal())) {
+                mappings.putIfAbsent(mapping.getOriginal(), mapping);
+            }
+        }
+        save();
+    }
+
+    private static File getJournalFile() {
+        return new File(Jenkins.get().getRootDir(), ContentMappings.class.getCanonicalName() + ".journal");
+    }
+
+    private synchronized void added(@Nonnull ContentMapping mapping, boolean changesFiltering) {
+        added.add(mapping);
+        addedCount = added.size();
+        modifications.incrementAndGet();
+        if (changesFiltering) {
+            GENERATION.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the generation of all mappings, which changes whenever mappings or stop words are added
+     */
+    static long getGeneration() {
+        return GENERATION.get();
+    }
+
+    /**
+     * Offers the originals of all mappings found in the input of the given matches, in a single pass over it.
+     *
+     * @see MappingAutomaton
+     */
+    void match(@Nonnull ContentMatches matches) {
+        matcher().match(matches);
+    }
+
+    /**
+     * @return the length of the longest variant of an original matched by {@link #match(ContentMatches)}
+     */
+    int getMaxMatchLength() {
+        return matcher().maxLength;
+    }
+
+    /**
+     * @return the matcher of all the mappings, rebuilding its automaton once enough mappings were added
+     */
+    private Matcher matcher() {
+        Matcher matcher = this.matcher;
+        if (matcher != null && matcher.added == addedCount) {
+            return matcher;
+        }
+        synchronized (this) {
+            matcher = this.matcher;
+            if (matcher == null || added.size() > Math.max(MIN_ADDED_BEFORE_REBUILD, matcher.automaton.size() / 8)) {
+                // mappings added while the automaton is built are either in it or added again afterwards
+                matcher = new Matcher(MappingAutomaton.build(mappings.values()), MappingAutomaton.EMPTY, 0,
+                        Collections.emptyList());
+                added.clear();
+                addedCount = 0;
+            } else if (matcher.added != added.size()) {
+                MappingAutomaton addedAutomaton = matcher.addedAutomaton;
+                int batched = matcher.batched;
+                if (added.size() - batched > MAX_SCANNED) {
+                    addedAutomaton = MappingAutomaton.build(added);
+                    batched = added.size();
+                }
+                matcher = new Matcher(matcher.automaton, addedAutomaton, batched, added);
+            }
+            this.matcher = matcher;
+            return matcher;
+        }
+    }
+
+    /**
+     * Matches the mappings there were when its automaton was built, those added since in batches of
+     * {@link #MAX_SCANNED} with a second automaton, and looks for the variants of each of the few added since the
+     * last batch in turn. The automaton of all the mappings is only rebuilt once an eighth of them were added, so
+     * that adding many mappings to a large set does not rebuild it over and over.
+     */
+    private static final class Matcher {
+        private final MappingAutomaton automaton;
+        private final MappingAutomaton addedAutomaton;
+        /** How many of the added mappings {@link #addedAutomaton} matches. */
+        private final int batched;
+        /** How many mappings were added since the automaton was built. */
+        private final int added;
+        private final String[] addedVariants;
+        private final String[] addedReplacements;
+        private final int maxLength;
+
+        Matcher(@Nonnull MappingAutomaton automaton, @Nonnull MappingAutomaton addedAutomaton, int batched,
+                @Nonnull List<ContentMapping> added) {
+            List<String> variants = new ArrayList<>();
+            List<String> replacements = new ArrayList<>();
+            for (ContentMapping mapping : added.subList(batched, added.size())) {
+                mapping.getVariants().forEach(variant -> {
+                    variants.add(variant);
+                    replacements.add(mapping.getReplacement());
+                });
+            }
+            this.automaton = automaton;
+            this.addedAutomaton = addedAutomaton;
+            this.batched = batched;
+            this.added = added.size();
+            this.addedVariants = variants.toArray(new String[0]);
+            this.addedReplacements = replacements.toArray(new String[0]);
+            this.maxLength = Math.max(Math.max(automaton.maxLength(), addedAutomaton.maxLength()),
+                    variants.stream().mapToInt(String::length).max().orElse(0));
+        }
+
+        void match(@Nonnull ContentMatches matches) {
+            automaton.match(matches);
+            addedAutomaton.match(matches);
+            MappingAutomaton.scan(matches, addedVariants, addedReplacements);
+        }
+    }
+
+    /**
+     * Reports an item created or changed since the last reload, so that the next one only looks at such items.
+     */
+    synchronized void changed(@Nonnull Item item) {
+        if (changedItems != null && item instanceof AbstractItem) {
+            changedItems.add((AbstractItem) item);
+            if (changedItems.size() > NameProvider.MAX_CHANGED_NAMES) {
+                changedItems = null;
+            }
+        }
+    }
+
+    /**
+     * Adds the task nouns and pronouns of items as stop words, looking at all items the first time and then only at
+     * those {@linkplain #changed(Item) changed} since.
+     */
     public void reload() {
-        Jenkins.get().allItems(AbstractItem.class).forEach(item -> {
-            stopWords.add(item.getTaskNoun().toLowerCase(Locale.ENGLISH));
-            stopWords.add(item.getPronoun().toLowerCase(Locale.ENGLISH));
-        });
+        Iterable<AbstractItem> items;
+        synchronized (this) {
+            items = changedItems == null ? Jenkins.get().allItems(AbstractItem.class) : changedItems;
+            changedItems = new LinkedHashSet<>();
+        }
+        boolean added = false;
+        try {
+            for (AbstractItem item : items) {
+                added |= stopWords.add(item.getTaskNoun().toLowerCase(Locale.ENGLISH));
+                added |= stopWords.add(item.getPronoun().toLowerCase(Locale.ENGLISH));
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                changedItems = null;
+            }
+            throw e;
+        } finally {
+            if (added) {
+                GENERATION.incrementAndGet();
+            }
+        }
     }
 
+    /**
+     * Saves all the mappings and empties the journal.
+     */
     @Override
     public void save() throws IOException {
-        Persistence.save(this);
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        synchronized (journal) {
+            Persistence.save(this);
+            journal.reset();
+        }
     }
 
     @Override
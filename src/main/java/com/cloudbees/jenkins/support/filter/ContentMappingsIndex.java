@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * The {@link ContentMappings} sorted by original and by replacement, ignoring case, so that they can be paged through
+ * and searched by prefix without going through all of them. An index only holds references to the mappings, and is
+ * built again once they change.
+ */
+final class ContentMappingsIndex {
+
+    private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private final long generation;
+    private final ContentMapping[] byOriginal;
+    private final ContentMapping[] byReplacement;
+
+    ContentMappingsIndex(@Nonnull Collection<ContentMapping> mappings, long generation) {
+        this.generation = generation;
+        this.byOriginal = mappings.toArray(new ContentMapping[0]);
+        this.byReplacement = byOriginal.clone();
+        Arrays.parallelSort(byOriginal, Comparator.comparing(ContentMapping::getOriginal, ORDER));
+        Arrays.parallelSort(byReplacement, Comparator.comparing(ContentMapping::getReplacement, ORDER));
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    int size() {
+        return byOriginal.length;
+    }
+
+    /**
+     * @return the mappings sorted by replacement or by original
+     */
+    @Nonnull ContentMapping[] sortedBy(boolean replacement) {
+        return replacement ? byReplacement : byOriginal;
+    }
+
+    /**
+     * @return the range of the sorted mappings whose key starts with the given prefix, ignoring case, as the index of
+     * the first one and the index following the last one
+     */
+    @Nonnull int[] range(boolean replacement, @Nonnull String prefix) {
+        ContentMapping[] sorted = sortedBy(replacement);
+        Function<ContentMapping, String> key = replacement ? ContentMapping::getReplacement : ContentMapping::getOriginal;
+        return new int[] {search(sorted, key, prefix, false), search(sorted, key, prefix, true)};
+    }
+
+    /**
+     * @return the index of the first mapping whose key, cut to the length of the prefix, comes after the prefix, or
+     * is equal to it unless {@code after}
+     */
+    private static int search(ContentMapping[] sorted, Function<ContentMapping, String> key, String prefix, boolean after) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            String value = key.apply(sorted[middle]);
+            int comparison = String.CASE_INSENSITIVE_ORDER.compare(
+                    value.length() > prefix.length() ? value.substring(0, prefix.length()) : value, prefix);
+            if (comparison > 0 || comparison == 0 && !after) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+}
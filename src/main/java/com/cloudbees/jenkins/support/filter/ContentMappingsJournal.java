@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only log of the mappings created since {@link ContentMappings} were last saved, so that creating a
+ * mapping appends one line to a file rather than rewriting all the mappings. The journal is replayed when the
+ * mappings are loaded, and emptied whenever they are saved.
+ * <p>
+ * Each line holds an original and its replacement separated by a tab, with backslashes, tabs and line breaks escaped.
+ * A line cut short by a crash has no line break: it is ignored, and removed when the journal is replayed.
+ */
+final class ContentMappingsJournal {
+    private static final Logger LOGGER = Logger.getLogger(ContentMappingsJournal.class.getName());
+
+    private final File file;
+    @GuardedBy("this")
+    private Writer writer;
+    @GuardedBy("this")
+    private int size;
+
+    ContentMappingsJournal(@Nonnull File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return whether there is a journal file, even an empty one
+     */
+    synchronized boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Appends a mapping, flushing it to the file.
+     *
+     * @return how many mappings were appended since the journal was last emptied
+     */
+    synchronized int append(@Nonnull ContentMapping mapping) throws IOException {
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        }
+        writer.write(escape(mapping.getOriginal()) + '\t' + escape(mapping.getReplacement()) + '\n');
+        writer.flush();
+        return ++size;
+    }
+
+    /**
+     * @return the mappings in the journal, in the order they were appended
+     */
+    synchronized @Nonnull List<ContentMapping> replay() throws IOException {
+        List<ContentMapping> mappings = new ArrayList<>();
+        if (!file.exists()) {
+            return mappings;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int start = 0;
+        for (int end = 0; end < bytes.length; end++) {
+            if (bytes[end] != '\n') {
+                continue;
+            }
+            String line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                LOGGER.log(Level.WARNING, "Ignoring malformed line in {0}", file);
+            } else {
+                mappings.add(ContentMapping.of(unescape(line.substring(0, tab)), unescape(line.substring(tab + 1))));
+            }
+            start = end + 1;
+        }
+        if (start < bytes.length) {
+            LOGGER.log(Level.WARNING, "Ignoring incomplete last line in {0}", file);
+            // mappings appended after it would otherwise be read as the end of that line
+            try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+                truncated.setLength(start);
+            }
+        }
+        size = mappings.size();
+        return mappings;
+    }
+
+    /**
+     * Empties the journal once the mappings it holds are saved elsewhere.
+     */
+    synchronized void reset() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        Files.deleteIfExists(file.toPath());
+        size = 0;
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't':
+                        unescaped.append('\t');
+                        break;
+                    case 'n':
+                        unescaped.append('\n');
+                        break;
+                    case 'r':
+                        unescaped.append('\r');
+                        break;
+                    default:
+                        unescaped.append(next);
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of the {@link ContentMappings} management view, sorted by original or by replacement and only showing the
+ * mappings whose sort key starts with the searched prefix.
+ *
+ * @see ContentMappingsIndex
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class ContentMappingsPage {
+
+    static final int DEFAULT_SIZE = 100;
+    static final int MAX_SIZE = 1000;
+
+    private final String sort;
+    private final boolean descending;
+    private final String prefix;
+    private final int size;
+    private final int number;
+    private final int total;
+    private final List<ContentMapping> mappings;
+
+    /**
+     * @param index      the mappings
+     * @param sort       {@code replacement} to sort by replacement, or by original otherwise
+     * @param order      {@code desc} to sort in descending order, or in ascending order otherwise
+     * @param prefix     what the sort key of the mappings shown starts with, ignoring case
+     * @param number     the number of the page from {@code 1}
+     * @param size       how many mappings are shown per page
+     */
+    ContentMappingsPage(@Nonnull ContentMappingsIndex index, @CheckForNull String sort, @CheckForNull String order,
+                        @CheckForNull String prefix, int number, int size) {
+        this.sort = "replacement".equals(sort) ? "replacement" : "original";
+        this.descending = "desc".equals(order);
+        this.prefix = prefix == null ? "" : prefix.trim();
+        this.size = size < 1 ? DEFAULT_SIZE : Math.min(size, MAX_SIZE);
+        boolean byReplacement = this.sort.equals("replacement");
+        int[] range = index.range(byReplacement, this.prefix);
+        this.total = range[1] - range[0];
+        this.number = Math.max(1, Math.min(number, getPageCount()));
+        ContentMapping[] sorted = index.sortedBy(byReplacement);
+        int skipped = (this.number - 1) * this.size;
+        int count = Math.max(0, Math.min(this.size, total - skipped));
+        this.mappings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            mappings.add(sorted[descending ? range[1] - 1 - skipped - i : range[0] + skipped + i]);
+        }
+    }
+
+    /**
+     * @return the mappings on this page
+     */
+    public @Nonnull List<ContentMapping> getMappings() {
+        return mappings;
+    }
+
+    public @Nonnull String getSort() {
+        return sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public @Nonnull String getPrefix() {
+        return prefix;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * @return how many mappings match the prefix
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getPageCount() {
+        return Math.max(1, (total + size - 1) / size);
+    }
+
+    public boolean hasPrevious() {
+        return number > 1;
+    }
+
+    public boolean hasNext() {
+        return number < getPageCount();
+    }
+
+    /**
+     * @return the query string of the page with the given number, sorted and searched as this one
+     */
+    public @Nonnull String getQuery(int number) {
+        return query(sort, descending, number);
+    }
+
+    /**
+     * @return the query string of the first page sorted by the given column, reversing the order if this page is
+     * already sorted by it
+     */
+    public @Nonnull String getSortQuery(@Nonnull String column) {
+        return query(column, column.equals(sort) && !descending, 1);
+    }
+
+    private String query(String sort, boolean descending, int number) {
+        StringBuilder query = new StringBuilder("?sort=").append(sort);
+        if (descending) {
+            query.append("&order=desc");
+        }
+        if (!prefix.isEmpty()) {
+            query.append("&q=").append(encode(prefix));
+        }
+        if (size != DEFAULT_SIZE) {
+            query.append("&size=").append(size);
+        }
+        return query.append("&page=").append(number).toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import hudson.BulkChange;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A read-only snapshot of the {@link ContentMappings}, sent to agents when contents are
+ * {@linkplain ContentFilters#isOnAgents() anonymized on agents}, so that the contents they produce are filtered there
+ * rather than by the controller.
+ * <p>
+ * An agent replaces the variants of the originals known when the snapshot was taken, and reports the addresses it
+ * found which have no mapping yet, as only the controller creates mappings. The controller then only replaces the
+ * originals which are not in the snapshot, if any, rather than filtering the contents again.
+ * <p>
+ * This only covers {@link SensitiveContentFilter} and {@link InetAddressContentFilter}: when any other
+ * {@link ContentFilter} is installed, no snapshot is taken and contents are filtered by the controller.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class ContentMappingsSnapshot implements Serializable {
+
+    @GuardedBy("ContentMappingsSnapshot.class")
+    private static ContentMappingsSnapshot last;
+
+    /**
+     * Takes a snapshot of the mappings, after looking for new names to anonymize as a bundle does. Snapshots are
+     * reused until the mappings change.
+     *
+     * @return the snapshot, or {@code null} if contents are not to be anonymized on agents
+     * @throws IOException if the mappings could not be saved
+     */
+    public static synchronized @CheckForNull ContentMappingsSnapshot current() throws IOException {
+        ContentFilters filters = ContentFilters.get();
+        if (!filters.isEnabled() || !filters.isOnAgents()) {
+            return null;
+        }
+        List<ContentFilter> all = ContentFilter.all();
+        if (!all.stream().allMatch(filter -> filter instanceof SensitiveContentFilter
+                || filter instanceof InetAddressContentFilter)) {
+            return null;
+        }
+        ContentMappings mappings = ContentMappings.get();
+        try (BulkChange change = new BulkChange(mappings)) {
+            mappings.reload();
+            ContentFilter.ALL.reload();
+            change.commit();
+        }
+        long generation = ContentMappings.getGeneration();
+        boolean addressesFirst = all.indexOf(InetAddressContentFilter.get()) < all.indexOf(SensitiveContentFilter.get());
+        if (last == null || last.generation != generation || last.addressesFirst != addressesFirst) {
+            last = new ContentMappingsSnapshot(mappings, generation, addressesFirst);
+        }
+        return last;
+    }
+
+    private final long generation;
+    /** Whether addresses are replaced before names. */
+    private final boolean addressesFirst;
+    private final String[] variants;
+    private final String[] replacements;
+    private final String[] stopWords;
+    /** The originals in this snapshot, only kept by the controller. */
+    private final transient Set<String> originals = new HashSet<>();
+    private transient MappingAutomaton automaton;
+    private transient Map<String, String> addressReplacements;
+    private transient Set<String> ignoredAddresses;
+
+    private ContentMappingsSnapshot(@Nonnull ContentMappings mappings, long generation, boolean addressesFirst) {
+        this.generation = generation;
+        this.addressesFirst = addressesFirst;
+        List<String> variants = new ArrayList<>();
+        List<String> replacements = new ArrayList<>();
+        for (ContentMapping mapping : mappings) {
+            originals.add(mapping.getOriginal());
+            mapping.getVariants().forEach(variant -> {
+                variants.add(variant);
+                replacements.add(mapping.getReplacement());
+            });
+        }
+        this.variants = variants.toArray(new String[0]);
+        this.replacements = replacements.toArray(new String[0]);
+        this.stopWords = mappings.getStopWords().toArray(new String[0]);
+    }
+
+    /**
+     * Filters contents on the agent.
+     *
+     * @param input the contents to filter
+     * @return the contents with the originals in this snapshot replaced, to be {@linkplain #complete(Filtered)
+     * completed} by the controller
+     */
+    public synchronized @Nonnull Filtered filter(@Nonnull String input) {
+        if (automaton == null) {
+            automaton = MappingAutomaton.build(variants, replacements);
+            addressReplacements = new HashMap<>();
+            for (int i = 0; i < variants.length; i++) {
+                addressReplacements.putIfAbsent(variants[i], replacements[i]);
+            }
+            ignoredAddresses = new HashSet<>(Arrays.asList(stopWords));
+        }
+        Set<String> addresses = new TreeSet<>();
+        String filtered;
+        if (addressesFirst) {
+            ContentMatches matches = new ContentMatches(input);
+            matchAddresses(matches, addresses);
+            ContentMatches names = new ContentMatches(matches.replace());
+            automaton.match(names);
+            filtered = names.replace();
+        } else {
+            ContentMatches matches = new ContentMatches(input);
+            automaton.match(matches);
+            ContentMatches addressMatches = new ContentMatches(matches.replace());
+            matchAddresses(addressMatches, addresses);
+            filtered = addressMatches.replace();
+        }
+        return new Filtered(filtered, addresses.toArray(new String[0]));
+    }
+
+    /**
+     * Offers the addresses which have a mapping, as {@link InetAddressContentFilter} does, and collects the others.
+     */
+    private void matchAddresses(ContentMatches matches, Set<String> addresses) {
+        InetAddressScanner scanner = new InetAddressScanner(matches.getInput());
+        while (scanner.find()) {
+            String address = scanner.group();
+            if (ignoredAddresses.contains(address)) {
+                continue;
+            }
+            String replacement = addressReplacements.get(address);
+            if (replacement == null) {
+                addresses.add(address);
+            } else {
+                matches.offer(scanner.start(), scanner.end() - scanner.start(), replacement);
+            }
+        }
+    }
+
+    /**
+     * Completes filtering contents on the controller, creating mappings for the addresses reported by the agent and
+     * replacing the originals which are not in this snapshot.
+     *
+     * @param filtered the contents filtered by the agent
+     * @return the filtered contents
+     */
+    public @Nonnull String complete(@Nonnull Filtered filtered) {
+        ContentMappings mappings = ContentMappings.get();
+        Set<String> stopWords = mappings.getStopWords();
+        for (String address : filtered.addresses) {
+            if (!stopWords.contains(address)) {
+                mappings.getAddressMappingOrCreate(address);
+            }
+        }
+        List<ContentMapping> missing = new ArrayList<>();
+        for (ContentMapping mapping : mappings) {
+            if (!originals.contains(mapping.getOriginal())) {
+                missing.add(mapping);
+            }
+        }
+        return missing.isEmpty() ? filtered.text : MappingAutomaton.filter(filtered.text, MappingAutomaton.build(missing));
+    }
+
+    /**
+     * Contents filtered by an agent.
+     */
+    public static final class Filtered implements Serializable {
+        private final String text;
+        private final String[] addresses;
+
+        Filtered(@Nonnull String text, @Nonnull String[] addresses) {
+            this.text = text;
+            this.addresses = addresses;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * The spans of an input to replace, as found by one or more {@link MatchingContentFilter}s, keeping the longest one
+ * starting at each index. Where spans overlap, the leftmost one wins, then the longest, then the one offered first.
+ */
+final class ContentMatches {
+    private final CharSequence input;
+    private final boolean probe;
+    private int[] length;
+    private String[] replacement;
+
+    ContentMatches(@Nonnull CharSequence input) {
+        this(input, false);
+    }
+
+    /**
+     * Finds spans within a region of the given input only, as if it were the whole input.
+     */
+    ContentMatches(@Nonnull CharSequence input, int start, int end) {
+        this(start == 0 && end == input.length() ? input : input.subSequence(start, end));
+    }
+
+    private ContentMatches(CharSequence input, boolean probe) {
+        this.input = input;
+        this.probe = probe;
+    }
+
+    /**
+     * Finds where the spans of a region of the given input are, without their replacements, so that filters offering
+     * them through {@link #offer(int, int, Supplier)} have no side effect such as creating mappings.
+     */
+    static ContentMatches probe(@Nonnull CharSequence input, int start, int end) {
+        return new ContentMatches(start == 0 && end == input.length() ? input : input.subSequence(start, end), true);
+    }
+
+    /**
+     * @return the input the spans are found in
+     */
+    @Nonnull CharSequence getInput() {
+        return input;
+    }
+
+    /**
+     * @return whether no span was retained
+     */
+    boolean isEmpty() {
+        return length == null;
+    }
+
+    /**
+     * Offers to replace {@code length} characters from {@code start} with the given replacement.
+     */
+    void offer(int start, int length, @Nonnull String replacement) {
+        if (length <= 0) {
+            return;
+        }
+        if (this.length == null) {
+            // most inputs have nothing to replace
+            this.length = new int[input.length()];
+            this.replacement = new String[input.length()];
+        }
+        if (length > this.length[start]) {
+            this.length[start] = length;
+            this.replacement[start] = replacement;
+        }
+    }
+
+    /**
+     * Offers to replace {@code length} characters from {@code start} with a replacement which is only computed if
+     * the span is retained and these matches are not a {@linkplain #probe probe}.
+     */
+    void offer(int start, int length, @Nonnull Supplier<String> replacement) {
+        if (length > 0 && (this.length == null || length > this.length[start])) {
+            offer(start, length, probe ? "" : replacement.get());
+        }
+    }
+
+    /**
+     * Tells where the input may be cut so that replacing the spans of either side gives the same as replacing those
+     * of the whole input.
+     *
+     * @param cut the index where the input would rather be cut
+     * @return the given index, or the start of the replaced span it falls within
+     */
+    int getCutBefore(int cut) {
+        if (length == null) {
+            return cut;
+        }
+        for (int i = 0; i < cut; ) {
+            if (length[i] > 0) {
+                if (i + length[i] > cut) {
+                    return i;
+                }
+                i += length[i];
+            } else {
+                i++;
+            }
+        }
+        return cut;
+    }
+
+    /**
+     * @return the input with all the retained spans replaced
+     */
+    @Nonnull String replace() {
+        if (length == null) {
+            return input.toString();
+        }
+        StringBuilder result = new StringBuilder(input.length());
+        try {
+            appendTo(result);
+        } catch (IOException e) {
+            throw new AssertionError(e); // never thrown by StringBuilder
+        }
+        return result.toString();
+    }
+
+    /**
+     * Appends the input with all the retained spans replaced, unless there are none.
+     *
+     * @return {@code false} if there was nothing to replace, in which case nothing was appended
+     */
+    boolean appendTo(@Nonnull Appendable out) throws IOException {
+        if (length == null) {
+            return false;
+        }
+        int copied = 0;
+        for (int i = 0; i < input.length(); ) {
+            if (length[i] > 0) {
+                out.append(input, copied, i).append(replacement[i]);
+                i += length[i];
+                copied = i;
+            } else {
+                i++;
+            }
+        }
+        out.append(input, copied, input.length());
+        return true;
+    }
+}
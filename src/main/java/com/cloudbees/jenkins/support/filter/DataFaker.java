@@ -27,17 +27,22 @@ package com.cloudbees.jenkins.support.filter;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.ExtensionPoint;
+import jenkins.security.HMACConfidentialKey;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Locale;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.kohsuke.randname.RandomNameGenerator;
 
 /**
- * Provides a way to generate random names.
+ * Provides a way to generate random names, or in {@linkplain ContentFilters#isDeterministic() deterministic mode}
+ * pseudonyms derived from the original names with a secret key, so that an original always gets the same pseudonym
+ * without it having to be stored.
  *
  * @since TODO
  */
@@ -52,6 +57,11 @@ public class DataFaker implements ExtensionPoint, Function<Function<String, Stri
         return ExtensionList.lookupSingleton(DataFaker.class);
     }
 
+    /**
+     * The key pseudonyms are derived with, kept secret so that originals cannot be guessed from their pseudonyms.
+     */
+    private static final HMACConfidentialKey PSEUDONYM_KEY = new HMACConfidentialKey(DataFaker.class, "pseudonyms");
+
     private final RandomNameGenerator generator = new RandomNameGenerator();
 
     /**
@@ -59,7 +69,30 @@ public class DataFaker implements ExtensionPoint, Function<Function<String, Stri
      */
     @Override
     public Supplier<String> apply(@Nonnull Function<String, String> nameTransformer) {
-        return () -> nameTransformer.apply(generator.next()).toLowerCase(Locale.ENGLISH).replace(' ', '_');
+        return () -> normalize(nameTransformer.apply(generator.next()));
+    }
+
+    /**
+     * Applies the provided function to a name for the given original and normalizes the result. The name is random,
+     * or in deterministic mode the pseudonym of the original.
+     */
+    public @Nonnull String apply(@Nonnull Function<String, String> nameTransformer, @Nonnull String original) {
+        String name = ContentFilters.get().isDeterministic() ? pseudonym(original) : generator.next();
+        return normalize(nameTransformer.apply(name));
+    }
+
+    /**
+     * Derives a pseudonym from the keyed hash of an original: a name from the same word lists as random names,
+     * followed by part of the hash in hex so that originals sharing a name still get distinct pseudonyms.
+     */
+    static @Nonnull String pseudonym(@Nonnull String original) {
+        ByteBuffer mac = ByteBuffer.wrap(PSEUDONYM_KEY.mac(original.getBytes(StandardCharsets.UTF_8)));
+        String name = new RandomNameGenerator(mac.getInt()).next();
+        return name + '_' + String.format("%08x", mac.getInt());
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ENGLISH).replace(' ', '_');
     }
 
 }
@@ -27,12 +27,15 @@ package com.cloudbees.jenkins.support.filter;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
@@ -40,12 +43,32 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Wraps an OutputStream by filtering written lines using a provided ContentFilter.
  * Data written to an instance of this will be decoded on the fly using the provided charset, and each line
  * written is filtered.
+ * <p>
+ * With UTF-8, US-ASCII or ISO-8859-1, in which a line break byte is always a line break, lines are instead split on
+ * the bytes as written, and only decoded to be filtered. A line left as is by the filter is written as it was, rather
+ * than encoded again.
+ * <p>
+ * A {@link StreamingContentFilter} is given each line as a view of the buffered bytes or characters, so that a line it
+ * passes through is never copied into a string.
+ * <p>
+ * A line longer than {@link LineSegments#MAX_LINE_WINDOW} is not buffered whole but filtered in overlapping segments,
+ * so that the memory used by a stream does not depend on the length of the lines written to it.
+ * <p>
+ * Given a pool, lines are instead gathered in chunks which are filtered in parallel on the pool and written back in
+ * order, so that filtering large contents is not limited to the writing thread. The output is the same either way.
  *
  * @see ContentFilter
  * @see FilteredWriter
@@ -55,6 +78,7 @@ import java.util.regex.Matcher;
 public class FilteredOutputStream extends FilterOutputStream {
 
     private static final String UNKNOWN_INPUT = "\uFFFD";
+    private static final char UNKNOWN_CHAR = '\uFFFD';
 
     @GuardedBy("this")
     private final ByteBuffer encodedBuf = ByteBuffer.allocate(256);
@@ -64,6 +88,51 @@ public class FilteredOutputStream extends FilterOutputStream {
     @GuardedBy("this")
     private final CharsetDecoder decoder;
     private final ContentFilter contentFilter;
+    /**
+     * Whether lines are split on the bytes written rather than on the decoded characters.
+     */
+    private final boolean splitBytes;
+    /**
+     * The bytes of the line being written, when {@link #splitBytes}.
+     */
+    @GuardedBy("this")
+    private byte[] lineBytes;
+    @GuardedBy("this")
+    private int lineLength;
+    /**
+     * The bytes of the last filtered line which had to be encoded.
+     */
+    @GuardedBy("this")
+    private byte[] encodedBytes;
+    /**
+     * The view of the ASCII line being filtered.
+     */
+    @GuardedBy("this")
+    private final AsciiSequence asciiLine = new AsciiSequence();
+    /**
+     * The last filtered line, when the filter replaced anything in it.
+     */
+    @GuardedBy("this")
+    private StringBuilder filteredLine;
+    @GuardedBy("this")
+    private final byte[] singleByte = new byte[1];
+    @GuardedBy("this")
+    private boolean closing;
+    @CheckForNull
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    /**
+     * The lines waiting to be filtered together, when filtering in chunks.
+     */
+    @GuardedBy("this")
+    private List<String> chunk = new ArrayList<>();
+    @GuardedBy("this")
+    private int chunkLength;
+    /**
+     * The chunks being filtered, in the order they are to be written.
+     */
+    @GuardedBy("this")
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
 
     /**
      * Constructs a filtered stream using the provided filter and assuming UTF-8.
@@ -83,6 +152,21 @@ public class FilteredOutputStream extends FilterOutputStream {
      * @param contentFilter content filter to apply to lines written through this stream
      */
     public FilteredOutputStream(@Nonnull OutputStream out, @Nonnull Charset charset, @Nonnull ContentFilter contentFilter) {
+        this(out, charset, contentFilter, null, 0);
+    }
+
+    /**
+     * Constructs a filtered stream using the provided filter and charset, filtering lines in chunks on the provided
+     * pool. Contents which do not fill a chunk are filtered by the writing thread.
+     *
+     * @param out           output stream to write filtered content to
+     * @param charset       character set to use for decoding and encoding bytes written to this stream
+     * @param contentFilter content filter to apply to lines written through this stream
+     * @param pool          pool to filter chunks on, or {@code null} to filter each line as it is written
+     * @param chunkSize     how many characters of lines to filter together
+     */
+    public FilteredOutputStream(@Nonnull OutputStream out, @Nonnull Charset charset, @Nonnull ContentFilter contentFilter,
+                                @CheckForNull ForkJoinPool pool, int chunkSize) {
         super(out);
         this.charset = charset;
         this.decoder = charset.newDecoder()
@@ -90,20 +174,33 @@ public class FilteredOutputStream extends FilterOutputStream {
                 .onUnmappableCharacter(CodingErrorAction.REPLACE)
                 .replaceWith(UNKNOWN_INPUT);
         this.contentFilter = contentFilter;
+        this.pool = pool;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.splitBytes = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
     }
 
     private void ensureOpen() {
         if (out == null) {
             throw new IllegalStateException("FilteredOutputStream is closed");
         }
-        if (decodedBuf == null) {
+        if (splitBytes) {
+            if (lineBytes == null) {
+                lineBytes = new byte[FilteredConstants.DEFAULT_DECODER_CAPACITY];
+                encodedBytes = new byte[FilteredConstants.DEFAULT_DECODER_CAPACITY];
+            }
+        } else if (decodedBuf == null) {
             decodedBuf = CharBuffer.allocate(FilteredConstants.DEFAULT_DECODER_CAPACITY);
         }
+        if (filteredLine == null) {
+            filteredLine = new StringBuilder();
+        }
     }
 
     @Override
     public synchronized void write(int b) throws IOException {
-        write(new byte[]{(byte) b}, 0, 1);
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
     }
 
     @Override
@@ -114,6 +211,10 @@ public class FilteredOutputStream extends FilterOutputStream {
     @Override
     public synchronized void write(@Nonnull byte[] b, int off, int len) throws IOException {
         ensureOpen();
+        if (splitBytes) {
+            splitLines(b, off, len);
+            return;
+        }
         while (len > 0) {
             int toCopy = Math.min(encodedBuf.remaining(), len);
             if (toCopy == 0) throw new IllegalStateException("Cannot write zero bytes; " + encodedBuf.toString());
@@ -131,11 +232,19 @@ public class FilteredOutputStream extends FilterOutputStream {
     @Override
     public synchronized void flush() throws IOException {
         ensureOpen();
-        if (decodedBuf.position() > 0) {
+        writeChunks();
+        if (splitBytes) {
+            // like the decoder, wait for the rest of a character before filtering it
+            int incomplete = closing ? 0 : incompleteCharLength();
+            if (lineLength > incomplete) {
+                filterLine(lineBytes, 0, lineLength - incomplete);
+                System.arraycopy(lineBytes, lineLength - incomplete, lineBytes, 0, incomplete);
+                lineLength = incomplete;
+                writeChunks();
+            }
+        } else if (decodedBuf.position() > 0) {
             decodedBuf.flip();
-            String contents = decodedBuf.toString();
-            String filtered = contentFilter.filter(contents);
-            out.write(filtered.getBytes(charset));
+            filterChars(decodedBuf, 0, decodedBuf.limit());
             decodedBuf.clear();
         }
         out.flush();
@@ -144,11 +253,180 @@ public class FilteredOutputStream extends FilterOutputStream {
     @Override
     public synchronized void close() throws IOException {
         ensureOpen();
-        decodeFilterFlushLines(true);
+        if (!splitBytes) {
+            decodeFilterFlushLines(true);
+        }
+        closing = true;
         flush();
         out.close();
         out = null;
         decodedBuf = null;
+        lineBytes = null;
+        encodedBytes = null;
+        filteredLine = null;
+    }
+
+    /**
+     * Filters each complete line of the given bytes, keeping the last incomplete one until more bytes are written.
+     */
+    private void splitLines(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                if (lineLength == 0 && i + 1 - start <= LineSegments.MAX_LINE_WINDOW) {
+                    filterLine(b, start, i + 1 - start);
+                } else {
+                    appendLine(b, start, i + 1 - start);
+                    filterLine(lineBytes, 0, lineLength);
+                    lineLength = 0;
+                }
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            appendLine(b, start, end - start);
+        }
+    }
+
+    /**
+     * @return how many bytes at the end of the current line start a UTF-8 character without ending it
+     */
+    private int incompleteCharLength() {
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            return 0;
+        }
+        for (int i = lineLength - 1; i >= Math.max(0, lineLength - 3); i--) {
+            int b = lineBytes[i] & 0xFF;
+            if (b < 0x80) {
+                return 0;
+            } else if (b >= 0xC2 && b <= 0xF4) {
+                int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+                return lineLength - i < length ? lineLength - i : 0;
+            } else if (b >= 0xC0) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private void appendLine(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (lineLength >= LineSegments.MAX_LINE_WINDOW) {
+                filterLineSegment();
+                continue;
+            }
+            int toCopy = Math.min(len, LineSegments.MAX_LINE_WINDOW - lineLength);
+            ensureLineCapacity(lineLength + toCopy);
+            System.arraycopy(b, off, lineBytes, lineLength, toCopy);
+            lineLength += toCopy;
+            off += toCopy;
+            len -= toCopy;
+        }
+    }
+
+    private void ensureLineCapacity(int capacity) {
+        if (capacity > lineBytes.length) {
+            lineBytes = Arrays.copyOf(lineBytes, Math.max(capacity, Math.min(lineBytes.length * 2, LineSegments.MAX_LINE_WINDOW)));
+        }
+    }
+
+    /**
+     * Filters and writes the start of the current line, which is too long to be buffered whole, keeping the rest.
+     *
+     * @see LineSegments
+     */
+    private void filterLineSegment() throws IOException {
+        writeChunks();
+        int incomplete = incompleteCharLength();
+        String text = new String(lineBytes, 0, lineLength - incomplete, charset);
+        filteredLine.setLength(0);
+        int cut = LineSegments.filter(contentFilter, text, filteredLine);
+        writeEncoded(filteredLine);
+        // what could not be decoded is kept as it would be written
+        byte[] rest = text.substring(cut).getBytes(charset);
+        ensureLineCapacity(rest.length + incomplete);
+        System.arraycopy(lineBytes, lineLength - incomplete, lineBytes, rest.length, incomplete);
+        System.arraycopy(rest, 0, lineBytes, 0, rest.length);
+        lineLength = rest.length + incomplete;
+    }
+
+    private void filterLine(byte[] b, int off, int len) throws IOException {
+        boolean ascii = true;
+        for (int i = off; i < off + len && ascii; i++) {
+            ascii = b[i] >= 0;
+        }
+        if (pool != null) {
+            // decoding ASCII as ISO-8859-1 skips the checks for multi-byte sequences
+            gather(new String(b, off, len, ascii ? StandardCharsets.ISO_8859_1 : charset));
+            return;
+        }
+        boolean encode;
+        if (ascii) {
+            try {
+                encode = filter(asciiLine.set(b, off, len));
+            } finally {
+                asciiLine.set(null, 0, 0);
+            }
+        } else {
+            String line = new String(b, off, len, charset);
+            encode = filter(line);
+            if (!encode && line.indexOf(UNKNOWN_CHAR) >= 0) {
+                // unless it could not be decoded, encoding the line again would give the same bytes
+                filteredLine.append(line);
+                encode = true;
+            }
+        }
+        if (encode) {
+            writeEncoded(filteredLine);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Filters a line into {@link #filteredLine}.
+     *
+     * @return whether the filter replaced anything in the line
+     */
+    private boolean filter(CharSequence line) throws IOException {
+        filteredLine.setLength(0);
+        return StreamingContentFilter.filter(contentFilter, line, 0, line.length(), filteredLine);
+    }
+
+    /**
+     * Filters and writes the given decoded characters.
+     */
+    private void filterChars(CharBuffer chars, int start, int end) throws IOException {
+        filteredLine.setLength(0);
+        CharSequence filtered = StreamingContentFilter.filter(contentFilter, chars, start, end, filteredLine)
+                ? filteredLine : chars.subSequence(start, end);
+        ByteBuffer encoded = charset.encode(CharBuffer.wrap(filtered));
+        out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+    }
+
+    private void writeEncoded(CharSequence filtered) throws IOException {
+        int length = filtered.length();
+        if (length > encodedBytes.length) {
+            encodedBytes = new byte[Math.max(length, encodedBytes.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = filtered.charAt(i);
+            if (c >= 0x80) {
+                out.write(filtered.toString().getBytes(charset));
+                return;
+            }
+            encodedBytes[i] = (byte) c;
+        }
+        out.write(encodedBytes, 0, length);
+    }
+
+    private void gather(String line) throws IOException {
+        chunk.add(line);
+        chunkLength += line.length();
+        if (chunkLength >= chunkSize) {
+            submitChunk();
+        }
     }
 
     private void decodeFilterFlushLines(boolean endOfInput) throws IOException {
@@ -161,9 +439,13 @@ public class FilteredOutputStream extends FilterOutputStream {
                 break;
             } else if (result.isOverflow()) {
                 if (!filterFlushLines()) {
-                    // unable to make space, need to resize
+                    // unable to make space, need to resize or to filter part of the line
                     decodedBuf.flip();
-                    decodedBuf = CharBuffer.allocate(decodedBuf.capacity() * 2).put(decodedBuf);
+                    if (decodedBuf.capacity() >= LineSegments.MAX_LINE_WINDOW) {
+                        filterCharsSegment();
+                    } else {
+                        decodedBuf = CharBuffer.allocate(decodedBuf.capacity() * 2).put(decodedBuf);
+                    }
                 }
             } else {
                 throw new IllegalStateException("CharsetDecoder is mis-configured. Result: " + result);
@@ -177,13 +459,19 @@ public class FilteredOutputStream extends FilterOutputStream {
         boolean flushed = false;
         if (decodedBuf.position() > 0) {
             decodedBuf.flip();
-            Matcher matcher = FilteredConstants.EOL.matcher(decodedBuf);
+            char[] chars = decodedBuf.array();
+            int offset = decodedBuf.arrayOffset();
             int start = 0;
-            while (matcher.find()) {
-                int end = matcher.end();
-                String line = decodedBuf.subSequence(start, end).toString();
-                String filtered = contentFilter.filter(line);
-                out.write(filtered.getBytes(charset));
+            for (int i = 0; i < decodedBuf.limit(); i++) {
+                if (chars[offset + i] != '\n') {
+                    continue;
+                }
+                int end = i + 1;
+                if (pool == null) {
+                    filterChars(decodedBuf, start, end);
+                } else {
+                    gather(new String(chars, offset + start, end - start));
+                }
                 start = end;
                 flushed = true;
             }
@@ -194,12 +482,106 @@ public class FilteredOutputStream extends FilterOutputStream {
     }
 
     /**
-     * Resets the state of this stream's decoders and buffers.
+     * Filters and writes the start of the flipped decoded line, which is too long to be buffered whole, keeping the
+     * rest.
+     *
+     * @see LineSegments
+     */
+    private void filterCharsSegment() throws IOException {
+        writeChunks();
+        filteredLine.setLength(0);
+        int cut = LineSegments.filter(contentFilter, decodedBuf, filteredLine);
+        ByteBuffer encoded = charset.encode(CharBuffer.wrap(filteredLine));
+        out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+        decodedBuf.position(decodedBuf.position() + cut);
+        decodedBuf.compact();
+    }
+
+    private void submitChunk() throws IOException {
+        List<String> lines = chunk;
+        chunk = new ArrayList<>();
+        chunkLength = 0;
+        pending.add(pool.submit(() -> filterChunk(lines)));
+        writeFilteredChunks(pool.getParallelism() + 1);
+    }
+
+    private byte[] filterChunk(List<String> lines) {
+        StringBuilder filtered = new StringBuilder();
+        for (String line : lines) {
+            filtered.append(contentFilter.filter(line));
+        }
+        return filtered.toString().getBytes(charset);
+    }
+
+    /**
+     * Writes all the lines gathered in chunks.
+     */
+    private void writeChunks() throws IOException {
+        if (!chunk.isEmpty()) {
+            if (pending.isEmpty()) {
+                // not worth handing over to the pool
+                out.write(filterChunk(chunk));
+                chunk.clear();
+                chunkLength = 0;
+            } else {
+                submitChunk();
+            }
+        }
+        writeFilteredChunks(0);
+    }
+
+    /**
+     * Writes the chunks filtered so far in order, waiting for the oldest ones while more than the given number are
+     * pending.
+     */
+    private void writeFilteredChunks(int maxPending) throws IOException {
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone())) {
+            try {
+                out.write(pending.remove().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw (IOException) new InterruptedIOException("Interrupted while filtering").initCause(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Resets the state of this stream's decoders and buffers. Complete lines gathered in chunks are written first, as
+     * they would have been without chunks.
      */
     public synchronized void reset() {
         ensureOpen();
+        try {
+            writeChunks();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            chunk.clear();
+            chunkLength = 0;
+            pending.forEach(future -> future.cancel(true));
+            pending.clear();
+        }
         encodedBuf.clear();
-        if (decodedBuf.capacity() > FilteredConstants.DEFAULT_DECODER_CAPACITY) {
+        lineLength = 0;
+        if (splitBytes) {
+            if (lineBytes.length > FilteredConstants.DEFAULT_DECODER_CAPACITY) {
+                lineBytes = new byte[FilteredConstants.DEFAULT_DECODER_CAPACITY];
+            }
+            if (encodedBytes.length > FilteredConstants.DEFAULT_DECODER_CAPACITY) {
+                encodedBytes = new byte[FilteredConstants.DEFAULT_DECODER_CAPACITY];
+            }
+            if (filteredLine.capacity() > FilteredConstants.DEFAULT_DECODER_CAPACITY) {
+                filteredLine = new StringBuilder();
+            }
+        } else if (decodedBuf.capacity() > FilteredConstants.DEFAULT_DECODER_CAPACITY) {
             this.decodedBuf = CharBuffer.allocate(FilteredConstants.DEFAULT_DECODER_CAPACITY);
         } else {
             decodedBuf.clear();
@@ -216,4 +598,46 @@ public class FilteredOutputStream extends FilterOutputStream {
         }
         return new FilteredWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), contentFilter);
     }
+
+    /**
+     * A view of ASCII bytes as characters.
+     */
+    private static final class AsciiSequence implements CharSequence {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+
+        AsciiSequence set(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return (char) bytes[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+            }
+            return new AsciiSequence().set(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+    }
 }
@@ -36,7 +36,10 @@ import java.nio.CharBuffer;
 import java.util.regex.Matcher;
 
 /**
- * Wraps a Writer by filtering written lines using a provided ContentFilter.
+ * Wraps a Writer by filtering written lines using a provided ContentFilter. A {@link StreamingContentFilter} is given
+ * each line as a view of the buffered characters, and what it replaces is appended straight to the wrapped Writer.
+ * Lines longer than {@link LineSegments#MAX_LINE_WINDOW} are filtered in overlapping segments rather than buffered
+ * whole.
  *
  * @see ContentFilter
  * @see FilteredOutputStream
@@ -74,7 +77,7 @@ public class FilteredWriter extends FilterWriter {
         while (len > 0) {
             if (!buf.hasRemaining()) filterFlushLines();
             if (!buf.hasRemaining()) {
-                buf = CharBuffer.allocate(buf.capacity() * 2).put(buf);
+                growOrFilterSegment();
             }
             int toCopy = Math.min(buf.remaining(), len);
             if (toCopy == 0) throw new IllegalStateException();
@@ -92,7 +95,7 @@ public class FilteredWriter extends FilterWriter {
         while (len > 0) {
             if (!buf.hasRemaining()) filterFlushLines();
             if (!buf.hasRemaining()) {
-                buf = CharBuffer.allocate(buf.capacity() * 2).put(buf);
+                growOrFilterSegment();
             }
             int toCopy = Math.min(buf.remaining(), len);
             if (toCopy == 0) throw new IllegalStateException();
@@ -109,9 +112,7 @@ public class FilteredWriter extends FilterWriter {
         ensureOpen();
         if (buf.position() > 0) {
             buf.flip();
-            String original = buf.toString();
-            String filtered = contentFilter.filter(original);
-            out.write(filtered);
+            filter(0, buf.limit());
             buf.clear();
         }
         out.flush();
@@ -133,9 +134,7 @@ public class FilteredWriter extends FilterWriter {
             int start = 0;
             while (matcher.find()) {
                 int end = matcher.end();
-                String line = buf.subSequence(start, end).toString();
-                String filtered = contentFilter.filter(line);
-                out.write(filtered);
+                filter(start, end);
                 start = end;
             }
             buf.position(start);
@@ -143,4 +142,30 @@ public class FilteredWriter extends FilterWriter {
         }
     }
 
+    /**
+     * Makes space in the buffer filled by a single line, by growing it up to {@link LineSegments#MAX_LINE_WINDOW},
+     * and then by filtering and writing the start of the line.
+     */
+    private void growOrFilterSegment() throws IOException {
+        buf.flip();
+        if (buf.capacity() < LineSegments.MAX_LINE_WINDOW) {
+            buf = CharBuffer.allocate(buf.capacity() * 2).put(buf);
+            return;
+        }
+        StringBuilder segment = new StringBuilder();
+        int cut = LineSegments.filter(contentFilter, buf, segment);
+        out.append(segment);
+        buf.position(cut);
+        buf.compact();
+    }
+
+    /**
+     * Filters and writes the given range of the flipped buffer.
+     */
+    private void filter(int start, int end) throws IOException {
+        if (!StreamingContentFilter.filter(contentFilter, buf, start, end, out)) {
+            out.write(buf.array(), buf.arrayOffset() + start, end - start);
+        }
+    }
+
 }
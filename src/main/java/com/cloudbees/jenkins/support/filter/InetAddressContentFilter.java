@@ -30,20 +30,17 @@ import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import javax.annotation.Nonnull;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Filters contents by mapping all found IPv4 and IPv6 addresses to generated names.
  *
  * @see ContentMappings
+ * @see InetAddressScanner
  * @since TODO
  */
 @Extension
 @Restricted(NoExternalUse.class)
-public class InetAddressContentFilter implements ContentFilter {
+public class InetAddressContentFilter implements MatchingContentFilter {
 
     /**
      * @return the singleton instance
@@ -52,35 +49,27 @@ public class InetAddressContentFilter implements ContentFilter {
         return ExtensionList.lookupSingleton(InetAddressContentFilter.class);
     }
 
-    // https://blogs.msdn.microsoft.com/oldnewthing/20060522-08/?p=31113
-    private static final String IPv4 =
-            "([1-9]?\\d|1\\d\\d|2[0-4]\\d|25[0-5])\\.([1-9]?\\d|1\\d\\d|2[0-4]\\d|25[0-5])\\.([1-9]?\\d|1\\d\\d|2[0-4]\\d|25[0-5])\\.([1-9]?\\d|1\\d\\d|2[0-4]\\d|25[0-5])";
-    // https://stackoverflow.com/a/17871737
-    private static final String IPv6 =
-            "(([0-9a-fA-F]{1,4}:){7}[0-9a-fA-F]{1,4}|([0-9a-fA-F]{1,4}:){1,7}:|([0-9a-fA-F]{1,4}:){1,6}:[0-9a-fA-F]{1,4}|([0-9a-fA-F]{1,4}:){1,5}(:[0-9a-fA-F]{1,4}){1,2}|([0-9a-fA-F]{1,4}:){1,4}(:[0-9a-fA-F]{1,4}){1,3}|([0-9a-fA-F]{1,4}:){1,3}(:[0-9a-fA-F]{1,4}){1,4}|([0-9a-fA-F]{1,4}:){1,2}(:[0-9a-fA-F]{1,4}){1,5}|[0-9a-fA-F]{1,4}:((:[0-9a-fA-F]{1,4}){1,6})|:((:[0-9a-fA-F]{1,4}){1,7}|:)|fe80:(:[0-9a-fA-F]{0,4}){0,4}%[0-9a-zA-Z]+|::(ffff(:0{1,4})?:)?((25[0-5]|(2[0-4]|1?[0-9])?[0-9])\\.){3}(25[0-5]|(2[0-4]|1?[0-9])?[0-9])|([0-9a-fA-F]{1,4}:){1,4}:((25[0-5]|(2[0-4]|1?[0-9])?[0-9])\\.){3}(25[0-5]|(2[0-4]|1?[0-9])?[0-9]))";
-    private static final Pattern IP_ADDRESS = Pattern.compile("\\b(" + IPv4 + '|' + IPv6 + ")\\b");
-
     @Override
-    public @Nonnull String filter(@Nonnull String input) {
+    public void match(@Nonnull ContentMatches matches) {
         ContentMappings mappings = ContentMappings.get();
-        Set<ContentMapping> found = new HashSet<>();
-        Matcher m = IP_ADDRESS.matcher(input);
+        InetAddressScanner m = new InetAddressScanner(matches.getInput());
         while (m.find()) {
             String ip = m.group();
 
             if (!mappings.getStopWords().contains(ip)) {
-                found.add(mappings.getMappingOrCreate(ip, InetAddressContentFilter::newMapping));
+                matches.offer(m.start(), m.end() - m.start(),
+                        () -> mappings.getAddressMappingOrCreate(ip).getReplacement());
             }
         }
-        String filtered = input;
-        for (ContentMapping mapping : found) {
-            filtered = mapping.filter(filtered);
-        }
-        return filtered;
     }
 
-    private static ContentMapping newMapping(String original) {
-        String replacement = DataFaker.get().apply(name -> "ip_" + name).get();
+    @Override
+    public int getMaxMatchLength() {
+        return InetAddressScanner.MAX_MATCH_LENGTH;
+    }
+
+    static ContentMapping newMapping(String original) {
+        String replacement = DataFaker.get().apply(name -> "ip_" + name, original);
         return ContentMapping.of(original, replacement);
     }
 
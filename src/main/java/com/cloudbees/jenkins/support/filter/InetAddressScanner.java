@@ -0,0 +1,384 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Finds IPv4 and IPv6 addresses in a line without regular expressions, in the manner of a
+ * {@link java.util.regex.Matcher}.
+ * <p>
+ * Addresses are those of <a href="https://blogs.msdn.microsoft.com/oldnewthing/20060522-08/?p=31113">IPv4</a> and
+ * <a href="https://stackoverflow.com/a/17871737">IPv6</a> expressions, with a word boundary ({@code \b}) on both
+ * ends. Lines without any digit or colon are rejected at once. Otherwise only the characters which may start an
+ * address are looked at, and from each of them only as far as an address may go, so a line is scanned in linear
+ * time. Where addresses of several lengths start at the same index, the longest one is found, unless it ends within
+ * an IPv4 address or a link-local address with a zone.
+ */
+final class InetAddressScanner {
+
+    /** The length of the longest address without a zone, such as {@code 1:2:3:4:5:6:7:8} in full. */
+    private static final int MAX_LENGTH = 39;
+    /** The length of the longest link-local address prefix before its zone, such as {@code fe80::::}. */
+    private static final int MAX_ZONED_LENGTH = 25;
+    /**
+     * The length of the longest address found, assuming a zone is an interface name, which is at most 15 characters
+     * long on Linux.
+     */
+    static final int MAX_MATCH_LENGTH = Math.max(MAX_LENGTH, MAX_ZONED_LENGTH + 1 + 15);
+
+    private final CharSequence input;
+    private final boolean candidate;
+    private int start;
+    private int end;
+
+    InetAddressScanner(@Nonnull CharSequence input) {
+        this.input = input;
+        this.candidate = mayContainAddress(input);
+    }
+
+    /**
+     * Finds the next address.
+     *
+     * @return {@code true} if an address was found
+     */
+    boolean find() {
+        if (!candidate) {
+            return false;
+        }
+        for (int i = end; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if ((isHex(c) || c == ':') && MappingAutomaton.isWordBoundary(input, i)) {
+                int found = longestAddressFrom(i);
+                if (found > i) {
+                    start = i;
+                    end = found;
+                    return true;
+                }
+            }
+        }
+        end = input.length();
+        return false;
+    }
+
+    /**
+     * @return the start index of the address found
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * @return the index following the address found
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * @return the address found
+     */
+    @Nonnull String group() {
+        return input.subSequence(start, end).toString();
+    }
+
+    private static boolean mayContainAddress(CharSequence input) {
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == ':' || isDigit(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the end of the longest address starting at the given index followed by a word boundary, or
+     * {@code -1}
+     */
+    private int longestAddressFrom(int from) {
+        int run = endOfRun(from);
+        int colons = 0;
+        int dots = 0;
+        for (int i = from; i < run; i++) {
+            char c = input.charAt(i);
+            if (c == ':') {
+                colons++;
+            } else if (c == '.') {
+                dots++;
+            }
+        }
+        if (colons == 0 && dots < 3) {
+            return -1;
+        }
+        int zone = zonedAddressEnd(from, run);
+        if (zone > 0) {
+            return zone;
+        }
+        for (int to = run; to > from; to--) {
+            if (MappingAutomaton.isWordBoundary(input, to) && (isIPv4(from, to) || isIPv6(from, to))
+                    && !isWithinAddress(from, to)) {
+                return to;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the end of the hex digits, colons and dots starting at the given index, as far as an address may go
+     */
+    private int endOfRun(int from) {
+        int limit = Math.min(input.length(), from + MAX_LENGTH);
+        int run = from;
+        while (run < limit && (isHex(input.charAt(run)) || input.charAt(run) == ':' || input.charAt(run) == '.')) {
+            run++;
+        }
+        return run;
+    }
+
+    /**
+     * @return the end of the link-local address with a zone starting at the given index, or {@code -1}
+     */
+    private int zonedAddressEnd(int from, int run) {
+        if (run < input.length() && input.charAt(run) == '%' && run - from <= MAX_ZONED_LENGTH) {
+            int zone = run + 1;
+            while (zone < input.length() && isAlphanumeric(input.charAt(zone))) {
+                zone++;
+            }
+            if (zone > run + 1 && MappingAutomaton.isWordBoundary(input, zone) && isZoned(from, run)) {
+                return zone;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether an IPv4 address or a link-local address with a zone starts with the last group of the given range and
+     * goes past it. Taking {@code 2001:db8::1:192} out of {@code 2001:db8::1:192.168.0.1} would leave the rest of the
+     * IPv4 address in clear text, so the shorter {@code 2001:db8::1} is taken instead and the IPv4 address is found
+     * next, as the regular expressions do.
+     */
+    private boolean isWithinAddress(int from, int to) {
+        int group = to;
+        while (group > from && input.charAt(group - 1) != ':') {
+            group--;
+        }
+        if (group == from || group == to) {
+            return false;
+        }
+        int run = endOfRun(group);
+        for (int end = Math.min(run, group + 15); end > to; end--) {
+            if (MappingAutomaton.isWordBoundary(input, end) && isIPv4(group, end)) {
+                return true;
+            }
+        }
+        return zonedAddressEnd(group, run) > to;
+    }
+
+    /**
+     * Whether the given range is {@code fe80:} followed by up to four colons each followed by up to four hex digits,
+     * as a link-local address before its zone.
+     */
+    private boolean isZoned(int from, int to) {
+        if (!startsWith("fe80:", from)) {
+            return false;
+        }
+        int groups = 0;
+        for (int i = from + 5; i < to; groups++) {
+            if (input.charAt(i) != ':' || groups == 4) {
+                return false;
+            }
+            int digits = hexDigits(i + 1, to);
+            if (digits > 4) {
+                return false;
+            }
+            i += 1 + digits;
+        }
+        return true;
+    }
+
+    private boolean isIPv4(int from, int to) {
+        return isDottedQuad(from, to, false);
+    }
+
+    /**
+     * Whether the given range is four octets separated by dots. Embedded in an IPv6 address, octets may have leading
+     * zeros as long as they have no more than two digits.
+     */
+    private boolean isDottedQuad(int from, int to, boolean embedded) {
+        int i = from;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                if (i >= to || input.charAt(i) != '.') {
+                    return false;
+                }
+                i++;
+            }
+            int digits = 0;
+            while (i + digits < to && isDigit(input.charAt(i + digits))) {
+                digits++;
+            }
+            if (!isOctet(i, digits, embedded)) {
+                return false;
+            }
+            i += digits;
+        }
+        return i == to;
+    }
+
+    private boolean isOctet(int from, int digits, boolean embedded) {
+        switch (digits) {
+            case 1:
+                return true;
+            case 2:
+                return embedded || input.charAt(from) != '0';
+            case 3:
+                char first = input.charAt(from);
+                char second = input.charAt(from + 1);
+                char third = input.charAt(from + 2);
+                return first == '1' || first == '2' && (second < '5' || second == '5' && third <= '5');
+            default:
+                return false;
+        }
+    }
+
+    private boolean isIPv6(int from, int to) {
+        int lastColon = to - 1;
+        while (lastColon >= from && input.charAt(lastColon) != ':') {
+            lastColon--;
+        }
+        if (lastColon < from) {
+            return false;
+        }
+        for (int i = lastColon + 1; i < to; i++) {
+            if (input.charAt(i) == '.') {
+                return isDottedQuad(lastColon + 1, to, true) && isEmbeddingPrefix(from, lastColon + 1);
+            }
+        }
+        return isHexGroups(from, to);
+    }
+
+    /**
+     * Whether the given range may come before an embedded IPv4 address: {@code ::}, {@code ::ffff:},
+     * {@code ::ffff:0:} with up to four zeros, or one to four groups followed by {@code ::}.
+     */
+    private boolean isEmbeddingPrefix(int from, int to) {
+        if (startsWith("::", from)) {
+            if (from + 2 == to) {
+                return true;
+            }
+            if (!startsWith("ffff:", from + 2)) {
+                return false;
+            }
+            int zeros = from + 7;
+            while (zeros < to && input.charAt(zeros) == '0') {
+                zeros++;
+            }
+            return zeros == from + 7 && zeros == to
+                    || zeros > from + 7 && zeros <= from + 11 && zeros + 1 == to && input.charAt(zeros) == ':';
+        }
+        int groups = 0;
+        int i = from;
+        while (i < to - 1) {
+            int digits = hexDigits(i, to);
+            if (digits == 0 || digits > 4 || input.charAt(i + digits) != ':') {
+                return false;
+            }
+            i += digits + 1;
+            groups++;
+        }
+        return i == to - 1 && input.charAt(i) == ':' && groups >= 1 && groups <= 4;
+    }
+
+    /**
+     * Whether the given range is eight groups of hex digits separated by colons, or fewer groups with a single
+     * {@code ::} standing for the missing ones.
+     */
+    private boolean isHexGroups(int from, int to) {
+        int groups = 0;
+        boolean compressed = false;
+        int i = from;
+        if (startsWith("::", i)) {
+            compressed = true;
+            i += 2;
+        }
+        while (i < to) {
+            int digits = hexDigits(i, to);
+            if (digits == 0 || digits > 4) {
+                return false;
+            }
+            i += digits;
+            groups++;
+            if (i < to) {
+                if (input.charAt(i) != ':') {
+                    return false;
+                }
+                i++;
+                if (i < to && input.charAt(i) == ':') {
+                    if (compressed) {
+                        return false;
+                    }
+                    compressed = true;
+                    i++;
+                } else if (i == to) {
+                    // a single trailing colon
+                    return false;
+                }
+            }
+        }
+        return compressed ? groups <= 7 : groups == 8;
+    }
+
+    private boolean startsWith(String prefix, int from) {
+        if (from + prefix.length() > input.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (input.charAt(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hexDigits(int from, int to) {
+        int i = from;
+        while (i < to && isHex(input.charAt(i))) {
+            i++;
+        }
+        return i - from;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHex(char c) {
+        return isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return isDigit(c) || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+}
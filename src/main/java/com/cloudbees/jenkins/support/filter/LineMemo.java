@@ -0,0 +1,347 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support.filter;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded memo of the lines filtered by {@link ContentFilter#ALL}, evicting the least recently used ones, as logs
+ * repeat the same lines over and over. Lines are looked up by a 64 bit hash of their characters and compared in full,
+ * so that a collision only costs a miss.
+ * <p>
+ * The memo is split into {@link #SEGMENTS} segments by the top bits of the hash, each with its own lock and evicting
+ * its own least recently used lines, so that the threads filtering contents concurrently rarely wait for each other.
+ * <p>
+ * The memo is emptied whenever its generation changes, that is whenever the {@link ContentMappings} or the way lines
+ * are filtered change, as a line filtered before could then be filtered differently.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class LineMemo {
+
+    /**
+     * How many lines are memoized, {@code 0} to disable the memo.
+     */
+    static /*final*/ int SIZE = Math.max(0, Integer.getInteger(LineMemo.class.getName() + ".SIZE", 2048));
+
+    /**
+     * How long lines may be to be memoized, as longer ones are less likely to repeat.
+     */
+    static /*final*/ int MAX_LINE_LENGTH = Math.max(0, Integer.getInteger(LineMemo.class.getName() + ".MAX_LINE_LENGTH", 1024));
+
+    /**
+     * How many segments the memo is split into, rounded down to a power of two and to at most one per line.
+     */
+    static /*final*/ int SEGMENTS = Math.max(1, Integer.getInteger(LineMemo.class.getName() + ".SEGMENTS", 16));
+
+    /**
+     * @return the memo of {@link ContentFilter#ALL}
+     */
+    public static @Nonnull LineMemo get() {
+        return ((AllContentFilters) ContentFilter.ALL).getMemo();
+    }
+
+    private final int size;
+    private final Segment[] segments;
+    /**
+     * How many bits the hash is shifted right by to index {@link #segments}.
+     */
+    private final int shift;
+    /**
+     * The generation of the last lookup, so that changing generations is counted once rather than per segment.
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    LineMemo(int size) {
+        this(size, SEGMENTS);
+    }
+
+    LineMemo(int size, int segments) {
+        this.size = size;
+        int count = Integer.highestOneBit(Math.max(1, Math.min(segments, size)));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // the first segments take what does not divide evenly
+            this.segments[i] = new Segment(size / count + (i < size % count ? 1 : 0));
+        }
+        this.shift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * @return whether the given region may be memoized
+     */
+    boolean accepts(int start, int end) {
+        return size > 0 && end - start <= MAX_LINE_LENGTH;
+    }
+
+    /**
+     * @return the hash the given region is memoized by
+     */
+    static long hash(@Nonnull CharSequence input, int start, int end) {
+        // FNV-1a, over chars rather than bytes
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= input.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private Segment segmentFor(long hash) {
+        // shifting a long by 64 leaves it as is
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> shift)];
+    }
+
+    /**
+     * Looks up a region filtered in the given generation.
+     *
+     * @return the memoized entry, or {@code null} if the region is not memoized
+     */
+    @CheckForNull Entry get(long hash, @Nonnull CharSequence input, int start, int end, long generation) {
+        long previous = this.generation.get();
+        if (generation != previous && this.generation.compareAndSet(previous, generation)) {
+            // segments not looked up in the meantime are emptied now, so that the change is counted once
+            boolean invalidated = false;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    invalidated |= segment.setGeneration(generation);
+                }
+            }
+            if (invalidated) {
+                invalidations.increment();
+            }
+        }
+        Segment segment = segmentFor(hash);
+        Entry entry;
+        synchronized (segment) {
+            segment.setGeneration(generation);
+            entry = segment.entries.get(hash);
+        }
+        if (entry != null && entry.matches(input, start, end)) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Memoizes how a region was filtered in the given generation.
+     *
+     * @param filtered the filtered region, or {@code null} if it was left unchanged
+     */
+    void put(long hash, @Nonnull CharSequence input, int start, int end, long generation,
+             @CheckForNull String filtered) {
+        Entry entry = new Entry(input.subSequence(start, end).toString(), filtered);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            if (generation == segment.generation) {
+                segment.entries.put(hash, entry);
+            }
+        }
+    }
+
+    /**
+     * Forgets all memoized lines.
+     */
+    void clear() {
+        boolean cleared = false;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                cleared |= !segment.entries.isEmpty();
+                segment.entries.clear();
+            }
+        }
+        if (cleared) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * @return how well the memo did so far
+     */
+    public @Nonnull Stats getStats() {
+        int memoized = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                memoized += segment.entries.size();
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), invalidations.sum(), memoized);
+    }
+
+    /**
+     * The lines memoized under one lock, evicting the least recently used ones beyond its share of the size.
+     */
+    private final class Segment {
+        @GuardedBy("this")
+        private final Map<Long, Entry> entries;
+        @GuardedBy("this")
+        private long generation;
+
+        Segment(int size) {
+            this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                    if (size() > size) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * @return whether lines of another generation were forgotten
+         */
+        @GuardedBy("this")
+        boolean setGeneration(long generation) {
+            if (generation == this.generation) {
+                return false;
+            }
+            this.generation = generation;
+            boolean invalidated = !entries.isEmpty();
+            entries.clear();
+            return invalidated;
+        }
+    }
+
+    /**
+     * A memoized line.
+     */
+    static final class Entry {
+        private final String line;
+        @CheckForNull
+        private final String filtered;
+
+        private Entry(String line, @CheckForNull String filtered) {
+            this.line = line;
+            this.filtered = filtered;
+        }
+
+        /**
+         * @return the filtered line, or {@code null} if it was left unchanged
+         */
+        @CheckForNull String getFiltered() {
+            return filtered;
+        }
+
+        private boolean matches(CharSequence input, int start, int end) {
+            if (line.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) != input.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Counts of how the memo was used.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+        private final int size;
+
+        Stats(long hits, long misses, long evictions, long invalidations, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.size = size;
+        }
+
+        /**
+         * @return how many lines were found in the memo
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return how many lines had to be filtered
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return how many lines were evicted to make room for others
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return how many times the memo was emptied as lines could be filtered differently
+         */
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        /**
+         * @return how many lines are memoized
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return the share of lines found in the memo, between 0 and 1
+         */
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        /**
+         * @return the counts since the given earlier ones, with the current size
+         */
+        public @Nonnull Stats since(@Nonnull Stats earlier) {
+            return new Stats(hits - earlier.hits, misses - earlier.misses, evictions - earlier.evictions,
+                    invalidations - earlier.invalidations, size);
+        }
+    }
+}
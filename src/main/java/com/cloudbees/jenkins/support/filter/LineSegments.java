@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * Filters lines too long to be buffered whole, such as minified files or dumps without line breaks, so that
+ * {@link FilteredOutputStream} and {@link FilteredWriter} only ever buffer {@link #MAX_LINE_WINDOW} characters of a
+ * line.
+ * <p>
+ * Past that size, the start of the line is filtered and written, and the rest is kept to be filtered with what comes
+ * next. What is kept is at least as long as the longest text the filter may replace, and the line is cut before any
+ * text the filter would replace across the cut in the whole buffered window, as told by
+ * {@link StreamingContentFilter#getCutBefore(CharSequence, int, int, int)}, so that such text is kept whole and
+ * filtered with the next segment. Cuts are also preferred between words, for filters which cannot tell where they
+ * would replace text.
+ */
+final class LineSegments {
+
+    /**
+     * How many characters of a line are buffered before it is filtered in segments.
+     */
+    static /*final*/ int MAX_LINE_WINDOW = Math.max(1024, Integer.getInteger(LineSegments.class.getName() + ".MAX_LINE_WINDOW", 64 * 1024));
+
+    /**
+     * How much segments overlap for filters which do not tell how long the text they replace may be.
+     */
+    static /*final*/ int DEFAULT_OVERLAP = Math.max(1, Integer.getInteger(LineSegments.class.getName() + ".DEFAULT_OVERLAP", 1024));
+
+    private LineSegments() {
+    }
+
+    /**
+     * @return how much segments filtered by the given filter overlap
+     * @see StreamingContentFilter#getMaxMatchLength()
+     */
+    static int getOverlap(@Nonnull ContentFilter filter) {
+        int length = filter instanceof StreamingContentFilter ? ((StreamingContentFilter) filter).getMaxMatchLength() : 0;
+        return length > 0 ? length : DEFAULT_OVERLAP;
+    }
+
+    /**
+     * Filters the start of a line, the whole of which is not known yet.
+     *
+     * @param filter the filter to apply
+     * @param text   the buffered start of the line
+     * @param out    where the filtered start of the line is appended
+     * @return how many characters of the text were filtered, the rest being kept until more of the line is known
+     * @throws IOException if appending fails
+     */
+    static int filter(@Nonnull ContentFilter filter, @Nonnull CharSequence text, @Nonnull StringBuilder out)
+            throws IOException {
+        int length = text.length();
+        int overlap = Math.max(1, Math.min(getOverlap(filter), length / 2));
+        int cut = length - overlap;
+        while (cut > length / 2 && !isWordCut(text, cut)) {
+            cut--;
+        }
+        if (cut <= length / 2) {
+            // no word boundary, cut without splitting a surrogate pair
+            cut = length - overlap;
+            if (Character.isHighSurrogate(text.charAt(cut - 1))) {
+                cut--;
+            }
+        }
+        // text replaced across the cut is no longer than the overlap, so it is found whole in the window and only
+        // starts at 0 if longer than half of it
+        int clean = StreamingContentFilter.getCutBefore(filter, text, 0, length, cut);
+        if (clean > 0) {
+            cut = clean;
+        }
+        if (!StreamingContentFilter.filter(filter, text, 0, cut, out)) {
+            out.append(text, 0, cut);
+        }
+        return cut;
+    }
+
+    /**
+     * Whether the text after the given index starts at a word boundary however it ends, as the preceding character
+     * is neither part of a word nor of an address.
+     */
+    private static boolean isWordCut(CharSequence text, int cut) {
+        char c = text.charAt(cut - 1);
+        return c < 0x80 ? !Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != ':' && c != '%'
+                : Character.isWhitespace(c);
+    }
+}
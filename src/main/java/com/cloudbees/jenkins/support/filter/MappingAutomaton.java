@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton matching the originals of many {@link ContentMapping}s in a single pass over the input,
+ * rather than running the pattern of each mapping in turn.
+ * <p>
+ * Matching follows the patterns of {@link ContentMapping}: every variant of an original is matched, ignoring the case
+ * of ASCII letters only, and only where there is a word boundary ({@code \b}) on both ends. Where matches overlap,
+ * the leftmost one wins, then the longest, then the mapping that comes first.
+ * <p>
+ * Automata are immutable, and thus safe to share between threads.
+ */
+final class MappingAutomaton {
+
+    static final MappingAutomaton EMPTY = build(Collections.emptyList());
+
+    private final int size;
+    /** The replacement of each pattern. */
+    private final String[] patternReplacement;
+    /** The length of each pattern. */
+    private final int[] patternLength;
+    /** The length of the longest pattern. */
+    private final int maxLength;
+    /** The children of node {@code n} are at {@code childStart[n]} to {@code childStart[n + 1]}, sorted by char. */
+    private final int[] childStart;
+    private final char[] childChar;
+    private final int[] childNode;
+    /** The node of the longest proper suffix of each node which is also in the trie. */
+    private final int[] fail;
+    /** The pattern ending at each node, or {@code -1}. */
+    private final int[] output;
+    /** The next node along the failure links which ends a pattern, or {@code -1}. */
+    private final int[] dictionary;
+
+    private MappingAutomaton(int size, List<String> patternReplacement, List<Integer> patternLength,
+                             int[] childStart, char[] childChar, int[] childNode, int[] fail, int[] output,
+                             int[] dictionary) {
+        this.size = size;
+        this.patternReplacement = patternReplacement.toArray(new String[0]);
+        this.patternLength = patternLength.stream().mapToInt(Integer::intValue).toArray();
+        this.maxLength = Arrays.stream(this.patternLength).max().orElse(0);
+        this.childStart = childStart;
+        this.childChar = childChar;
+        this.childNode = childNode;
+        this.fail = fail;
+        this.output = output;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Builds an automaton matching all the variants of the given mappings. Where several mappings have the same
+     * variant, the first one gets it.
+     */
+    @Nonnull
+    static MappingAutomaton build(@Nonnull Collection<ContentMapping> mappings) {
+        Trie trie = new Trie();
+        List<String> patternReplacement = new ArrayList<>();
+        List<Integer> patternLength = new ArrayList<>();
+        for (ContentMapping mapping : mappings) {
+            mapping.getVariants().forEach(variant ->
+                    trie.insert(variant, mapping.getReplacement(), patternReplacement, patternLength));
+        }
+        return trie.compile(mappings.size(), patternReplacement, patternLength);
+    }
+
+    /**
+     * Builds an automaton matching the given variants, each replaced by the replacement at the same index, without
+     * the {@link ContentMapping}s they come from, such as where these are not available.
+     */
+    @Nonnull
+    static MappingAutomaton build(@Nonnull String[] variants, @Nonnull String[] replacements) {
+        Trie trie = new Trie();
+        List<String> patternReplacement = new ArrayList<>();
+        List<Integer> patternLength = new ArrayList<>();
+        for (int i = 0; i < variants.length; i++) {
+            trie.insert(variants[i], replacements[i], patternReplacement, patternLength);
+        }
+        return trie.compile(variants.length, patternReplacement, patternLength);
+    }
+
+    /**
+     * @return how many mappings the automaton was built from
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the length of the longest variant matched
+     */
+    int maxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Replaces the originals matched by any of the given automata.
+     */
+    @Nonnull
+    static String filter(@Nonnull String input, @Nonnull MappingAutomaton... automata) {
+        ContentMatches matches = new ContentMatches(input);
+        for (MappingAutomaton automaton : automata) {
+            automaton.match(matches);
+        }
+        return matches.replace();
+    }
+
+    /**
+     * Offers the originals matched in the input of the given matches.
+     */
+    void match(@Nonnull ContentMatches matches) {
+        if (patternLength.length == 0) {
+            return;
+        }
+        CharSequence input = matches.getInput();
+        int state = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = fold(input.charAt(i));
+            int next;
+            while ((next = step(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = Math.max(0, next);
+            for (int node = output[state] >= 0 ? state : dictionary[state]; node >= 0; node = dictionary[node]) {
+                int pattern = output[node];
+                int length = patternLength[pattern];
+                int start = i + 1 - length;
+                if (isWordBoundary(input, start) && isWordBoundary(input, i + 1)) {
+                    matches.offer(start, length, patternReplacement[pattern]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Offers the given variants matched in the input of the given matches, each replaced by the replacement at the
+     * same index, as an automaton built from them would. Each variant is looked for in turn, which beats building an
+     * automaton for a handful of them.
+     */
+    static void scan(@Nonnull ContentMatches matches, @Nonnull String[] variants, @Nonnull String[] replacements) {
+        CharSequence input = matches.getInput();
+        for (int v = 0; v < variants.length; v++) {
+            String variant = variants[v];
+            int length = variant.length();
+            if (length == 0) {
+                continue;
+            }
+            char first = fold(variant.charAt(0));
+            for (int start = 0; start + length <= input.length(); start++) {
+                if (fold(input.charAt(start)) == first && regionMatches(input, start, variant)
+                        && isWordBoundary(input, start) && isWordBoundary(input, start + length)) {
+                    matches.offer(start, length, replacements[v]);
+                }
+            }
+        }
+    }
+
+    private static boolean regionMatches(CharSequence input, int start, String variant) {
+        for (int i = 1; i < variant.length(); i++) {
+            if (fold(input.charAt(start + i)) != fold(variant.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int step(int node, char c) {
+        int index = Arrays.binarySearch(childChar, childStart[node], childStart[node + 1], c);
+        return index < 0 ? -1 : childNode[index];
+    }
+
+    /**
+     * Only ASCII letters are case insensitive, as for {@link java.util.regex.Pattern#CASE_INSENSITIVE}.
+     */
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Whether {@code \b} matches at the given index, as for {@link java.util.regex.Pattern} without
+     * {@link java.util.regex.Pattern#UNICODE_CHARACTER_CLASS}.
+     */
+    static boolean isWordBoundary(@Nonnull CharSequence input, int index) {
+        boolean left = index > 0 && isWord(input, Character.codePointBefore(input, index), index - 1);
+        boolean right = index < input.length() && isWord(input, Character.codePointAt(input, index), index);
+        return left != right;
+    }
+
+    private static boolean isWord(CharSequence input, int codePoint, int index) {
+        if (codePoint == '_' || Character.isLetterOrDigit(codePoint)) {
+            return true;
+        }
+        if (Character.getType(codePoint) != Character.NON_SPACING_MARK) {
+            return false;
+        }
+        // a combining mark belongs to the word of the character it follows
+        for (int i = index; i >= 0; i--) {
+            int c = Character.codePointAt(input, i);
+            if (Character.isLetterOrDigit(c)) {
+                return true;
+            }
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The trie of the variants, each node listing its children as a chain of siblings while it is being built.
+     */
+    private static final class Trie {
+        private int nodes = 1;
+        private char[] label = new char[64];
+        private int[] firstChild = new int[64];
+        private int[] nextSibling = new int[64];
+        private int[] output = new int[64];
+
+        Trie() {
+            Arrays.fill(firstChild, -1);
+            Arrays.fill(output, -1);
+        }
+
+        /**
+         * Inserts a variant as the next pattern, unless it is empty or was already inserted.
+         */
+        void insert(String variant, String replacement, List<String> patternReplacement, List<Integer> patternLength) {
+            if (variant.isEmpty()) {
+                return;
+            }
+            int node = 0;
+            for (int i = 0; i < variant.length(); i++) {
+                char c = fold(variant.charAt(i));
+                int child = firstChild[node];
+                while (child >= 0 && label[child] != c) {
+                    child = nextSibling[child];
+                }
+                if (child < 0) {
+                    child = newNode(c);
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                node = child;
+            }
+            if (output[node] < 0) {
+                output[node] = patternReplacement.size();
+                patternReplacement.add(replacement);
+                patternLength.add(variant.length());
+            }
+        }
+
+        private int newNode(char c) {
+            if (nodes == label.length) {
+                int capacity = nodes * 2;
+                label = Arrays.copyOf(label, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                output = Arrays.copyOf(output, capacity);
+                Arrays.fill(firstChild, nodes, capacity, -1);
+                Arrays.fill(output, nodes, capacity, -1);
+            }
+            label[nodes] = c;
+            return nodes++;
+        }
+
+        /**
+         * Numbers the nodes breadth first, so that the children of each node are next to each other and every node
+         * comes after its failure node, then links each node to its failure node.
+         */
+        MappingAutomaton compile(int size, List<String> patternReplacement, List<Integer> patternLength) {
+            int[] number = new int[nodes];
+            int[] childStart = new int[nodes + 1];
+            char[] childChar = new char[nodes - 1];
+            int[] childNode = new int[nodes - 1];
+            int[] output = new int[nodes];
+            int[] fail = new int[nodes];
+            int[] dictionary = new int[nodes];
+            Deque<Integer> queue = new ArrayDeque<>();
+            queue.add(0);
+            int numbered = 1;
+            int edges = 0;
+            while (!queue.isEmpty()) {
+                int node = queue.remove();
+                int n = number[node];
+                output[n] = this.output[node];
+                List<Integer> children = new ArrayList<>();
+                for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                    children.add(child);
+                }
+                children.sort((a, b) -> Character.compare(label[a], label[b]));
+                childStart[n] = edges;
+                for (int child : children) {
+                    number[child] = numbered++;
+                    childChar[edges] = label[child];
+                    childNode[edges] = number[child];
+                    edges++;
+                    queue.add(child);
+                }
+            }
+            childStart[nodes] = edges;
+            MappingAutomaton automaton = new MappingAutomaton(size, patternReplacement, patternLength,
+                    childStart, childChar, childNode, fail, output, dictionary);
+            dictionary[0] = -1;
+            for (int n = 0; n < nodes; n++) {
+                for (int edge = childStart[n]; edge < childStart[n + 1]; edge++) {
+                    int child = childNode[edge];
+                    int target = 0;
+                    if (n != 0) {
+                        int f = fail[n];
+                        int next;
+                        while ((next = automaton.step(f, childChar[edge])) < 0 && f != 0) {
+                            f = fail[f];
+                        }
+                        target = Math.max(0, next);
+                    }
+                    fail[child] = target;
+                    dictionary[child] = output[target] >= 0 ? target : dictionary[target];
+                }
+            }
+            return automaton;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * A {@link ContentFilter} which can tell which spans of an input it would replace rather than replacing them itself,
+ * so that {@link AllContentFilters} can replace them without copying unchanged input, and so that a long line can be
+ * {@linkplain #getCutBefore(CharSequence, int, int, int) cut} outside of replaced text.
+ */
+interface MatchingContentFilter extends StreamingContentFilter {
+
+    /**
+     * Offers the spans of {@link ContentMatches#getInput()} to replace. Replacements which have side effects must be
+     * offered through {@link ContentMatches#offer(int, int, java.util.function.Supplier)}.
+     */
+    void match(@Nonnull ContentMatches matches);
+
+    @Override
+    default @Nonnull String filter(@Nonnull String input) {
+        ContentMatches matches = new ContentMatches(input);
+        match(matches);
+        return matches.replace();
+    }
+
+    @Override
+    default boolean filter(@Nonnull CharSequence input, int start, int end, @Nonnull Appendable out) throws IOException {
+        ContentMatches matches = new ContentMatches(input, start, end);
+        match(matches);
+        return matches.appendTo(out);
+    }
+
+    @Override
+    default int getCutBefore(@Nonnull CharSequence input, int start, int end, int cut) {
+        ContentMatches matches = ContentMatches.probe(input, start, end);
+        match(matches);
+        return start + matches.getCutBefore(cut - start);
+    }
+}
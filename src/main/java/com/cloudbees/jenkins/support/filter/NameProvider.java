@@ -27,33 +27,78 @@ package com.cloudbees.jenkins.support.filter;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.ExtensionPoint;
+import hudson.XmlFile;
+import hudson.model.Item;
 import hudson.model.Label;
+import hudson.model.Saveable;
 import hudson.model.User;
+import hudson.model.ViewGroup;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.ComputerListener;
 import jenkins.model.Jenkins;
+import jenkins.security.SecurityListener;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 /**
  * Strategy for providing a stream of names to anonymize along with an accompanying name generator.
+ * <p>
+ * Rather than streaming all the names again whenever filters are reloaded, listeners report the names which may have
+ * been added since, or that names are to be streamed again where that is cheap, see {@link #newNames()}.
  *
  * @see SensitiveContentFilter
  * @since TODO
  */
 @Restricted(NoExternalUse.class)
 public class NameProvider implements ExtensionPoint {
+    /**
+     * How many names may be reported as changed before all names are streamed again instead.
+     */
+    static final int MAX_CHANGED_NAMES = 10_000;
+
     private final Supplier<Stream<String>> names;
-    private final Supplier<String> fakes;
+    /**
+     * Turns a generated name into a fake name, such as by prefixing it with the kind of names provided.
+     */
+    private final Function<String, String> fakes;
+    /**
+     * Counts the sources of names, where some may be added without any event to report them, {@code null} otherwise.
+     */
+    private final IntSupplier count;
+    @GuardedBy("this")
+    private int lastCount = -1;
+    /**
+     * Whether all names are to be streamed by {@link #newNames()}, rather than only the {@link #changedNames}.
+     */
+    @GuardedBy("this")
+    private boolean rescan = true;
+    @GuardedBy("this")
+    private Set<String> changedNames = new LinkedHashSet<>();
+
+    private NameProvider(@Nonnull Supplier<Stream<String>> names, @Nonnull Function<String, String> fakes) {
+        this(names, fakes, null);
+    }
 
-    private NameProvider(@Nonnull Supplier<Stream<String>> names, @Nonnull Supplier<String> fakes) {
+    private NameProvider(@Nonnull Supplier<Stream<String>> names, @Nonnull Function<String, String> fakes,
+                         @CheckForNull IntSupplier count) {
         this.names = names;
         this.fakes = fakes;
+        this.count = count;
     }
 
     /**
@@ -63,11 +108,59 @@ public class NameProvider implements ExtensionPoint {
         return names.get();
     }
 
+    /**
+     * @return the names to anonymize which may not have been seen before: all of them on the first call, once
+     * {@linkplain #invalidate() invalidated} or when the count of their sources changed, then only those
+     * {@linkplain #changed reported} since the last call
+     */
+    @Nonnull Stream<String> newNames() {
+        int currentCount = count == null ? -1 : count.getAsInt();
+        Set<String> changed;
+        boolean all;
+        synchronized (this) {
+            all = rescan || currentCount != lastCount;
+            lastCount = currentCount;
+            changed = changedNames;
+            rescan = false;
+            changedNames = new LinkedHashSet<>();
+        }
+        // names changed while all names are streamed are in the stream or reported again
+        return all ? names() : changed.stream();
+    }
+
+    /**
+     * Reports names which may not have been seen before.
+     */
+    synchronized void changed(@Nonnull Stream<String> names) {
+        if (!rescan) {
+            names.filter(Objects::nonNull).forEach(changedNames::add);
+            if (changedNames.size() > MAX_CHANGED_NAMES) {
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * Reports that all names are to be streamed again, when they cannot be told apart or are cheap to stream.
+     */
+    synchronized void invalidate() {
+        rescan = true;
+        changedNames = new LinkedHashSet<>();
+    }
+
     /**
      * @return a new fake name to use for anonymization
      */
     public @Nonnull String generateFake() {
-        return fakes.get();
+        return DataFaker.get().apply(fakes).get();
+    }
+
+    /**
+     * @return the fake name to use for anonymizing the given original, which is always the same in
+     * {@linkplain ContentFilters#isDeterministic() deterministic mode}
+     */
+    public @Nonnull String generateFake(@Nonnull String original) {
+        return DataFaker.get().apply(fakes, original);
     }
 
     /**
@@ -93,9 +186,8 @@ public class NameProvider implements ExtensionPoint {
      * Provides the names of items.
      */
     public static final @Extension NameProvider ITEMS = new NameProvider(
-            () -> stream(Jenkins.get().allItems())
-                    .flatMap(item -> Stream.of(item.getName(), item.getDisplayName())),
-            DataFaker.get().apply(name -> "item_" + name));
+            () -> stream(Jenkins.get().allItems()).flatMap(NameProvider::namesOf),
+            name -> "item_" + name);
 
     /**
      * Provides the names of view.
@@ -103,7 +195,7 @@ public class NameProvider implements ExtensionPoint {
     public static final @Extension NameProvider VIEWS = new NameProvider(
             () -> stream(Jenkins.get().getViews())
                     .flatMap(view -> Stream.of(view.getViewName(), view.getDisplayName())),
-            DataFaker.get().apply(name -> "view_" + name));
+            name -> "view_" + name);
 
     /**
      * Provides the names of nodes.
@@ -111,7 +203,7 @@ public class NameProvider implements ExtensionPoint {
     public static final @Extension NameProvider NODES = new NameProvider(
             () -> stream(Jenkins.get().getNodes())
                     .flatMap(node -> Stream.of(node.getNodeName(), node.getDisplayName())),
-            DataFaker.get().apply(name -> "node_" + name));
+            name -> "node_" + name);
 
     /**
      * Provides the names of computers.
@@ -119,15 +211,16 @@ public class NameProvider implements ExtensionPoint {
     public static final @Extension NameProvider COMPUTERS = new NameProvider(
             () -> stream(Jenkins.get().getComputers())
                     .flatMap(computer -> Stream.of(computer.getName(), computer.getDisplayName())),
-            DataFaker.get().apply(name -> "computer_" + name));
+            name -> "computer_" + name);
 
     /**
-     * Provides the names of users.
+     * Provides the names of users. Users are also counted, as some are created without being saved, such as the
+     * authors of changes.
      */
     public static final @Extension NameProvider USERS = new NameProvider(
-            () -> stream(User.getAll())
-                    .flatMap(user -> Stream.of(user.getId(), user.getFullName(), user.getDisplayName())),
-            DataFaker.get().apply(name -> "user_" + name));
+            () -> stream(User.getAll()).flatMap(NameProvider::namesOf),
+            name -> "user_" + name,
+            () -> User.getAll().size());
 
     /**
      * Provides the names of labels. Note that this extension is given a lower priority than the others to avoid
@@ -136,5 +229,97 @@ public class NameProvider implements ExtensionPoint {
     public static final @Extension(ordinal = -100) NameProvider LABELS = new NameProvider(
             () -> stream(Jenkins.get().getLabels())
                     .map(Label::getDisplayName),
-            DataFaker.get().apply(name -> "label_" + name));
+            name -> "label_" + name);
+
+    private static Stream<String> namesOf(Item item) {
+        return Stream.of(item.getName(), item.getDisplayName());
+    }
+
+    private static Stream<String> namesOf(User user) {
+        return Stream.of(user.getId(), user.getFullName(), user.getDisplayName());
+    }
+
+    /**
+     * Reports the names of items as they are created, copied, renamed, moved or updated, and that labels may have
+     * changed along with them.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            // the names seen by a previous instance in the same JVM may not be those of the items loaded
+            all().forEach(NameProvider::invalidate);
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            changed(item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            changed(item);
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            changed(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            changed(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            changed(item);
+        }
+
+        private static void changed(Item item) {
+            ITEMS.changed(namesOf(item));
+            LABELS.invalidate();
+            ContentMappings.get().changed(item);
+        }
+    }
+
+    /**
+     * Reports that nodes, computers and labels may have changed, these being few and held in memory.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            NODES.invalidate();
+            COMPUTERS.invalidate();
+            LABELS.invalidate();
+        }
+    }
+
+    /**
+     * Reports the names of users as they are saved, and that views may have changed when their owner is saved.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof User) {
+                USERS.changed(namesOf((User) o));
+            } else if (o instanceof ViewGroup) {
+                VIEWS.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Reports the names of users as they log in, as users may be created without being saved.
+     */
+    @Extension
+    public static final class SecurityListenerImpl extends SecurityListener {
+        @Override
+        protected void loggedIn(@Nonnull String username) {
+            User user = User.getById(username, false);
+            USERS.changed(user == null ? Stream.of(username) : namesOf(user));
+        }
+    }
 }
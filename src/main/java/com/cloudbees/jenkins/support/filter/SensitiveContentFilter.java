@@ -35,37 +35,49 @@ import java.util.Set;
 import org.apache.commons.lang.StringUtils;
 
 /**
- * Filters contents based on names provided by all {@linkplain NameProvider known sources}.
+ * Filters contents based on names provided by all {@linkplain NameProvider known sources}. The names are matched all
+ * at once rather than one after the other, see {@link MappingAutomaton}.
  *
  * @see NameProvider
  * @since TODO
  */
 @Extension
 @Restricted(NoExternalUse.class)
-public class SensitiveContentFilter implements ContentFilter {
+public class SensitiveContentFilter implements MatchingContentFilter {
 
     public static SensitiveContentFilter get() {
         return ExtensionList.lookupSingleton(SensitiveContentFilter.class);
     }
 
     @Override
-    public @Nonnull String filter(@Nonnull String input) {
-        ContentMappings mappings = ContentMappings.get();
-        String filtered = input;
-        for (ContentMapping mapping : mappings) {
-            filtered = mapping.filter(filtered);
-        }
-        return filtered;
+    public void match(@Nonnull ContentMatches matches) {
+        ContentMappings.get().match(matches);
+    }
+
+    @Override
+    public int getMaxMatchLength() {
+        return ContentMappings.get().getMaxMatchLength();
     }
 
+    /**
+     * Adds mappings for the names which may not have been seen since the last reload, all of them the first time.
+     *
+     * @see NameProvider#newNames()
+     */
     @Override
     public synchronized void reload() {
         ContentMappings mappings = ContentMappings.get();
         Set<String> stopWords = mappings.getStopWords();
         for (NameProvider provider : NameProvider.all()) {
-            provider.names()
-                    .filter(name -> StringUtils.isNotBlank(name) && !stopWords.contains(name.toLowerCase(Locale.ENGLISH)))
-                    .forEach(name -> mappings.getMappingOrCreate(name, original -> ContentMapping.of(original, provider.generateFake())));
+            try {
+                provider.newNames()
+                        .filter(name -> StringUtils.isNotBlank(name) && !stopWords.contains(name.toLowerCase(Locale.ENGLISH)))
+                        .forEach(name -> mappings.getMappingOrCreate(name, original -> ContentMapping.of(original, provider.generateFake(original))));
+            } catch (RuntimeException e) {
+                // the names not seen yet are lost
+                provider.invalidate();
+                throw e;
+            }
         }
     }
 
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support.filter;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A {@link ContentFilter} which can filter a region of text without it being copied into a String first, and which
+ * tells when it has nothing to replace in it, so that the region can be passed through unchanged. Filters which
+ * only implement {@link ContentFilter} are used through {@link #filter(ContentFilter, CharSequence, int, int, Appendable)}.
+ *
+ * @since TODO
+ */
+public interface StreamingContentFilter extends ContentFilter {
+
+    /**
+     * Filters a region of text, such as a line. The input may be a view of a buffer which is only valid for the
+     * duration of the call, so implementations must not keep a reference to it.
+     *
+     * @param input the text to filter
+     * @param start the index of the first character of the region
+     * @param end   the index following the last character of the region
+     * @param out   where the filtered region is appended, if anything was replaced in it
+     * @return {@code false} if the region is to be passed through unchanged, in which case nothing was appended
+     * @throws IOException if appending fails
+     */
+    boolean filter(@Nonnull CharSequence input, int start, int end, @Nonnull Appendable out) throws IOException;
+
+    /**
+     * Tells how long the text this filter replaces at once may be, so that text too long to be filtered whole can be
+     * filtered in segments overlapping by that much without missing what spans two of them.
+     *
+     * @return the length of the longest text this filter may replace, or {@code 0} if unknown
+     */
+    default int getMaxMatchLength() {
+        return 0;
+    }
+
+    /**
+     * Tells where a region too long to be filtered whole may be cut, so that filtering both sides of the cut gives the
+     * same as filtering the whole region. Implementations must have no side effect, such as creating mappings.
+     *
+     * @param input the text to filter
+     * @param start the index of the first character of the region
+     * @param end   the index following the last character of the region
+     * @param cut   the index where the region would rather be cut
+     * @return the greatest index not after {@code cut} which no text this filter would replace spans, or {@code cut}
+     * if unknown
+     */
+    default int getCutBefore(@Nonnull CharSequence input, int start, int end, int cut) {
+        return cut;
+    }
+
+    @Override
+    default @Nonnull String filter(@Nonnull String input) {
+        StringBuilder out = new StringBuilder(input.length());
+        try {
+            return filter(input, 0, input.length(), out) ? out.toString() : input;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never thrown by StringBuilder
+        }
+    }
+
+    /**
+     * Filters a region of text with any filter, falling back to {@link ContentFilter#filter(String)} for filters
+     * which are not streaming.
+     *
+     * @see #filter(CharSequence, int, int, Appendable)
+     */
+    static boolean filter(@Nonnull ContentFilter filter, @Nonnull CharSequence input, int start, int end,
+                          @Nonnull Appendable out) throws IOException {
+        if (filter instanceof StreamingContentFilter) {
+            return ((StreamingContentFilter) filter).filter(input, start, end, out);
+        }
+        String region = input.subSequence(start, end).toString();
+        String filtered = filter.filter(region);
+        if (filtered.equals(region)) {
+            return false;
+        }
+        out.append(filtered);
+        return true;
+    }
+
+    /**
+     * Tells where a region may be cut with any filter, {@code cut} itself for filters which are not streaming.
+     *
+     * @see #getCutBefore(CharSequence, int, int, int)
+     */
+    static int getCutBefore(@Nonnull ContentFilter filter, @Nonnull CharSequence input, int start, int end, int cut) {
+        return filter instanceof StreamingContentFilter
+                ? ((StreamingContentFilter) filter).getCutBefore(input, start, end, cut) : cut;
+    }
+}
@@ -6,6 +6,7 @@
 package com.cloudbees.jenkins.support.impl;
 
 import com.cloudbees.jenkins.support.AsyncResultCache;
+import com.cloudbees.jenkins.support.BundleThrottle;
 import com.cloudbees.jenkins.support.SupportPlugin;
 import com.cloudbees.jenkins.support.api.Component;
 import com.cloudbees.jenkins.support.api.Container;
@@ -919,7 +920,7 @@ public class AboutJenkins extends Component {
             File jenkinsWar = Lifecycle.get().getHudsonWar();
             if (jenkinsWar != null) {
                 try {
-                    out.println(Util.getDigestOf(new FileInputStream(jenkinsWar)) + "  jenkins.war");
+                    out.println(Util.getDigestOf(BundleThrottle.throttle(new FileInputStream(jenkinsWar))) + "  jenkins.war");
                 } catch (IOException e) {
                     logger.log(Level.WARNING, "Could not compute MD5 of jenkins.war", e);
                 }
@@ -975,7 +976,7 @@ public class AboutJenkins extends Component {
             for (File file : pluginFiles) {
                 if (file.isFile()) {
                     try {
-                        out.println(Util.getDigestOf(new FileInputStream(file)) + "  plugins/" + file
+                        out.println(Util.getDigestOf(BundleThrottle.throttle(new FileInputStream(file))) + "  plugins/" + file
                                 .getName());
                     } catch (IOException e) {
                         logger.log(Level.WARNING, "Could not compute MD5 of war/" + file, e);
@@ -58,6 +58,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.zip.Deflater;
 
 /**
  * This component captures the Jenkins {@link LoadStatistics} for overall load, jobs not tied to a label and each
@@ -136,6 +137,15 @@ public class LoadStats extends Component {
         public void writeTo(OutputStream os) throws IOException {
             ImageIO.write(image, "png", os);
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getCompressionLevel() {
+            // PNG is already deflated
+            return Deflater.NO_COMPRESSION;
+        }
     }
 
     private static final List<Field> FIELDS = findFields();
@@ -6,6 +6,10 @@ import com.cloudbees.jenkins.support.api.Component;
 import com.cloudbees.jenkins.support.api.Container;
 import com.cloudbees.jenkins.support.api.Content;
 import com.cloudbees.jenkins.support.api.StringContent;
+import com.cloudbees.jenkins.support.filter.ContentFilter;
+import com.cloudbees.jenkins.support.filter.ContentMappingsSnapshot;
+import com.cloudbees.jenkins.support.filter.FilteredOutputStream;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.model.Node;
@@ -93,11 +97,19 @@ public class ThreadDumps extends Component {
                     }
                 }
         );
+        ContentMappingsSnapshot mappings;
+        try {
+            mappings = ContentMappingsSnapshot.current();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not take a snapshot of the content mappings for the agents", e);
+            mappings = null;
+        }
+        final ContentMappingsSnapshot snapshot = mappings;
         for (final Node node : Jenkins.getInstance().getNodes()) {
             // let's start collecting thread dumps now... this gives us until the end of the bundle to finish
             final Future<String> threadDump;
             try {
-                threadDump = getThreadDump(node);
+                threadDump = getThreadDump(node, snapshot);
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Could not record thread dump for " + node.getNodeName(), e);
                 final StringWriter sw = new StringWriter();
@@ -118,10 +130,18 @@ public class ThreadDumps extends Component {
             } else {
                 result.add(
                         new Content("nodes/slave/" + node.getNodeName() + "/thread-dump.txt") {
+                            @Override
+                            public boolean shouldBeFiltered() {
+                                // already anonymized by the agent, apart from what is written here
+                                return snapshot == null;
+                            }
+
                             @Override
                             public void writeTo(OutputStream os) throws IOException {
-                                PrintWriter out =
-                                        new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, "utf-8")));
+                                FilteredOutputStream filtered =
+                                        snapshot == null ? null : new FilteredOutputStream(os, ContentFilter.ALL);
+                                PrintWriter out = new PrintWriter(new BufferedWriter(
+                                        new OutputStreamWriter(filtered == null ? os : filtered, "utf-8")));
                                 try {
                                     out.println(node.getNodeName());
                                     out.println("======");
@@ -152,7 +172,13 @@ public class ThreadDumps extends Component {
                                         SupportLogFormatter.printStackTrace(e, out);
                                         threadDump.cancel(true);
                                     }
-                                    if (content != null) {
+                                    if (content != null && filtered != null) {
+                                        out.flush();
+                                        PrintWriter unfiltered = new PrintWriter(
+                                                new BufferedWriter(new OutputStreamWriter(os, "utf-8")));
+                                        unfiltered.println(content);
+                                        unfiltered.flush();
+                                    } else if (content != null) {
                                         out.println(content);
                                     }
                                 } finally {
@@ -174,6 +200,21 @@ public class ThreadDumps extends Component {
         return channel.callAsync(new GetThreadDump());
     }
 
+    /**
+     * @return the thread dump of the node, anonymized by the node itself given a snapshot of the mappings, or
+     * {@code null} if the node is not connected
+     */
+    private Future<String> getThreadDump(Node node, @CheckForNull ContentMappingsSnapshot snapshot) throws IOException {
+        if (snapshot == null) {
+            return getThreadDump(node);
+        }
+        VirtualChannel channel = node.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        return new CompletedThreadDump(channel.callAsync(new GetAnonymizedThreadDump(snapshot)), snapshot);
+    }
+
     @Deprecated
     public static String getThreadDump(VirtualChannel channel)
             throws IOException, InterruptedException {
@@ -201,6 +242,62 @@ public class ThreadDumps extends Component {
         private static final long serialVersionUID = 1L;
     }
 
+    private static final class GetAnonymizedThreadDump
+            extends MasterToSlaveCallable<ContentMappingsSnapshot.Filtered, RuntimeException> {
+        private final ContentMappingsSnapshot snapshot;
+
+        GetAnonymizedThreadDump(ContentMappingsSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public ContentMappingsSnapshot.Filtered call() {
+            return snapshot.filter(new GetThreadDump().call());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A thread dump anonymized by the agent, completed by the controller once received.
+     *
+     * @see ContentMappingsSnapshot#complete(ContentMappingsSnapshot.Filtered)
+     */
+    private static final class CompletedThreadDump implements Future<String> {
+        private final java.util.concurrent.Future<ContentMappingsSnapshot.Filtered> filtered;
+        private final ContentMappingsSnapshot snapshot;
+
+        CompletedThreadDump(java.util.concurrent.Future<ContentMappingsSnapshot.Filtered> filtered,
+                            ContentMappingsSnapshot snapshot) {
+            this.filtered = filtered;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return filtered.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return filtered.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return filtered.isDone();
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            return snapshot.complete(filtered.get());
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return snapshot.complete(filtered.get(timeout, unit));
+        }
+    }
+
     /**
      * Dumps all of the threads' current information to an output stream.
      *
@@ -15,6 +15,7 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 import jenkins.model.Jenkins;
 
 /**
@@ -42,6 +43,32 @@ public class SlowRequestFilter implements Filter {
         }
     }
 
+    /**
+     * Requests which stay open for as long as there is something to send, such as bundle downloads, streamed build
+     * logs, the CLI and agent connections, so that they do not tell whether Jenkins is slow.
+     */
+    private static final Pattern STREAMING = Pattern.compile(
+            "/(?:support|cli|wsagents|sse-gateway)(?:/|\\?|$)|/progressive(?:Text|Html)|/logText/");
+
+    /**
+     * How many requests still being processed have been running for longer than the given time, not counting
+     * streaming requests.
+     */
+    public int getSlowInflightCount(long minMillis) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (InflightRequest req : tracker.values()) {
+            if (now - req.startTime > minMillis && !isStreaming(req.url)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static boolean isStreaming(String url) {
+        return STREAMING.matcher(url).find();
+    }
+
     public void init(FilterConfig filterConfig) throws ServletException {
     }
 
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class BundleIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void newestBundlesOfEachTriggerAreKept() throws IOException {
+        long now = System.currentTimeMillis();
+        File periodic = bundle("periodic.zip", now - 60_000);
+        BundleIndex.get().add(periodic, BundleIndex.Trigger.PERIODIC, Collections.emptyList());
+        for (int i = 0; i <= SupportPlugin.RETAINED_BUNDLES_PER_TRIGGER; i++) {
+            File manual = bundle("manual-" + i + ".zip", now + i * 1000);
+            List<String> deleted = BundleIndex.get().add(manual, BundleIndex.Trigger.MANUAL, Collections.emptyList());
+            if (i < SupportPlugin.RETAINED_BUNDLES_PER_TRIGGER) {
+                assertThat(deleted, empty());
+            } else {
+                assertThat(deleted, contains("manual-0.zip"));
+            }
+        }
+        List<String> names = names();
+        assertThat(names.get(0), is("manual-" + SupportPlugin.RETAINED_BUNDLES_PER_TRIGGER + ".zip"));
+        assertThat(names, hasItem("periodic.zip"));
+        assertThat(names, not(hasItem("manual-0.zip")));
+        assertThat(new File(SupportPlugin.getRootDirectory(), "manual-0.zip").exists(), is(false));
+    }
+
+    @Test
+    public void periodicBundlesAreKeptByAge() throws IOException {
+        long now = System.currentTimeMillis();
+        long hour = TimeUnit.HOURS.toMillis(1);
+        // found in the directory, as left by versions without an index
+        bundle("old.zip", now - 30 * hour);
+        bundle("older.zip", now - 40 * hour);
+        for (int i = 9; i >= 0; i--) {
+            BundleIndex.get().add(bundle("periodic-" + i + ".zip", now - i * hour), BundleIndex.Trigger.PERIODIC,
+                    Collections.emptyList());
+        }
+        // the newest bundle, then the newest of each age bucket starting at 35 and 70 minutes, 2.3, 4.7, 18.6 and 37 hours
+        assertThat(names(), contains("periodic-0.zip", "periodic-1.zip", "periodic-2.zip", "periodic-3.zip",
+                "periodic-5.zip", "old.zip", "older.zip"));
+    }
+
+    @Test
+    public void anonymizedCopiesAreKeptApartFromTheirSource() throws IOException {
+        long now = System.currentTimeMillis();
+        File manual = bundle("manual.zip", now - 60_000);
+        BundleIndex.get().add(manual, BundleIndex.Trigger.MANUAL, Collections.emptyList());
+        BundleIndex.Bundle source = BundleIndex.get().getBundle("manual.zip");
+        for (int i = 0; i < SupportPlugin.RETAINED_BUNDLES_PER_TRIGGER; i++) {
+            BundleIndex.get().add(bundle("anonymized-" + i + ".zip", now + i * 1000), source);
+        }
+        assertThat(BundleIndex.get().getBundle("anonymized-0.zip").getTrigger(), is(BundleIndex.Trigger.ANONYMIZED));
+        assertThat(names(), hasItem("manual.zip"));
+    }
+
+    @Test
+    public void logsAreListedAndDeleted() throws IOException {
+        File log = bundle("support.log", System.currentTimeMillis());
+        assertThat(BundleIndex.get().getLogs(), contains("support.log"));
+        assertThat(BundleIndex.get().delete("support.log"), is(true));
+        assertThat(log.exists(), is(false));
+        assertThat(BundleIndex.get().getLogs(), empty());
+    }
+
+    @Test
+    public void onlyIndexedBundlesAreDeleted() throws IOException {
+        File bundle = bundle("indexed.zip", System.currentTimeMillis());
+        BundleIndex.get().add(bundle, BundleIndex.Trigger.MANUAL, Collections.emptyList());
+        File other = new File(j.jenkins.getRootDir(), "config-backup.zip");
+        Files.write(other.toPath(), "other".getBytes(StandardCharsets.UTF_8));
+        assertThat(BundleIndex.get().delete("../" + other.getName()), is(false));
+        assertThat(other.exists(), is(true));
+        assertThat(BundleIndex.get().delete("indexed.zip"), is(true));
+        assertThat(bundle.exists(), is(false));
+        assertThat(BundleIndex.get().getBundles(), empty());
+    }
+
+    private static List<String> names() {
+        return BundleIndex.get().getBundles().stream().map(BundleIndex.Bundle::getName).collect(toList());
+    }
+
+    private static File bundle(String name, long time) throws IOException {
+        File dir = SupportPlugin.getRootDirectory();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File file = new File(dir, name);
+        Files.write(file.toPath(), name.getBytes(StandardCharsets.UTF_8));
+        if (!file.setLastModified(time)) {
+            throw new IOException("Could not set the time of " + file);
+        }
+        return file;
+    }
+}
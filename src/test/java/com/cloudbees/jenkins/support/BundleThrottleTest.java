@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BundleThrottleTest {
+
+    @After
+    public void clearThrottle() {
+        BundleThrottle.setCurrent(null);
+    }
+
+    @Test
+    public void streamsAreLeftAloneWithoutThrottle() {
+        InputStream in = new ByteArrayInputStream(new byte[0]);
+        assertThat(BundleThrottle.throttle(in), sameInstance(in));
+        BundleThrottle.setCurrent(new BundleThrottle(0, 100, 0, 0, 0));
+        assertThat(BundleThrottle.throttle(in), sameInstance(in));
+    }
+
+    @Test
+    public void bytesAreLimitedToTheRate() throws Exception {
+        BundleThrottle.setCurrent(new BundleThrottle(100_000, 100, 0, 0, 0));
+        long start = System.nanoTime();
+        long copied;
+        try (InputStream in = BundleThrottle.throttle(new ByteArrayInputStream(new byte[150_000]));
+             OutputStream out = BundleThrottle.throttle(new NullOutputStream())) {
+            copied = IOUtils.copyLarge(in, out);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(copied, is(150_000L));
+        // 300,000 bytes read and written at 100,000 bytes per second, the first chunk going through straight away
+        assertThat(millis, greaterThanOrEqualTo(2_500L));
+        assertThat(millis, lessThan(10_000L));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Component;
+import com.cloudbees.jenkins.support.api.Container;
+import com.cloudbees.jenkins.support.api.Content;
+import com.cloudbees.jenkins.support.api.StringContent;
+import hudson.security.Permission;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ContentCollectorTest {
+
+    @Test
+    public void componentsAreCollectedConcurrentlyAndReturnedInOrder() throws IOException {
+        // the first component only completes once the second one has started, which requires them to run concurrently
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        List<Component> components = Arrays.asList(
+                new TestComponent("first", container -> {
+                    try {
+                        secondStarted.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    container.add(new StringContent("first.txt", "first"));
+                }),
+                new TestComponent("second", container -> {
+                    secondStarted.countDown();
+                    container.add(new StringContent("second.txt", "second"));
+                }),
+                new TestComponent("failing", container -> {
+                    container.add(new StringContent("failing.txt", "failing"));
+                    throw new IllegalStateException("failing on purpose");
+                }));
+        List<String> names = new ArrayList<>();
+        List<Content> contents = new ArrayList<>();
+        try (ContentCollector collector = new ContentCollector(components, new BundleBudget(0, 0), 2)) {
+            while (collector.hasNext()) {
+                ContentCollector.Collected collected = collector.next();
+                names.add(collected.getDisplayName());
+                collected.drainTo(contents);
+                if (collected.getDisplayName().equals("failing")) {
+                    assertThat(collected.getFailure(), instanceOf(IllegalStateException.class));
+                } else {
+                    assertThat(collected.getFailure(), nullValue());
+                }
+            }
+        }
+        assertThat(names, contains("first", "second", "failing"));
+        assertThat(contents.stream().map(Content::getName).collect(toList()), contains("first.txt", "second.txt", "failing.txt"));
+    }
+
+    @Test
+    public void componentsRunningOutOfTimeKeepWhatTheyAdded() throws IOException {
+        BundleBudget budget = new BundleBudget(0, 1);
+        List<Component> components = Arrays.asList(
+                new TestComponent("hanging", container -> {
+                    container.add(new StringContent("before.txt", "before"));
+                    try {
+                        Thread.sleep(60000);
+                    } catch (InterruptedException e) {
+                        // ignored so that the component keeps adding contents once cut short
+                    }
+                    container.add(new StringContent("after.txt", "after"));
+                }),
+                new TestComponent("fast", container -> container.add(new StringContent("fast.txt", "fast"))));
+        try (ContentCollector collector = new ContentCollector(components, budget, 1)) {
+            List<Content> contents = new ArrayList<>();
+            assertThat(collector.next().drainTo(contents), contains("before.txt"));
+            assertThat(collector.next().drainTo(contents), contains("fast.txt"));
+        }
+        assertThat(budget.getExceeded(), contains("hanging"));
+    }
+
+    @Test
+    public void componentsAreCollectedInlineWithoutThreads() throws IOException {
+        Thread caller = Thread.currentThread();
+        List<Component> components = Collections.singletonList(new TestComponent("inline", container -> {
+            assertThat(Thread.currentThread(), is(caller));
+        }));
+        try (ContentCollector collector = new ContentCollector(components, new BundleBudget(0, 0), 0)) {
+            ContentCollector.Collected collected = collector.next();
+            assertThat(collected.getFailure(), nullValue());
+            assertThat(collected.drainTo(new ArrayList<>()), empty());
+        }
+    }
+
+    private interface Contents {
+        void addTo(Container container);
+    }
+
+    private static final class TestComponent extends Component {
+        private final String displayName;
+        private final Contents contents;
+
+        TestComponent(String displayName, Contents contents) {
+            this.displayName = displayName;
+            this.contents = contents;
+        }
+
+        @Override
+        public Set<Permission> getRequiredPermissions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        @Override
+        public void addContents(Container container) {
+            contents.addTo(container);
+        }
+    }
+}
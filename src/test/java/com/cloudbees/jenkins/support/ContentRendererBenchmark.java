@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Content;
+import com.cloudbees.jenkins.support.api.StringContent;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * Measures how the throughput of writing a bundle scales with {@link SupportPlugin#BUNDLE_COMPRESSION_THREADS}.
+ * <p>
+ * A bundle of log-like text contents is rendered and written to an archive which is thrown away, with each number of
+ * compression threads in turn, round after round. The time the thread writing the archive spends on each entry is
+ * reported along with the time the whole bundle takes, as that is what compression threads take off it. This is not
+ * run with the other tests:
+ * <pre>
+ * mvn test -Dtest=ContentRendererBenchmark -Dbenchmark.megabytes=256 -Dbenchmark.threads=0,1,2,4,8
+ * </pre>
+ */
+public class ContentRendererBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final int ENTRIES = 64;
+
+    @ClassRule
+    public static JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void compressionThreads() throws IOException {
+        int megabytes = Integer.getInteger("benchmark.megabytes", 64);
+        int[] threads = Arrays.stream(System.getProperty("benchmark.threads", "0,1,2,4,8").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        List<Content> contents = contents(megabytes);
+        long[][] totals = new long[threads.length][ROUNDS];
+        long[][] writing = new long[threads.length][ROUNDS];
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            for (int i = 0; i < threads.length; i++) {
+                long[] times = write(contents, threads[i]);
+                if (round >= WARMUP_ROUNDS) {
+                    totals[i][round - WARMUP_ROUNDS] = times[0];
+                    writing[i][round - WARMUP_ROUNDS] = times[1];
+                }
+            }
+        }
+        System.out.printf("%d MB in %d entries, %d cores, %d render threads%n", megabytes, ENTRIES,
+                Runtime.getRuntime().availableProcessors(), Math.max(1, SupportPlugin.BUNDLE_RENDER_THREADS));
+        for (int i = 0; i < threads.length; i++) {
+            Arrays.sort(totals[i]);
+            Arrays.sort(writing[i]);
+            long total = totals[i][ROUNDS / 2];
+            System.out.printf("%d compression threads: %6d ms, %6.1f MB/s, writer busy %6d ms%n", threads[i],
+                    total / 1000000, megabytes * 1e9 / total, writing[i][ROUNDS / 2] / 1000000);
+        }
+    }
+
+    /**
+     * @return the time taken to write the whole bundle, and the time the thread writing the archive spent writing
+     * entries, in nanoseconds
+     */
+    private static long[] write(List<Content> contents, int compressionThreads) throws IOException {
+        long start = System.nanoTime();
+        long writing = 0;
+        try (ContentRenderer renderer = new ContentRenderer(contents, Optional.empty(), new BundleBudget(0, 0),
+                Math.max(1, SupportPlugin.BUNDLE_RENDER_THREADS), compressionThreads,
+                SupportPlugin.BUNDLE_RENDER_BUFFER_BYTES);
+             ZipArchiveOutputStream out = new ZipArchiveOutputStream(new NullOutputStream())) {
+            while (renderer.hasNext()) {
+                try (ContentRenderer.Rendered rendered = renderer.next()) {
+                    long entry = System.nanoTime();
+                    rendered.writeTo(out, new ZipArchiveEntry(rendered.getContent().getName()));
+                    writing += System.nanoTime() - entry;
+                }
+            }
+        }
+        return new long[] {System.nanoTime() - start, writing};
+    }
+
+    private static List<Content> contents(int megabytes) {
+        String[] words = {"INFO", "WARNING", "hudson.model.Run", "execute", "Finished: SUCCESS", "node-",
+                "at org.jenkinsci.plugins.workflow.cps.CpsThread.runNextChunk(CpsThread.java:187)", "job/folder/"};
+        Random random = new Random(42);
+        int size = megabytes * 1024 * 1024 / ENTRIES;
+        List<Content> contents = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            StringBuilder value = new StringBuilder(size);
+            while (value.length() < size) {
+                value.append("2018-05-0").append(random.nextInt(9)).append(' ')
+                        .append(words[random.nextInt(words.length)]).append(' ')
+                        .append(words[random.nextInt(words.length)]).append(random.nextInt(100000)).append('\n');
+            }
+            contents.add(new StringContent("content-" + i + ".log", value.toString()));
+        }
+        return contents;
+    }
+}
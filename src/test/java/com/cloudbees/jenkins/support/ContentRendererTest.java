@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support;
+
+import com.cloudbees.jenkins.support.api.Content;
+import com.cloudbees.jenkins.support.api.StringContent;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ContentRendererTest {
+    @Rule
+    public JenkinsRule rule = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void deflatedContentsAreCopiedInOrder() throws IOException {
+        List<Content> contents = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // alternate between contents kept in memory and contents spilled to disk, both before and after deflating
+            String value = String.join("\n", Collections.nCopies(i % 2 == 0 ? 10 : 10000, "line " + i));
+            contents.add(new StringContent("content-" + i + ".txt", value));
+            values.add(value);
+        }
+        File bundle = render(contents, 3);
+        try (ZipFile zip = new ZipFile(bundle)) {
+            List<? extends ZipEntry> entries = Collections.list(zip.entries());
+            assertThat(entries.stream().map(ZipEntry::getName).collect(toList()),
+                    is(contents.stream().map(Content::getName).collect(toList())));
+            for (int i = 0; i < entries.size(); i++) {
+                ZipEntry entry = entries.get(i);
+                assertThat(entry.getMethod(), is(ZipEntry.DEFLATED));
+                try (InputStream in = zip.getInputStream(entry)) {
+                    assertThat(IOUtils.toString(in, StandardCharsets.UTF_8), is(values.get(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compressedContentsAreStored() throws IOException {
+        String value = String.join("\n", Collections.nCopies(1000, "stored"));
+        List<Content> contents = new ArrayList<>();
+        contents.add(new StringContent("plain.txt", value));
+        contents.add(new StringContent("declared.txt", value) {
+            @Override
+            public int getCompressionLevel() {
+                return Deflater.NO_COMPRESSION;
+            }
+        });
+        contents.add(new Content("sniffed.txt.gz") {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                try (GZIPOutputStream gz = new GZIPOutputStream(os)) {
+                    gz.write(value.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            @Override
+            public boolean shouldBeFiltered() {
+                return false;
+            }
+        });
+        for (int compressionThreads : new int[] {0, 2}) {
+            File bundle = render(contents, compressionThreads);
+            try (ZipFile zip = new ZipFile(bundle)) {
+                List<? extends ZipEntry> entries = Collections.list(zip.entries());
+                assertThat(entries.stream().map(ZipEntry::getMethod).collect(toList()),
+                        contains(ZipEntry.DEFLATED, ZipEntry.STORED, ZipEntry.STORED));
+                try (InputStream in = zip.getInputStream(entries.get(1))) {
+                    assertThat(IOUtils.toString(in, StandardCharsets.UTF_8), is(value));
+                }
+                try (InputStream in = new GZIPInputStream(zip.getInputStream(entries.get(2)))) {
+                    assertThat(IOUtils.toString(in, StandardCharsets.UTF_8), is(value));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void contentsRunningOutOfTimeAreTruncated() throws IOException {
+        BundleBudget budget = new BundleBudget(0, 1);
+        Content hanging = new Content("hanging.txt") {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                os.write("partial".getBytes(StandardCharsets.UTF_8));
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                os.write("never written".getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public boolean shouldBeFiltered() {
+                return false;
+            }
+        };
+        budget.forComponent("Hanging component").assign(hanging);
+        List<Content> contents = new ArrayList<>();
+        contents.add(hanging);
+        contents.add(new StringContent("fast.txt", "fast"));
+        File bundle = render(contents, budget, 0);
+        try (ZipFile zip = new ZipFile(bundle)) {
+            try (InputStream in = zip.getInputStream(zip.getEntry("hanging.txt"))) {
+                assertThat(IOUtils.toString(in, StandardCharsets.UTF_8),
+                        is("partial\n--- WARNING: Truncated as it exceeded the time allowed to generate the support bundle ---\n"));
+            }
+            try (InputStream in = zip.getInputStream(zip.getEntry("fast.txt"))) {
+                assertThat(IOUtils.toString(in, StandardCharsets.UTF_8), is("fast"));
+            }
+        }
+        assertThat(budget.getExceeded(), contains("Hanging component"));
+    }
+
+    @Test
+    public void binaryContentsRunningOutOfTimeAreNotMarked() throws IOException {
+        BundleBudget budget = new BundleBudget(0, 1);
+        byte[] gzip = gzip("partial");
+        Content hanging = new Content("hanging.gz") {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                os.write(gzip);
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public boolean shouldBeFiltered() {
+                return false;
+            }
+        };
+        budget.forComponent("Hanging component").assign(hanging);
+        File bundle = render(Collections.singletonList(hanging), budget, 0);
+        try (ZipFile zip = new ZipFile(bundle);
+             InputStream in = zip.getInputStream(zip.getEntry("hanging.gz"))) {
+            assertThat(IOUtils.toByteArray(in), is(gzip));
+        }
+        assertThat(budget.getExceeded(), contains("Hanging component"));
+    }
+
+    private static byte[] gzip(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes)) {
+            gz.write(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private File render(List<Content> contents, int compressionThreads) throws IOException {
+        return render(contents, new BundleBudget(0, 0), compressionThreads);
+    }
+
+    private File render(List<Content> contents, BundleBudget budget, int compressionThreads) throws IOException {
+        File bundle = temp.newFile();
+        try (ContentRenderer renderer = new ContentRenderer(contents, Optional.empty(), budget, 2, compressionThreads, 1024);
+             ZipArchiveOutputStream out = new ZipArchiveOutputStream(bundle)) {
+            while (renderer.hasNext()) {
+                try (ContentRenderer.Rendered rendered = renderer.next()) {
+                    rendered.writeTo(out, new ZipArchiveEntry(rendered.getContent().getName()));
+                }
+            }
+        }
+        return bundle;
+    }
+}
@@ -4,6 +4,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
 import com.cloudbees.jenkins.support.api.Component;
+import com.cloudbees.jenkins.support.api.Container;
+import com.cloudbees.jenkins.support.api.Content;
+import com.cloudbees.jenkins.support.api.StringContent;
 import com.cloudbees.jenkins.support.filter.ContentFilters;
 import com.cloudbees.jenkins.support.filter.ContentMappings;
 import com.cloudbees.jenkins.support.impl.AboutJenkins;
@@ -15,13 +18,22 @@ import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import hudson.ExtensionList;
 import hudson.model.Label;
 import hudson.model.Slave;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.Permission;
 import hudson.util.RingBufferLogHandler;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.acegisecurity.Authentication;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.JenkinsRule.WebClient;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.TestExtension;
 import org.junit.rules.TemporaryFolder;
 import org.xml.sax.SAXException;
 
@@ -34,13 +46,23 @@ import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -69,6 +91,8 @@ public class SupportActionTest {
     @Test
     public void generateAllBundles() throws IOException, SAXException {
         downloadBundle("/generateAllBundles?json={\"components\":1}");
+        // streamed rather than stored
+        assertThat(root.getBundles(), is(empty()));
     }
 
     private void downloadBundle(String s) throws IOException, SAXException {
@@ -178,4 +202,211 @@ public class SupportActionTest {
                     nodeComponentText, containsString(anonymousNodeName));
         }
     }
+
+    @Test
+    public void storedBundleIsAnonymizedAfterTheFact() throws Exception {
+        Slave node = rule.createSlave(Label.get("super_secret_node"));
+        List<Component> componentsToCreate = Collections.singletonList(ExtensionList.lookup(Component.class).get(AboutJenkins.class));
+        File bundleFile = new File(SupportPlugin.getRootDirectory(), "support_plain.zip");
+        Files.createDirectories(bundleFile.getParentFile().toPath());
+        try (OutputStream os = Files.newOutputStream(bundleFile.toPath())) {
+            ContentFilters.get().setEnabled(false);
+            SupportPlugin.writeBundle(os, componentsToCreate);
+        }
+        BundleIndex.get().add(bundleFile, BundleIndex.Trigger.MANUAL, componentsToCreate);
+
+        JSONObject started = rule.postJSON(root.getUrlName() + "/anonymizeBundle?bundle=" + bundleFile.getName(), "")
+                .getJSONObject();
+        assertThat(started.getString("source"), is(bundleFile.getName()));
+        BundleJob job = root.getJob(started.getString("id"));
+        assertThat(job.await(), is(BundleJob.State.COMPLETED));
+        ZipFile zip = new ZipFile(job.getFile());
+        String nodeComponentText = IOUtils.toString(zip.getInputStream(zip.getEntry("nodes.md")), StandardCharsets.UTF_8);
+        assertThat(nodeComponentText, not(containsString(node.getNodeName())));
+        assertThat(nodeComponentText, containsString(ContentMappings.get().getMappings().get(node.getNodeName())));
+        assertThat(root.getBundles(), hasItem("support_plain" + BundleAnonymizer.SUFFIX));
+        try {
+            BundleJob.anonymize(job.getFile().getName());
+            fail("anonymized bundles are not anonymized again");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void contentsAreWrittenInManifestOrder() throws Exception {
+        File bundleFile = temp.newFile();
+        List<Component> componentsToCreate = Collections.singletonList(ExtensionList.lookup(Component.class).get(SlowComponent.class));
+        try (OutputStream os = Files.newOutputStream(bundleFile.toPath())) {
+            SupportPlugin.writeBundle(os, componentsToCreate);
+        }
+        try (ZipFile zip = new ZipFile(bundleFile)) {
+            List<String> names = zip.stream().map(ZipEntry::getName).collect(toList());
+            assertThat(names, contains("slow.txt", "broken.txt", "fast.txt", "manifest/timings.json", "manifest.md",
+                    "manifest/errors.txt"));
+            assertThat(IOUtils.toString(zip.getInputStream(zip.getEntry("slow.txt")), StandardCharsets.UTF_8), is("slow"));
+            assertThat(IOUtils.toString(zip.getInputStream(zip.getEntry("broken.txt")), StandardCharsets.UTF_8), is("partial"));
+            assertThat(IOUtils.toString(zip.getInputStream(zip.getEntry("manifest/errors.txt")), StandardCharsets.UTF_8),
+                    containsString("Could not attach 'broken.txt' to support bundle"));
+            JSONObject timings = JSONObject.fromObject(
+                    IOUtils.toString(zip.getInputStream(zip.getEntry("manifest/timings.json")), StandardCharsets.UTF_8));
+            JSONObject slow = timings.getJSONArray("entries").getJSONObject(0);
+            assertThat(slow.getString("name"), is("slow.txt"));
+            assertThat(slow.getString("component"), is("Slow component"));
+            assertThat(slow.getDouble("renderMillis"), greaterThanOrEqualTo(500d));
+            assertThat(slow.getLong("size"), is(4L));
+            assertThat(IOUtils.toString(zip.getInputStream(zip.getEntry("manifest.md")), StandardCharsets.UTF_8),
+                    containsString("| Slow component |"));
+        }
+    }
+
+    @Test
+    public void bundleJobsRunInTheBackground() throws Exception {
+        JSONObject started = rule.postJSON(root.getUrlName() + "/startBundle?component=SlowComponent", "")
+                .getJSONObject();
+        assertThat(started.getInt("componentsTotal"), is(1));
+        BundleJob job = root.getJob(started.getString("id"));
+        assertNotNull(job);
+        assertThat(job.await(), is(BundleJob.State.COMPLETED));
+        assertThat(job.getComponentsDone(), is(1));
+        assertThat(job.getBytesWritten(), is(job.getFile().length()));
+        assertThat(root.getBundles(), hasItem(job.getFile().getName()));
+
+        WebClient wc = rule.createWebClient();
+        JSONObject status = JSONObject.fromObject(
+                wc.goTo(root.getUrlName() + "/job/" + job.getId() + "/", "application/json").getWebResponse().getContentAsString());
+        assertThat(status.getString("state"), is("COMPLETED"));
+        assertThat(status.getInt("entriesWritten"), is(job.getEntriesWritten()));
+        Page zip = wc.goTo(root.getUrlName() + "/job/" + job.getId() + "/download", "application/zip");
+        File zipFile = temp.newFile();
+        IOUtils.copy(zip.getWebResponse().getContentAsStream(), Files.newOutputStream(zipFile.toPath()));
+        try (ZipFile z = new ZipFile(zipFile)) {
+            assertNotNull(z.getEntry("slow.txt"));
+        }
+
+        job = BundleJob.start(Collections.singletonList(ExtensionList.lookup(Component.class).get(SlowComponent.class)));
+        job.cancel();
+        assertThat(job.await(), is(BundleJob.State.CANCELLED));
+        assertThat(job.getFile().exists(), is(false));
+    }
+
+    @Test
+    public void equivalentRequestsShareOneBundle() throws Exception {
+        Component slow = ExtensionList.lookup(Component.class).get(SlowComponent.class);
+        Component about = ExtensionList.lookup(Component.class).get(AboutJenkins.class);
+        assertThat(BundleJob.joinShared(Arrays.asList(slow, about)), is(nullValue()));
+        BundleJob job = BundleJob.join(Arrays.asList(slow, about));
+        assertThat(BundleJob.join(Arrays.asList(about, slow)), is(job));
+        assertThat(BundleJob.joinShared(Arrays.asList(about, slow)), is(job));
+        BundleJob other = BundleJob.join(Collections.singletonList(slow));
+        assertThat(other, not(job));
+        assertThat(job.await(), is(BundleJob.State.COMPLETED));
+        // served again while fresh, unless a new bundle is explicitly started
+        assertThat(BundleJob.join(Arrays.asList(slow, about)), is(job));
+        assertThat(BundleJob.start(Arrays.asList(slow, about)), not(job));
+        other.await();
+    }
+
+    @Test
+    public void sharedJobsAreOnlyCancelledByTheirLastRequester() throws Exception {
+        rule.jenkins.setSecurityRealm(rule.createDummySecurityRealm());
+        rule.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ, SupportPlugin.CREATE_BUNDLE).everywhere().to("alice", "bob", "carol")
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin"));
+        List<Component> components = Collections.singletonList(
+                ExtensionList.lookup(Component.class).get(BlockingComponent.class));
+        Authentication alice = User.get("alice").impersonate();
+        Authentication bob = User.get("bob").impersonate();
+        try {
+            BundleJob job;
+            try (ACLContext ignored = ACL.as(alice)) {
+                job = BundleJob.join(components);
+            }
+            try (ACLContext ignored = ACL.as(bob)) {
+                assertThat(BundleJob.join(components), is(job));
+            }
+            assertThat(job.mayAccess(bob), is(true));
+            assertThat(job.mayAccess(User.get("carol").impersonate()), is(false));
+            assertThat(job.mayAccess(User.get("admin").impersonate()), is(true));
+            assertThat(job.cancel(User.get("carol").impersonate()), is(-1));
+            assertThat(job.cancel(alice), is(1));
+            assertThat(job.getState().isFinished(), is(false));
+            assertThat(job.cancel(alice), is(-1));
+            assertThat(job.cancel(bob), is(0));
+            assertThat(job.await(), is(BundleJob.State.CANCELLED));
+
+            try (ACLContext ignored = ACL.as(alice)) {
+                job = BundleJob.join(components);
+            }
+            assertThat(job.cancel(User.get("admin").impersonate()), is(0));
+            assertThat(job.await(), is(BundleJob.State.CANCELLED));
+        } finally {
+            BlockingComponent.RELEASE.countDown();
+        }
+    }
+
+    @TestExtension("sharedJobsAreOnlyCancelledByTheirLastRequester")
+    public static class BlockingComponent extends Component {
+        static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+        @Override
+        public Set<Permission> getRequiredPermissions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Blocking component";
+        }
+
+        @Override
+        public void addContents(Container container) {
+            container.add(new Content("blocking.txt") {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    try {
+                        RELEASE.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            });
+        }
+    }
+
+    @TestExtension({"contentsAreWrittenInManifestOrder", "bundleJobsRunInTheBackground", "equivalentRequestsShareOneBundle"})
+    public static class SlowComponent extends Component {
+        @Override
+        public Set<Permission> getRequiredPermissions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Slow component";
+        }
+
+        @Override
+        public void addContents(Container container) {
+            container.add(new Content("slow.txt") {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    os.write("slow".getBytes(StandardCharsets.UTF_8));
+                }
+            });
+            container.add(new Content("broken.txt") {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    os.write("partial".getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                    throw new IOException("broken on purpose");
+                }
+            });
+            container.add(new StringContent("fast.txt", "fast"));
+        }
+    }
 }
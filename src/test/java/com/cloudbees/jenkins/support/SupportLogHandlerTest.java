@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.ErrorManager;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class SupportLogHandlerTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void recordsAreWrittenInBatches() throws Exception {
+        File dir = temp.newFolder();
+        SupportLogHandler handler = new SupportLogHandler(2, 2048, 8, 16, SupportLogHandler.Overflow.DROP, 60000, 1024);
+        handler.setDirectory(dir, "all");
+        try {
+            handler.publish(new LogRecord(Level.INFO, "first message"));
+            handler.publish(new LogRecord(Level.INFO, "second message"));
+            handler.publish(new LogRecord(Level.INFO, "third message"));
+            assertThat("recent records are kept as they are published", handler.getRecent(), hasSize(2));
+            assertThat(readLogs(dir), not(containsString("first message")));
+            handler.flush();
+            assertThat(readLogs(dir), containsString("first message"));
+            assertThat(readLogs(dir), containsString("third message"));
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test
+    public void recordsAreDroppedWhenTheQueueIsFull() throws Exception {
+        File dir = temp.newFolder();
+        SupportLogHandler handler = new SupportLogHandler(16, 2048, 8, 2, SupportLogHandler.Overflow.DROP, 60000, 1024);
+        handler.setDirectory(dir, "all");
+        try {
+            for (int i = 0; i < 5; i++) {
+                handler.publish(new LogRecord(Level.INFO, "message " + i));
+            }
+            assertThat(handler.getDroppedCount(), is(3L));
+            assertThat(handler.getRecent(), hasSize(5));
+            handler.flush();
+            String logs = readLogs(dir);
+            assertThat(logs, containsString("3 log records were dropped"));
+            assertThat(logs, containsString("message 1"));
+            assertThat(logs, not(containsString("message 2")));
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test
+    public void pendingRecordsAreWrittenWhenClosed() throws Exception {
+        File dir = temp.newFolder();
+        SupportLogHandler handler = new SupportLogHandler(16, 2048, 8, 16, SupportLogHandler.Overflow.BLOCK, 60000, 1024);
+        handler.setDirectory(dir, "all");
+        handler.publish(new LogRecord(Level.INFO, "last message"));
+        handler.close();
+        assertThat(readLogs(dir), containsString("last message"));
+    }
+
+    @Test(timeout = 30000)
+    public void recordsAreStillWrittenAfterTheWriterFailed() throws Exception {
+        File dir = temp.newFolder();
+        AtomicInteger failures = new AtomicInteger(1);
+        SupportLogHandler handler = new SupportLogHandler(16, 2048, 8, 2, SupportLogHandler.Overflow.BLOCK, 10, 1024) {
+            @Override
+            public void flush() {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("could not write");
+                }
+                super.flush();
+            }
+        };
+        handler.setErrorManager(new ErrorManager() {
+            @Override
+            public synchronized void error(String msg, Exception ex, int code) {
+                // expected
+            }
+        });
+        handler.setDirectory(dir, "all");
+        try {
+            // more records than the queue holds, so that publishing waits for the writer thread
+            for (int i = 0; i < 5; i++) {
+                handler.publish(new LogRecord(Level.INFO, "message " + i));
+            }
+            assertThat(failures.get(), lessThan(0));
+            handler.flush();
+            assertThat(readLogs(dir), containsString("message 4"));
+        } finally {
+            handler.close();
+        }
+    }
+
+    private static String readLogs(File dir) throws IOException {
+        List<String> lines = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+            }
+        }
+        return String.join("\n", lines);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support.filter;
+
+import hudson.BulkChange;
+import org.junit.Assume;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures whether fusing the {@link MatchingContentFilter}s would pay off. Lines of a log are filtered by each filter
+ * in turn, building a string for each filter which replaces something, and in a single pass replacing the spans of
+ * all of them together. They are also filtered by {@link AllContentFilters}, as bundles are, and by each filter alone.
+ * <p>
+ * Words of the log such as package or host names, made of letters and digits or dashes but not only of hex digits, are
+ * added as mappings, and an IPv4 and an IPv6 address are appended to every 7th line. This is not run with the other
+ * tests:
+ * <pre>
+ * mvn test -Dtest=AllContentFiltersBenchmark -Dbenchmark.log=/var/log/dpkg.log
+ * </pre>
+ */
+public class AllContentFiltersBenchmark {
+
+    private static final Pattern NAME = Pattern.compile("\\b(?=[a-z0-9-]*[g-z])(?=[a-z0-9-]*[0-9-])[a-z0-9-]{4,}\\b");
+    private static final int WARMUP_ROUNDS = 30;
+    private static final int ROUNDS = 15;
+
+    @ClassRule
+    public static JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void fusingMatchingFilters() throws Exception {
+        String log = System.getProperty("benchmark.log");
+        Assume.assumeNotNull(log);
+        List<String> lines = new ArrayList<>(Files.readAllLines(Paths.get(log), StandardCharsets.ISO_8859_1));
+        for (int i = 0; i < lines.size(); i += 7) {
+            lines.set(i, lines.get(i) + " from 10.1." + i % 250 + ".7 and fe80::" + Integer.toHexString(i));
+        }
+        List<MatchingContentFilter> filters = new ArrayList<>();
+        for (ContentFilter filter : ContentFilter.all()) {
+            Assume.assumeTrue(filter instanceof MatchingContentFilter);
+            filters.add((MatchingContentFilter) filter);
+        }
+        ContentMappings mappings = ContentMappings.get();
+        int maxLineLength = LineMemo.MAX_LINE_LENGTH;
+        // leave the mappings unsaved and filter every line rather than looking it up
+        try (BulkChange ignored = new BulkChange(mappings)) {
+            Set<String> names = new LinkedHashSet<>();
+            for (String line : lines) {
+                Matcher m = NAME.matcher(line);
+                while (m.find()) {
+                    names.add(m.group());
+                }
+            }
+            for (String name : names) {
+                mappings.getMappingOrCreate(name,
+                        original -> ContentMapping.of(original, "name_" + original.hashCode()));
+            }
+            LineMemo.MAX_LINE_LENGTH = -1;
+            ContentFilter.ALL.reload();
+
+            UnaryOperator<String> sequential = line -> {
+                String filtered = line;
+                for (MatchingContentFilter filter : filters) {
+                    ContentMatches matches = new ContentMatches(filtered);
+                    filter.match(matches);
+                    if (!matches.isEmpty()) {
+                        filtered = matches.replace();
+                    }
+                }
+                return filtered;
+            };
+            UnaryOperator<String> fused = line -> {
+                ContentMatches matches = new ContentMatches(line);
+                filters.forEach(filter -> filter.match(matches));
+                return matches.replace();
+            };
+            int different = 0;
+            for (String line : lines) {
+                if (!sequential.apply(line).equals(fused.apply(line))) {
+                    different++;
+                }
+            }
+            System.out.printf("%d lines, %d names, %d lines filtered differently when fused%n", lines.size(),
+                    names.size(), different);
+            Map<String, UnaryOperator<String>> variants = new LinkedHashMap<>();
+            variants.put("in turn", sequential);
+            variants.put("fused", fused);
+            variants.put("AllContentFilters", ContentFilter.ALL::filter);
+            for (MatchingContentFilter filter : filters) {
+                variants.put(filter.getClass().getSimpleName() + " alone", filter::filter);
+            }
+            measure(variants, lines).forEach((variant, time) -> System.out.printf("%-35s %s%n", variant, time));
+        } finally {
+            LineMemo.MAX_LINE_LENGTH = maxLineLength;
+            ContentFilter.ALL.reload();
+        }
+    }
+
+    /**
+     * Filters all the lines with each variant in turn, round after round, so that they all run with the same warmed up
+     * code and the same load.
+     *
+     * @return the median and range of the time each variant took to filter a line, after warming up
+     */
+    private static Map<String, String> measure(Map<String, UnaryOperator<String>> variants, List<String> lines) {
+        Map<String, double[]> times = new LinkedHashMap<>();
+        variants.keySet().forEach(variant -> times.put(variant, new double[ROUNDS]));
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            for (Map.Entry<String, UnaryOperator<String>> variant : variants.entrySet()) {
+                long start = System.nanoTime();
+                long chars = 0;
+                for (String line : lines) {
+                    chars += variant.getValue().apply(line).length();
+                }
+                // keep the filtered lines from being optimized away
+                if (chars < 0) {
+                    throw new AssertionError();
+                }
+                if (round >= WARMUP_ROUNDS) {
+                    times.get(variant.getKey())[round - WARMUP_ROUNDS] =
+                            (System.nanoTime() - start) / 1000.0 / lines.size();
+                }
+            }
+        }
+        Map<String, String> summaries = new LinkedHashMap<>();
+        times.forEach((variant, t) -> {
+            Arrays.sort(t);
+            summaries.put(variant,
+                    String.format("median %.2f us/line (%.2f-%.2f)", t[ROUNDS / 2], t[0], t[ROUNDS - 1]));
+        });
+        return summaries;
+    }
+}
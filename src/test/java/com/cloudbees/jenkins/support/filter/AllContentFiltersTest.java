@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AllContentFiltersTest {
+
+    @ClassRule
+    public static JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void namesAndAddressesAreReplaced() throws Exception {
+        jenkins.createSlave("foo", "bar", null);
+        ContentFilter.ALL.reload();
+        String input = "Agent foo (bar) connected from 10.1.2.3 and fe80::1, not from food or 10.1.2.300";
+
+        assertThat(ContentFilter.ALL.filter(input))
+                .doesNotContain("foo ", "bar", "10.1.2.3 ", "fe80::1")
+                .contains("food", "10.1.2.300");
+    }
+
+    @Test
+    public void streamingFilterMatchesStringFilter() throws Exception {
+        jenkins.createSlave("foo", "bar", null);
+        ContentFilter.ALL.reload();
+        String line = "Agent foo (bar) connected from 10.1.2.3\n";
+        StringBuilder input = new StringBuilder("foo bar\n").append(line).append("10.1.2.3");
+        StreamingContentFilter filter = (StreamingContentFilter) ContentFilter.ALL;
+
+        StringBuilder filtered = new StringBuilder();
+        assertThat(filter.filter(input, 8, 8 + line.length(), filtered)).isTrue();
+        assertThat(filtered.toString()).isEqualTo(filter.filter(line));
+
+        StringBuilder unchanged = new StringBuilder();
+        assertThat(filter.filter("Nothing to see here\n", 0, 20, unchanged)).isFalse();
+        assertThat(unchanged).isEmpty();
+    }
+
+    @Test
+    public void repeatedLinesAreMemoized() {
+        String input = "Remembered memento was seen again";
+        assertThat(ContentFilter.ALL.filter(input)).isEqualTo(input);
+        LineMemo.Stats start = LineMemo.get().getStats();
+        assertThat(ContentFilter.ALL.filter(input)).isEqualTo(input);
+        assertThat(LineMemo.get().getStats().since(start).getHits()).isEqualTo(1);
+
+        ContentMappings.get().getMappingOrCreate("memento", original -> ContentMapping.of(original, "replaced"));
+        assertThat(ContentFilter.ALL.filter(input)).isEqualTo("Remembered replaced was seen again");
+        assertThat(LineMemo.get().getStats().since(start).getInvalidations()).isEqualTo(1);
+    }
+
+    @Test
+    public void addressesFoundWhileFilteringKeepRepeatedLinesMemoized() {
+        String input = "Connected from 10.9.8.7";
+        String filtered = ContentFilter.ALL.filter(input);
+        assertThat(filtered).doesNotContain("10.9.8.7");
+        LineMemo.Stats start = LineMemo.get().getStats();
+        assertThat(ContentFilter.ALL.filter(input)).isEqualTo(filtered);
+        assertThat(LineMemo.get().getStats().since(start).getHits()).isEqualTo(1);
+        assertThat(LineMemo.get().getStats().since(start).getInvalidations()).isZero();
+    }
+
+    @Test
+    public void mappingsAddedBetweenRebuildsAreMatched() {
+        ContentMappings mappings = ContentMappings.get();
+        // enough mappings for those added to be matched in batches before the automaton is rebuilt
+        for (int i = 0; i < 1000; i++) {
+            mappings.getMappingOrCreate("known_" + i, original -> ContentMapping.of(original, original.replace("known", "mapped")));
+        }
+        assertThat(ContentFilter.ALL.filter("known_999")).isEqualTo("mapped_999");
+        for (int i = 0; i < 200; i++) {
+            mappings.getMappingOrCreate("added_" + i, original -> ContentMapping.of(original, original.replace("added", "mapped")));
+            assertThat(ContentFilter.ALL.filter("first added_0 then added_" + i))
+                    .isEqualTo("first mapped_0 then mapped_" + i);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support.filter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+public class ContentMappingsJournalTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void escapedCharactersAreReplayed() throws IOException {
+        File file = new File(temp.getRoot(), "mappings.journal");
+        ContentMappingsJournal journal = new ContentMappingsJournal(file);
+        journal.append(ContentMapping.of("tab\there", "line\nbreak"));
+        journal.append(ContentMapping.of("back\\slash\\t", "carriage\r\nreturn\\"));
+
+        assertThat(pairs(new ContentMappingsJournal(file).replay()),
+                contains("tab\there -> line\nbreak", "back\\slash\\t -> carriage\r\nreturn\\"));
+    }
+
+    @Test
+    public void lastLineCutShortIsDropped() throws IOException {
+        File file = new File(temp.getRoot(), "mappings.journal");
+        ContentMappingsJournal journal = new ContentMappingsJournal(file);
+        journal.append(ContentMapping.of("first_original", "first_replacement"));
+        journal.append(ContentMapping.of("second_original", "second_replacement"));
+        // a crash while appending the third mapping
+        Files.write(file.toPath(), "third_original\tthird_repl".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        // restarting
+        journal = new ContentMappingsJournal(file);
+        assertThat(pairs(journal.replay()),
+                contains("first_original -> first_replacement", "second_original -> second_replacement"));
+        journal.append(ContentMapping.of("fourth_original", "fourth_replacement"));
+
+        // restarting again
+        assertThat(pairs(new ContentMappingsJournal(file).replay()),
+                contains("first_original -> first_replacement", "second_original -> second_replacement",
+                        "fourth_original -> fourth_replacement"));
+    }
+
+    @Test
+    public void multibyteCharacterCutShortIsDropped() throws IOException {
+        File file = new File(temp.getRoot(), "mappings.journal");
+        ContentMappingsJournal journal = new ContentMappingsJournal(file);
+        journal.append(ContentMapping.of("café", "bar"));
+        byte[] line = "naïve\tbaz\n".getBytes(StandardCharsets.UTF_8);
+        // cut within the two bytes of the diaeresis
+        Files.write(file.toPath(), Arrays.copyOf(line, 3), StandardOpenOption.APPEND);
+
+        journal = new ContentMappingsJournal(file);
+        assertThat(pairs(journal.replay()), contains("café -> bar"));
+        journal.append(ContentMapping.of("naïve", "baz"));
+        assertThat(pairs(new ContentMappingsJournal(file).replay()), contains("café -> bar", "naïve -> baz"));
+    }
+
+    @Test
+    public void malformedLinesAreSkipped() throws IOException {
+        File file = new File(temp.getRoot(), "mappings.journal");
+        Files.write(file.toPath(), "no tab here\nkept_original\tkept_replacement\n".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(pairs(new ContentMappingsJournal(file).replay()), contains("kept_original -> kept_replacement"));
+    }
+
+    @Test
+    public void resetEmptiesTheJournal() throws IOException {
+        File file = new File(temp.getRoot(), "mappings.journal");
+        ContentMappingsJournal journal = new ContentMappingsJournal(file);
+        journal.append(ContentMapping.of("an_original", "a_replacement"));
+        journal.reset();
+
+        assertFalse(journal.exists());
+        assertThat(journal.replay(), is(empty()));
+        assertThat(journal.append(ContentMapping.of("another_original", "another_replacement")), is(1));
+    }
+
+    private static List<String> pairs(List<ContentMapping> mappings) {
+        return mappings.stream().map(mapping -> mapping.getOriginal() + " -> " + mapping.getReplacement())
+                .collect(toList());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ContentMappingsPageTest {
+
+    private static ContentMappingsIndex index() {
+        List<ContentMapping> mappings = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            mappings.add(ContentMapping.of(String.format("job%03d", i), String.format("item_%03d", 249 - i)));
+        }
+        mappings.add(ContentMapping.of("Agent", "computer_000"));
+        mappings.add(ContentMapping.of("agent-two", "computer_001"));
+        return new ContentMappingsIndex(mappings, 0);
+    }
+
+    private static List<String> originals(ContentMappingsPage page) {
+        return page.getMappings().stream().map(ContentMapping::getOriginal).collect(toList());
+    }
+
+    @Test
+    public void pagesAreSortedByOriginalIgnoringCase() {
+        ContentMappingsPage page = new ContentMappingsPage(index(), null, null, null, 1, 3);
+        assertThat(originals(page), contains("Agent", "agent-two", "job000"));
+        assertThat(page.getTotal(), is(252));
+        assertThat(page.getPageCount(), is(84));
+        assertFalse(page.hasPrevious());
+        assertTrue(page.hasNext());
+
+        page = new ContentMappingsPage(index(), null, null, null, 84, 3);
+        assertThat(originals(page), contains("job247", "job248", "job249"));
+        assertFalse(page.hasNext());
+    }
+
+    @Test
+    public void pagesAreSortedByReplacementInEitherOrder() {
+        ContentMappingsPage page = new ContentMappingsPage(index(), "replacement", "desc", null, 1, 2);
+        assertThat(originals(page), contains("job000", "job001"));
+        page = new ContentMappingsPage(index(), "replacement", null, null, 1, 2);
+        assertThat(originals(page), contains("Agent", "agent-two"));
+    }
+
+    @Test
+    public void prefixSelectsMatchingMappings() {
+        ContentMappingsPage page = new ContentMappingsPage(index(), null, null, "AGENT", 1, 10);
+        assertThat(originals(page), contains("Agent", "agent-two"));
+        page = new ContentMappingsPage(index(), null, "desc", "job12", 2, 4);
+        assertThat(page.getTotal(), is(10));
+        assertThat(originals(page), contains("job125", "job124", "job123", "job122"));
+        page = new ContentMappingsPage(index(), "replacement", null, "item_24", 1, 100);
+        assertThat(page.getTotal(), is(10));
+        page = new ContentMappingsPage(index(), null, null, "nothing", 5, 10);
+        assertThat(page.getMappings(), is(empty()));
+        assertThat(page.getNumber(), is(1));
+    }
+
+    @Test
+    public void queriesKeepSortAndPrefix() {
+        ContentMappingsPage page = new ContentMappingsPage(index(), "replacement", null, "a b", 1, 100);
+        assertThat(page.getQuery(2), is("?sort=replacement&q=a+b&page=2"));
+        assertThat(page.getSortQuery("replacement"), is("?sort=replacement&order=desc&q=a+b&page=1"));
+        assertThat(page.getSortQuery("original"), is("?sort=original&q=a+b&page=1"));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.support.filter;
+
+import hudson.model.FreeStyleProject;
+import org.apache.commons.lang.SerializationUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ContentMappingsSnapshotTest {
+
+    @ClassRule
+    public static JenkinsRule jenkins = new JenkinsRule();
+
+    @Before
+    public void enable() {
+        ContentFilters.get().setEnabled(true);
+        ContentFilters.get().setOnAgents(true);
+    }
+
+    @After
+    public void disable() {
+        ContentFilters.get().setEnabled(false);
+        ContentFilters.get().setOnAgents(false);
+    }
+
+    @Test
+    public void agentFilteringMatchesControllerFiltering() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("private-project");
+        ContentMappingsSnapshot snapshot = ContentMappingsSnapshot.current();
+        assertThat(snapshot).isNotNull();
+        FreeStyleProject later = jenkins.createFreeStyleProject("later-project");
+        ContentFilter.ALL.reload();
+        String input = "Building " + project.getName() + " and " + later.getName() + " for 10.11.12.13\n";
+
+        // as sent to an agent and back
+        ContentMappingsSnapshot remote = (ContentMappingsSnapshot) SerializationUtils.clone(snapshot);
+        String filtered = snapshot.complete((ContentMappingsSnapshot.Filtered) SerializationUtils.clone(remote.filter(input)));
+
+        assertThat(filtered).doesNotContain("private-project", "later-project", "10.11.12.13")
+                .isEqualTo(ContentFilter.ALL.filter(input));
+    }
+
+    @Test
+    public void noSnapshotUnlessEnabled() throws Exception {
+        ContentFilters.get().setOnAgents(false);
+
+        assertThat(ContentMappingsSnapshot.current()).isNull();
+    }
+}
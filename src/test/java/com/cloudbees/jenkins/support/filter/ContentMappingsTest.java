@@ -25,22 +25,30 @@ package com.cloudbees.jenkins.support.filter;
 
 import hudson.model.FreeStyleProject;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.assertj.core.api.Assertions;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
+import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.RestartableJenkinsRule;
 import org.jvnet.hudson.test.recipes.LocalData;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Locale;
 import java.util.stream.StreamSupport;
 
 import static java.util.stream.Collectors.toList;
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -103,6 +111,71 @@ public class ContentMappingsTest {
         });
     }
 
+    @Test
+    public void createdMappingsAreJournaledUntilSaved() {
+        ContentMapping mapping = ContentMapping.of("journaled_original", "journaled_replacement");
+        rr.then(r -> {
+            ContentMappings.get().getMappingOrCreate(mapping.getOriginal(), original -> mapping);
+            assertTrue(getJournalFile(r).exists());
+            ContentMappings.get().save();
+            assertFalse(getJournalFile(r).exists());
+            ContentMappings.get().getMappingOrCreate("another_original", original -> ContentMapping.of(original, "another_replacement"));
+            assertTrue(getJournalFile(r).exists());
+        });
+        rr.then(r -> {
+            assertThat(ContentMappings.get().getMappings(), hasEntry(mapping.getOriginal(), mapping.getReplacement()));
+            assertThat(ContentMappings.get().getMappings(), hasEntry("another_original", "another_replacement"));
+            assertFalse(getJournalFile(r).exists());
+        });
+    }
+
+    @Test
+    public void journalCutShortIsReplayedOverSavedMappings() {
+        rr.then(r -> {
+            ContentMappings.get().getMappingOrCreate("saved_original", original -> ContentMapping.of(original, "saved_replacement"));
+            ContentMappings.get().save();
+            // as left by a crash while appending the last mapping, after the one already saved was journaled again
+            Files.write(getJournalFile(r).toPath(), ("saved_original\tjournaled_replacement\n"
+                    + "journaled_original\tjournaled_replacement\n"
+                    + "torn_original\ttorn_repl").getBytes(StandardCharsets.UTF_8));
+        });
+        rr.then(r -> {
+            assertThat(ContentMappings.get().getMappings(), hasEntry("saved_original", "saved_replacement"));
+            assertThat(ContentMappings.get().getMappings(), hasEntry("journaled_original", "journaled_replacement"));
+            assertThat(ContentMappings.get().getMappings(), not(hasKey("torn_original")));
+            assertFalse(getJournalFile(r).exists());
+            ContentMappings.get().getMappingOrCreate("another_original", original -> ContentMapping.of(original, "another_replacement"));
+        });
+        rr.then(r -> {
+            assertThat(ContentMappings.get().getMappings(), hasEntry("journaled_original", "journaled_replacement"));
+            assertThat(ContentMappings.get().getMappings(), hasEntry("another_original", "another_replacement"));
+            assertThat(ContentMappings.get().getMappings(), not(hasKey("torn_original")));
+        });
+    }
+
+    @Test
+    public void exportWritesEveryMapping() {
+        rr.then(r -> {
+            ContentMappings mappings = ContentMappings.get();
+            mappings.getMappingOrCreate("plain_original", original -> ContentMapping.of(original, "plain_replacement"));
+            mappings.getMappingOrCreate("say \"hi\", there", original -> ContentMapping.of(original, "quoted_replacement"));
+            StringWriter csv = new StringWriter();
+            mappings.writeCSV(csv);
+            assertThat(csv.toString(), startsWith("original,replacement\r\n"));
+            assertThat(csv.toString(), containsString("plain_original,plain_replacement\r\n"));
+            assertThat(csv.toString(), containsString("\"say \"\"hi\"\", there\",quoted_replacement\r\n"));
+            StringWriter json = new StringWriter();
+            mappings.writeJSON(json);
+            Assertions.assertThat(JSONArray.fromObject(json.toString()))
+                    .contains(new JSONObject().element("original", "plain_original").element("replacement", "plain_replacement"),
+                            new JSONObject().element("original", "say \"hi\", there").element("replacement", "quoted_replacement"));
+        });
+    }
+
+    private static File getJournalFile(JenkinsRule r) {
+        return new File(r.jenkins.getRootDir(), ContentMappings.class.getName() + ".journal");
+    }
+
     @Issue("JENKINS-53184")
     @Test
     @LocalData
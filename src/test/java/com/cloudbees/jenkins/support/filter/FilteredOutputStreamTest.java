@@ -29,16 +29,20 @@ import org.apache.commons.io.input.CharSequenceInputStream;
 import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
 
+import javax.annotation.Nonnull;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_16BE;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.joining;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -150,4 +154,104 @@ public class FilteredOutputStreamTest {
                 .isNotEmpty()
                 .isEqualTo(original.toUpperCase(Locale.ENGLISH));
     }
+
+    @Test
+    public void shouldNotSplitCharactersWhenFlushing() throws IOException {
+        FilteredOutputStream out = new FilteredOutputStream(testOutput, s -> s.replace("é", "e"));
+        byte[] bytes = "café\n".getBytes(UTF_8);
+        out.write(bytes, 0, 4);
+        out.flush();
+        out.write(bytes, 4, bytes.length - 4);
+        out.close();
+        assertThat(new String(testOutput.toByteArray(), UTF_8)).isEqualTo("cafe\n");
+    }
+
+    @Test
+    public void shouldFilterChunksInOrder() throws IOException {
+        String input = IntStream.range(0, 10000)
+                .mapToObj(i -> "Line " + i + (i % 3 == 0 ? "\r\n" : "\n"))
+                .collect(joining()) + "Last line";
+        ContentFilter filter = s -> s.replace("Line", "Network");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            FilteredOutputStream out = new FilteredOutputStream(testOutput, UTF_8, filter, pool, 100);
+            IOUtils.copy(new CharSequenceInputStream(input, UTF_8), out);
+            out.close();
+        } finally {
+            pool.shutdown();
+        }
+        assertThat(new String(testOutput.toByteArray(), UTF_8))
+                .isEqualTo(filter.filter(input));
+    }
+
+    @Test
+    public void shouldWriteChunksWhenReset() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            FilteredOutputStream out = new FilteredOutputStream(testOutput, UTF_8, s -> s, pool, 1024);
+            String paragraph = FAKE_TEXT + '\n';
+            out.write(paragraph.getBytes(UTF_8));
+            out.reset();
+            out.write(paragraph.getBytes(UTF_8));
+            out.reset();
+            assertThat(new String(testOutput.toByteArray(), UTF_8)).isEqualTo(paragraph + paragraph);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldUseStreamingFilters() throws IOException {
+        String input = "a secret\nnothing to hide\nune très secret affaire\nsecret";
+        String expected = input.replace("secret", "public");
+        for (Charset charset : new Charset[] {UTF_8, UTF_16BE}) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            FilteredOutputStream out = new FilteredOutputStream(output, charset, new SecretFilter());
+            IOUtils.copy(new CharSequenceInputStream(input, charset), out);
+            out.close();
+            assertThat(new String(output.toByteArray(), charset)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void shouldFilterLongLinesInSegments() throws IOException {
+        int window = LineSegments.MAX_LINE_WINDOW;
+        LineSegments.MAX_LINE_WINDOW = 1024;
+        try {
+            String input = IntStream.range(0, 2000)
+                    .mapToObj(i -> i % 3 == 0 ? "a secret," : i % 3 == 1 ? "très secret;" : "nothing to hide")
+                    .collect(joining(" "));
+            String expected = input.replace("secret", "public");
+            for (Charset charset : new Charset[] {UTF_8, UTF_16BE}) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                FilteredOutputStream out = new FilteredOutputStream(output, charset, new SecretFilter());
+                IOUtils.copy(new CharSequenceInputStream(input, charset), out);
+                assertThat(output.size()).as("written before the end of the line").isPositive();
+                out.close();
+                assertThat(new String(output.toByteArray(), charset)).isEqualTo(expected);
+            }
+        } finally {
+            LineSegments.MAX_LINE_WINDOW = window;
+        }
+    }
+
+    /**
+     * Replaces {@code secret} with {@code public} through the streaming API only.
+     */
+    static class SecretFilter implements StreamingContentFilter {
+        @Override
+        public boolean filter(@Nonnull CharSequence input, int start, int end, @Nonnull Appendable out) throws IOException {
+            String region = input.subSequence(start, end).toString();
+            if (!region.contains("secret")) {
+                return false;
+            }
+            out.append(region.replace("secret", "public"));
+            return true;
+        }
+
+        @Override
+        public @Nonnull String filter(@Nonnull String input) {
+            throw new AssertionError("the streaming API should have been used");
+        }
+    }
 }
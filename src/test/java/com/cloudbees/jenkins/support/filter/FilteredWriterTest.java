@@ -29,8 +29,10 @@ import org.apache.commons.io.input.CharSequenceReader;
 import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
 
+import javax.annotation.Nonnull;
 import java.io.StringWriter;
 import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 import static java.util.stream.Collectors.joining;
@@ -85,4 +87,87 @@ public class FilteredWriterTest {
 
     }
 
+    @Test
+    public void shouldUseStreamingFilters() throws Exception {
+        String input = "a secret\nnothing to hide\nsecret";
+        StringWriter output = new StringWriter();
+        FilteredWriter writer = new FilteredWriter(output, new FilteredOutputStreamTest.SecretFilter());
+
+        IOUtils.copy(new CharSequenceReader(input), writer);
+        writer.close();
+
+        assertThat(output.toString()).isEqualTo(input.replace("secret", "public"));
+    }
+
+    @Test
+    public void shouldFilterLongLinesInSegments() throws Exception {
+        int window = LineSegments.MAX_LINE_WINDOW;
+        LineSegments.MAX_LINE_WINDOW = 1024;
+        try {
+            String input = IntStream.range(0, 2000)
+                    .mapToObj(i -> i % 2 == 0 ? "a secret," : "nothing to hide")
+                    .collect(joining(" "));
+            StringWriter output = new StringWriter();
+            FilteredWriter writer = new FilteredWriter(output, new FilteredOutputStreamTest.SecretFilter());
+
+            IOUtils.copy(new CharSequenceReader(input), writer);
+            assertThat(output.toString()).as("written before the end of the line").isNotEmpty();
+            writer.close();
+
+            assertThat(output.toString()).isEqualTo(input.replace("secret", "public"));
+        } finally {
+            LineSegments.MAX_LINE_WINDOW = window;
+        }
+    }
+
+    @Test
+    public void shouldNotCutLongLinesWithinReplacedText() throws Exception {
+        int window = LineSegments.MAX_LINE_WINDOW;
+        LineSegments.MAX_LINE_WINDOW = 1024;
+        try {
+            // no word boundary to cut at
+            String input = "x" + IntStream.range(0, 1000).mapToObj(i -> "abcdefghij").collect(joining());
+            StringWriter output = new StringWriter();
+            TokenFilter filter = new TokenFilter("abcdefghij", "<token>");
+            FilteredWriter writer = new FilteredWriter(output, filter);
+
+            IOUtils.copy(new CharSequenceReader(input), writer);
+            writer.close();
+
+            assertThat(output.toString()).isEqualTo(input.replace("abcdefghij", "<token>"));
+            assertThat(filter.replaced).as("no replacement computed while looking for cuts").hasValue(1000);
+        } finally {
+            LineSegments.MAX_LINE_WINDOW = window;
+        }
+    }
+
+    /**
+     * Replaces a token, counting the replacements it computes.
+     */
+    static class TokenFilter implements MatchingContentFilter {
+        private final String token;
+        private final String replacement;
+        final AtomicInteger replaced = new AtomicInteger();
+
+        TokenFilter(String token, String replacement) {
+            this.token = token;
+            this.replacement = replacement;
+        }
+
+        @Override
+        public void match(@Nonnull ContentMatches matches) {
+            String input = matches.getInput().toString();
+            for (int i = input.indexOf(token); i >= 0; i = input.indexOf(token, i + token.length())) {
+                matches.offer(i, token.length(), () -> {
+                    replaced.incrementAndGet();
+                    return replacement;
+                });
+            }
+        }
+
+        @Override
+        public int getMaxMatchLength() {
+            return token.length();
+        }
+    }
 }
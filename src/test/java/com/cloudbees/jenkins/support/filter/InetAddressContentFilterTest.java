@@ -81,6 +81,45 @@ public class InetAddressContentFilterTest {
                 .isEqualTo(Jenkins.VERSION);
     }
 
+    @Test
+    public void shouldFilterWholeAddresses() {
+        InetAddressContentFilter filter = InetAddressContentFilter.get();
+        ContentMappings mappings = ContentMappings.get();
+        try (BulkChange ignored = new BulkChange(mappings)) {
+            assertThat(filter.filter("Connection from fe80::1%eth0 to 10.0.0.1:8080"))
+                    .startsWith("Connection from ip_")
+                    .doesNotContain("fe80", "eth0", "10.0.0.1")
+                    .endsWith(":8080");
+            assertThat(filter.filter("::ffff:192.168.1.1"))
+                    .doesNotContain("192.168.1.1");
+        }
+    }
+
+    @Test
+    public void shouldFilterWholeIPv4AddressesAfterIPv6Groups() {
+        InetAddressContentFilter filter = InetAddressContentFilter.get();
+        ContentMappings mappings = ContentMappings.get();
+        try (BulkChange ignored = new BulkChange(mappings)) {
+            assertThat(filter.filter("2001:db8::1:192.168.0.1"))
+                    .doesNotContain("2001", "db8", "192", "168", ".0.1");
+            assertThat(filter.filter("fe80::1:2.3.4.5"))
+                    .doesNotContain("fe80", "2.3", "3.4", "4.5");
+            assertThat(filter.filter("1::2:3.4.5.6"))
+                    .doesNotContain("3.4", "4.5", "5.6");
+            assertThat(filter.filter("a::b:1.2.3.4"))
+                    .doesNotContain("1.2", "2.3", "3.4");
+            assertThat(filter.filter("1:b::fe80::%eth0"))
+                    .doesNotContain("fe80", "eth0");
+        }
+    }
+
+    @Test
+    public void shouldNotFilterNonAddresses() {
+        InetAddressContentFilter filter = InetAddressContentFilter.get();
+        String input = "1.2.3.256 01.2.3.4 1.2.3 1:2:3 deadbeef no digits at all";
+        assertThat(filter.filter(input)).isEqualTo(input);
+    }
+
     private Gen<String> inetAddress() {
         return ipv4().mix(ipv6());
     }
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2018, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.support.filter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappingAutomatonTest {
+
+    private static String filter(String input, ContentMapping... mappings) {
+        return MappingAutomaton.filter(input, MappingAutomaton.build(Arrays.asList(mappings)));
+    }
+
+    @Test
+    public void originalsAreOnlyReplacedAtWordBoundaries() {
+        ContentMapping mapping = ContentMapping.of("foo", "bar");
+        assertThat(filter("foo food afoo foo_ foo.bar (foo)", mapping)).isEqualTo("bar food afoo foo_ bar.bar (bar)");
+    }
+
+    @Test
+    public void asciiLettersAreCaseInsensitive() {
+        assertThat(filter("Foo FOO fOo", ContentMapping.of("foo", "bar"))).isEqualTo("bar bar bar");
+        assertThat(filter("Éclair éclair", ContentMapping.of("éclair", "cake"))).isEqualTo("Éclair cake");
+    }
+
+    @Test
+    public void variantsAreReplaced() {
+        ContentMapping mapping = ContentMapping.of("R&D/build", "item_1");
+        assertThat(filter("R&D/build R&D » build R&amp;D/build R&amp;D » build", mapping))
+                .isEqualTo("item_1 item_1 item_1 item_1");
+    }
+
+    @Test
+    public void longestMatchWins() {
+        ContentMapping shorter = ContentMapping.of("foo", "short");
+        ContentMapping longer = ContentMapping.of("foo bar", "long");
+        assertThat(filter("foo bar foo", shorter, longer)).isEqualTo("long short");
+    }
+
+    @Test
+    public void replacementsAreNotFilteredAgain() {
+        ContentMapping first = ContentMapping.of("foo", "bar");
+        ContentMapping second = ContentMapping.of("bar", "baz");
+        assertThat(filter("foo bar", first, second)).isEqualTo("bar baz");
+    }
+
+    @Test
+    public void mappingsCanBeSplitAcrossAutomata() {
+        List<ContentMapping> mappings = Arrays.asList(
+                ContentMapping.of("foo", "1"), ContentMapping.of("foo bar", "2"), ContentMapping.of("baz", "3"));
+        String input = "foo bar baz foo";
+        String expected = MappingAutomaton.filter(input, MappingAutomaton.build(mappings));
+        assertThat(expected).isEqualTo("2 3 1");
+        for (int i = 0; i <= mappings.size(); i++) {
+            assertThat(MappingAutomaton.filter(input, MappingAutomaton.build(mappings.subList(0, i)),
+                    MappingAutomaton.build(mappings.subList(i, mappings.size())))).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void scanningMatchesLikeAnAutomaton() {
+        String[] variants = {"foo", "foo bar", "R&amp;D", "éclair", "Baz"};
+        String[] replacements = {"1", "2", "3", "4", "5"};
+        String input = "FOO bar food foo R&amp;D Éclair éclair baz, foo";
+        ContentMatches scanned = new ContentMatches(input);
+        MappingAutomaton.scan(scanned, variants, replacements);
+        assertThat(scanned.replace()).isEqualTo(MappingAutomaton.filter(input, MappingAutomaton.build(variants, replacements)))
+                .isEqualTo("2 food 1 3 Éclair 4 5, 1");
+    }
+
+    @Test
+    public void inputWithoutMatchIsReturnedAsIs() {
+        String input = "nothing to see here";
+        assertThat(MappingAutomaton.filter(input, MappingAutomaton.build(Collections.singletonList(
+                ContentMapping.of("foo", "bar"))))).isSameAs(input);
+        assertThat(MappingAutomaton.filter(input, MappingAutomaton.EMPTY)).isSameAs(input);
+    }
+}
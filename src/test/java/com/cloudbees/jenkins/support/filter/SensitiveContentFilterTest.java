@@ -98,4 +98,31 @@ public class SensitiveContentFilterTest {
 
         assertThat(gibson).startsWith("user_").doesNotContain("gibson");
     }
+
+    @Test
+    public void anonymizeRenamedItems() throws IOException {
+        SensitiveContentFilter filter = SensitiveContentFilter.get();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        filter.reload();
+        project.renameTo("renamedProject");
+        filter.reload();
+
+        String renamed = filter.filter("renamedProject");
+
+        assertThat(renamed).startsWith("item_").doesNotContain("renamedProject");
+    }
+
+    @Test
+    public void deterministicFakesAreDerivedFromOriginals() {
+        ContentFilters.get().setDeterministic(true);
+        try {
+            String fake = NameProvider.ITEMS.generateFake("project");
+
+            assertThat(fake).startsWith("item_").doesNotContain("project")
+                    .isEqualTo(NameProvider.ITEMS.generateFake("project"))
+                    .isNotEqualTo(NameProvider.ITEMS.generateFake("other"));
+        } finally {
+            ContentFilters.get().setDeterministic(false);
+        }
+    }
 }
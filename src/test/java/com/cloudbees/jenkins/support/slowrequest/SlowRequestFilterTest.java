@@ -0,0 +1,21 @@
+package com.cloudbees.jenkins.support.slowrequest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlowRequestFilterTest {
+
+    @Test
+    public void streamingRequestsAreToldApart() {
+        assertTrue(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/support/generateAllBundles"));
+        assertTrue(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/support/job/1234/download"));
+        assertTrue(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/cli?remoting=false"));
+        assertTrue(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/job/foo/1/logText/progressiveHtml?start=0"));
+        assertTrue(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/wsagents/"));
+        assertFalse(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/job/foo/configure"));
+        assertFalse(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/job/support-tools/build"));
+        assertFalse(SlowRequestFilter.isStreaming("http://localhost:8080/jenkins/job/client/"));
+    }
+}